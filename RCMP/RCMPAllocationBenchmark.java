@@ -0,0 +1,161 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+
+/**
+ * This class measures how many bytes the RCMP hot path allocates per packet.
+ * It sends a small and a large file between an in-process selective-repeat
+ * sender and receiver over loopback, measures the bytes allocated by the
+ * transmit thread, the ACK thread and the receive thread during each
+ * transfer, and divides the difference by the difference in packets, so that
+ * the fixed cost of setting up a transfer drops out. A result of zero means
+ * the hot path allocates nothing per packet
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPAllocationBenchmark {
+
+    public static final int SMALLPACKETS = 2000;
+    public static final int LARGEPACKETS = 20000;
+
+    private static com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+            .getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        boolean direct = args.length > 0 && args[0].equals("-direct");
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        // warm up the JIT and the JDK's temporary buffer caches first
+        transfer(LARGEPACKETS, direct);
+
+        long[] small = transfer(SMALLPACKETS, direct);
+        long[] large = transfer(LARGEPACKETS, direct);
+        String[] names = { "transmit thread", "ACK thread", "receive thread" };
+        for (int i = 0; i < names.length; i++) {
+            double perPacket = (double) (large[i] - small[i]) / (LARGEPACKETS - SMALLPACKETS);
+            System.out.printf("%-16s %10d bytes for %d packets, %10d bytes for %d packets, %.2f bytes/packet%n",
+                    names[i], small[i], SMALLPACKETS, large[i], LARGEPACKETS, Math.max(0, perPacket));
+        }
+    }
+
+    /**
+     * Sends a file of the given number of full packets and returns the bytes
+     * allocated by the transmit, ACK and receive threads
+     *
+     * @param packets how many packets the file takes
+     * @param direct whether to use direct buffers
+     */
+    private static long[] transfer(int packets, boolean direct) throws Exception {
+        File source = File.createTempFile("rcmp-source", ".bin");
+        File destination = File.createTempFile("rcmp-destination", ".bin");
+        source.deleteOnExit();
+        destination.deleteOnExit();
+        byte[] data = new byte[packets * RCMPHeader.PACKETSIZE];
+        new Random().nextBytes(data);
+        try (FileOutputStream out = new FileOutputStream(source)) {
+            out.write(data);
+        }
+
+        long[] allocated = new long[3];
+        DatagramChannel receiveChannel = DatagramChannel.open();
+        receiveChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        // run the receiver on its own thread, measuring what it allocates
+        Thread receiver = new Thread(() -> {
+            try (FileOutputStream fout = new FileOutputStream(destination)) {
+                long before = threads.getCurrentThreadAllocatedBytes();
+                RCMPReceiverOptions options = new RCMPReceiverOptions();
+                options.pool = new RCMPBufferPool(RCMPReceiveWindow.MAXWINDOW, RCMPHeader.PACKETSIZE, direct);
+                RCMPReceiver.receiveFile(receiveChannel, new RCMPChannelSink(fout.getChannel()), options);
+                allocated[2] = threads.getCurrentThreadAllocatedBytes() - before;
+            } catch (IOException e) {
+                System.err.println("Error receiving file: " + e);
+            }
+        });
+        receiver.start();
+
+        int connectionID = new Random().nextInt();
+        AckThreadMonitor monitor = new AckThreadMonitor("RCMP ACK receiver " + connectionID);
+        monitor.start();
+
+        try (DatagramChannel channel = DatagramChannel.open();
+                RandomAccessFile fin = new RandomAccessFile(source, "r")) {
+            channel.connect(receiveChannel.getLocalAddress());
+            RCMPSource payloads = new RCMPFileSource(new RCMPFileReadable(fin.getChannel()),
+                    RCMPSelectiveSender.DEFAULTWINDOW,
+                    new RCMPBufferPool(RCMPSelectiveSender.DEFAULTWINDOW, RCMPHeader.PACKETSIZE, direct));
+            RCMPSelectiveSender sender = new RCMPSelectiveSender(channel, payloads, connectionID,
+                    RCMPSelectiveSender.DEFAULTWINDOW, true, new RCMPRttEstimator(),
+                    RCMPCongestionControl.create("reno", RCMPSelectiveSender.DEFAULTWINDOW));
+            long before = threads.getCurrentThreadAllocatedBytes();
+            sender.send();
+            allocated[0] = threads.getCurrentThreadAllocatedBytes() - before;
+        }
+        monitor.finish();
+        allocated[1] = monitor.getAllocated();
+        receiver.join();
+        receiveChannel.close();
+        source.delete();
+        destination.delete();
+        return allocated;
+    }
+
+    /**
+     * Finds the sender's ACK thread by name and keeps sampling how much it
+     * has allocated until it ends, since it is started inside send()
+     */
+    private static class AckThreadMonitor extends Thread {
+        private String name;
+        private volatile boolean finished = false;
+        private volatile long allocated = 0;
+
+        public AckThreadMonitor(String name) {
+            this.name = name;
+            setDaemon(true);
+        }
+
+        public void run() {
+            long id = -1;
+            long start = -1;
+            while (!finished) {
+                if (id < 0) {
+                    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                        if (thread.getName().equals(name)) {
+                            id = thread.getId();
+                        }
+                    }
+                }
+                if (id >= 0) {
+                    long bytes = threads.getThreadAllocatedBytes(id);
+                    if (bytes >= 0) {
+                        if (start < 0) {
+                            start = bytes;
+                        }
+                        allocated = bytes - start;
+                    }
+                }
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        public void finish() throws InterruptedException {
+            finished = true;
+            join();
+        }
+
+        public long getAllocated() {
+            return allocated;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * This class counts how well a loop doing batched datagram I/O batches: how
+ * many times it sent or received a batch and how many datagrams those
+ * batches held. The more datagrams per batch, the fewer wakeups, selector
+ * calls and lock handoffs each datagram costs. One instance may be shared by
+ * several threads, which each record a batch once per batch rather than once
+ * per datagram
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPBatchStats {
+
+	private long batches = 0;
+	private long datagrams = 0;
+	private int largest = 0;
+
+	/**
+	 * Counts one batch. Empty batches are not counted
+	 *
+	 * @param count how many datagrams the batch held
+	 */
+	public synchronized void record(int count) {
+		if (count <= 0) {
+			return;
+		}
+		batches++;
+		datagrams += count;
+		largest = Math.max(largest, count);
+	}
+
+	public synchronized long getBatches() {
+		return batches;
+	}
+
+	public synchronized long getDatagrams() {
+		return datagrams;
+	}
+
+	public synchronized int getLargestBatch() {
+		return largest;
+	}
+
+	/**
+	 * Returns how many datagrams a batch held on average, or 0 before the first batch
+	 */
+	public synchronized double getAverageBatch() {
+		return batches == 0 ? 0 : (double) datagrams / batches;
+	}
+
+	public synchronized String toString() {
+		return String.format("%d datagrams in %d batches, %.1f per batch, at most %d", datagrams, batches,
+				getAverageBatch(), largest);
+	}
+}
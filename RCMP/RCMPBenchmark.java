@@ -0,0 +1,285 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * This class measures how well RCMP copes with different networks on one
+ * machine. For every file size and every network profile it asks for, it
+ * sends a file of that size from an in-process selective-repeat sender to an
+ * in-process receiver through an RCMPNetworkEmulator with that profile, checks
+ * that the file arrived intact, and prints how long the transfer took until
+ * the sender had everything ACKed and the goodput that makes, along with
+ * what the emulated network did to the datagrams. Repeated runs report the
+ * median, and the emulator is seeded the same way every time, so two builds
+ * can be compared run for run
+ *
+ * Since every transfer is checked, the benchmark is also the end-to-end test
+ * of the sender and receiver, and ends with a line saying whether every file
+ * arrived intact. For example
+ *
+ *     java RCMPBenchmark -sizes 64,1000 -profiles clean,lossy -sack -crc -streams 2
+ *
+ * covers small and large files over one and two streams, with and without
+ * loss, reordering and duplication
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPBenchmark {
+
+    // the file sizes, in KB, and profiles measured unless told otherwise
+    public static final int[] DEFAULTSIZES = { 256, 4096 };
+    public static final String[] DEFAULTPROFILES = RCMPNetworkProfile.NAMES;
+    // how long a receiver may take to finish after its sender is done, in milliseconds
+    public static final int RECEIVERWAIT = RCMPReceiver.LINGER + 5000;
+    // the size of the file sent before measuring anything, in KB
+    public static final int WARMUPSIZE = 8192;
+
+    public static void main(String[] args) {
+        int[] sizes = DEFAULTSIZES;
+        String[] profiles = DEFAULTPROFILES;
+        int runs = 1;
+        long seed = 1;
+        RCMPSenderOptions options = new RCMPSenderOptions();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-sizes") && i + 1 < args.length) {
+                // a comma-separated list of file sizes in KB
+                String[] values = args[++i].split(",");
+                sizes = new int[values.length];
+                for (int j = 0; j < values.length; j++) {
+                    sizes[j] = parseOption(values[j], "file size");
+                }
+            } else if (args[i].equals("-profiles") && i + 1 < args.length) {
+                profiles = args[++i].split(",");
+            } else if (args[i].equals("-runs") && i + 1 < args.length) {
+                runs = parseOption(args[++i], "number of runs");
+            } else if (args[i].equals("-seed") && i + 1 < args.length) {
+                seed = parseOption(args[++i], "seed");
+            } else if (args[i].equals("-window") && i + 1 < args.length) {
+                // the rest configure the sender the way RCMPSender's options of the same names do
+                options.windowSize = parseOption(args[++i], "window size");
+            } else if (args[i].equals("-sack")) {
+                options.sack = true;
+            } else if (args[i].equals("-streams") && i + 1 < args.length) {
+                options.streams = parseOption(args[++i], "number of streams");
+            } else if (args[i].equals("-crc")) {
+                options.checksums = true;
+            } else if (args[i].equals("-cc") && i + 1 < args.length) {
+                options.congestion = args[++i];
+            } else if (args[i].equals("-pace")) {
+                options.pace = true;
+            } else if (args[i].equals("-fec") && i + 1 < args.length) {
+                options.parityBlock = parseOption(args[++i], "parity block size");
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(0);
+            }
+        }
+
+        for (String name : profiles) {
+            if (RCMPNetworkProfile.named(name) == null) {
+                System.err.println("Unknown profile: " + name + ", expected one of "
+                        + String.join(", ", RCMPNetworkProfile.NAMES));
+                System.exit(0);
+            }
+        }
+        if (runs < 1 || sizes.length == 0) {
+            System.err.println("There must be at least 1 run and 1 file size");
+            System.exit(0);
+        }
+
+        for (String name : profiles) {
+            System.out.println(name + ": " + RCMPNetworkProfile.named(name));
+        }
+        System.out.printf("%-10s %10s %10s %14s %10s %8s %8s  %s%n", "profile", "size KB", "time ms", "goodput Mbit/s",
+                "datagrams", "lost", "reorder", "result");
+        try {
+            // warm up the JIT first, so that the first transfer measured is not the slowest
+            warmUp(options);
+            int failed = 0;
+            for (String name : profiles) {
+                for (int size : sizes) {
+                    failed += measure(name, size, runs, seed, options);
+                }
+            }
+            int transfers = profiles.length * sizes.length * runs;
+            if (failed == 0) {
+                System.out.println("All " + transfers + " transfers arrived intact");
+            } else {
+                System.out.println(failed + " of " + transfers + " transfers failed");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(0);
+        } catch (IOException e) {
+            System.err.println("Error running benchmark: " + e);
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Sends a file of the given size through the named network the given
+     * number of times, prints one line with the median of the runs and
+     * returns how many of them failed
+     *
+     * @param name the name of the network profile
+     * @param size the size of the file in KB
+     * @param runs how many times to send it
+     * @param seed the seed of the emulator's first run, which the next runs count up from
+     * @param options how to send the file
+     */
+    private static int measure(String name, int size, int runs, long seed, RCMPSenderOptions options)
+            throws IOException {
+        File source = File.createTempFile("rcmp-source", ".bin");
+        source.deleteOnExit();
+        byte[] data = new byte[size * 1024];
+        new Random(seed).nextBytes(data);
+        try (FileOutputStream out = new FileOutputStream(source)) {
+            out.write(data);
+        }
+
+        long[] times = new long[runs];
+        long datagrams = 0, lost = 0, reordered = 0;
+        String result = "ok";
+        int failed = 0;
+        for (int run = 0; run < runs; run++) {
+            Result outcome = transfer(source, RCMPNetworkProfile.named(name), seed + run, options);
+            times[run] = outcome.nanos;
+            datagrams += outcome.datagrams;
+            lost += outcome.lost;
+            reordered += outcome.reordered;
+            if (outcome.failure != null) {
+                result = outcome.failure;
+                failed++;
+            }
+        }
+        source.delete();
+
+        Arrays.sort(times);
+        long median = times[runs / 2];
+        System.out.printf("%-10s %10d %10d %14.1f %10d %8d %8d  %s%n", name, size, median / 1000000,
+                size * 1024 * 8 / (median / 1e9) / 1e6, datagrams / runs, lost / runs, reordered / runs, result);
+        return failed;
+    }
+
+    /**
+     * Sends a file of WARMUPSIZE KB once through a clean network
+     */
+    private static void warmUp(RCMPSenderOptions options) throws IOException {
+        File source = File.createTempFile("rcmp-source", ".bin");
+        source.deleteOnExit();
+        try (RandomAccessFile out = new RandomAccessFile(source, "rw")) {
+            out.setLength(WARMUPSIZE * 1024L);
+        }
+        transfer(source, RCMPNetworkProfile.named("clean"), 0, options);
+        source.delete();
+    }
+
+    /**
+     * Sends one file through a fresh receiver and emulator, and returns how
+     * it went
+     */
+    private static Result transfer(File source, RCMPNetworkProfile profile, long seed, RCMPSenderOptions options)
+            throws IOException {
+        Result result = new Result();
+        File destination = File.createTempFile("rcmp-destination", ".bin");
+        destination.deleteOnExit();
+        DatagramChannel receiveChannel = DatagramChannel.open();
+        receiveChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        // the receiver runs until its file is complete and the sender has stopped retransmitting
+        ArrayList<IOException> errors = new ArrayList<>();
+        Thread receiver = new Thread(() -> {
+            try (RandomAccessFile fout = new RandomAccessFile(destination, "rw")) {
+                RCMPReceiverOptions receiverOptions = new RCMPReceiverOptions();
+                receiverOptions.pool = new RCMPBufferPool(RCMPReceiveWindow.MAXWINDOW / 8, RCMPHeader.PACKETSIZE,
+                        false);
+                RCMPReceiver.receiveFile(receiveChannel, new RCMPFileSink(fout.getChannel()), receiverOptions);
+            } catch (IOException e) {
+                synchronized (errors) {
+                    errors.add(e);
+                }
+            }
+        }, "RCMP benchmark receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+
+        RCMPNetworkEmulator emulator = new RCMPNetworkEmulator(
+                (InetSocketAddress) receiveChannel.getLocalAddress(), profile, seed);
+        emulator.start(0);
+        try (RandomAccessFile fin = new RandomAccessFile(source, "r")) {
+            RCMPParallelSender sender = new RCMPParallelSender(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), emulator.getPort()),
+                    new RCMPFileReadable(fin.getChannel()), options);
+            long start = System.nanoTime();
+            boolean acked = sender.send();
+            result.nanos = System.nanoTime() - start;
+            if (!acked) {
+                result.failure = "gave up";
+            }
+        } catch (IOException e) {
+            result.failure = "failed: " + e.getMessage();
+        }
+
+        // a receiver that never completed waits for packets forever, so it is left behind
+        try {
+            receiver.join(RECEIVERWAIT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        result.datagrams = emulator.getRelayed();
+        result.lost = emulator.getLost();
+        result.reordered = emulator.getReordered();
+        emulator.close();
+        synchronized (errors) {
+            if (!errors.isEmpty() && result.failure == null) {
+                result.failure = "receiver failed: " + errors.get(0).getMessage();
+            }
+        }
+        if (result.failure == null && (receiver.isAlive()
+                || Files.mismatch(source.toPath(), destination.toPath()) != -1)) {
+            result.failure = "file differs";
+        }
+        if (!receiver.isAlive()) {
+            receiveChannel.close();
+        }
+        destination.delete();
+        return result;
+    }
+
+    /**
+     * Converts a numeric command line option to an int, exiting with an
+     * error message when it isn't one
+     *
+     * @param value the value given on the command line
+     * @param name what the value is used for
+     */
+    private static int parseOption(String value, String name) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Cannot convert " + value + " to int to use for " + name);
+            System.exit(0);
+            return -1;
+        }
+    }
+
+    /**
+     * How one transfer went
+     */
+    private static class Result {
+        private long nanos;
+        private long datagrams;
+        private long lost;
+        private long reordered;
+        private String failure;
+    }
+}
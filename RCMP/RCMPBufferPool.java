@@ -0,0 +1,74 @@
+import java.nio.ByteBuffer;
+
+/**
+ * This class implements a pool of equally sized ByteBuffers, so that RCMP
+ * senders and receivers can take buffers for packets and give them back
+ * instead of allocating new ones for every packet. The pool starts out with a
+ * number of buffers and only allocates more when all of them are in use
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPBufferPool {
+
+	private ByteBuffer[] free;
+	private int freeCount = 0;
+	private int bufferSize;
+	private boolean direct;
+
+	/**
+	 * Creates a pool and fills it with buffers
+	 *
+	 * @param count how many buffers to allocate up front
+	 * @param bufferSize the capacity of every buffer
+	 * @param direct whether to allocate direct buffers, which the channels can
+	 *        use without copying into a temporary direct buffer first
+	 */
+	public RCMPBufferPool(int count, int bufferSize, boolean direct) {
+		this.bufferSize = bufferSize;
+		this.direct = direct;
+		free = new ByteBuffer[Math.max(1, count)];
+		for (int i = 0; i < count; i++) {
+			free[freeCount++] = allocate();
+		}
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * Takes a cleared buffer out of the pool, allocating one if the pool is empty
+	 */
+	public synchronized ByteBuffer acquire() {
+		if (freeCount == 0) {
+			return allocate();
+		}
+		ByteBuffer buffer = free[--freeCount];
+		free[freeCount] = null;
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Gives a buffer back to the pool
+	 *
+	 * @param buffer a buffer that was taken out of this pool
+	 */
+	public synchronized void release(ByteBuffer buffer) {
+		if (freeCount == free.length) {
+			ByteBuffer[] larger = new ByteBuffer[free.length * 2];
+			System.arraycopy(free, 0, larger, 0, freeCount);
+			free = larger;
+		}
+		free[freeCount++] = buffer;
+	}
+
+	private ByteBuffer allocate() {
+		return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+	}
+}
@@ -0,0 +1,42 @@
+import java.nio.ByteBuffer;
+
+/**
+ * This class implements an RCMP readable over the bytes of a ByteBuffer, so
+ * that data a program already holds in memory can be sent like a file
+ * without writing it to the disk first. The bytes between the buffer's
+ * position and limit are the file, and the buffer itself is never moved
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPBufferReadable implements RCMPReadable {
+
+    private ByteBuffer data;
+
+    /**
+     * Creates a readable over the bytes left in the buffer, which must not
+     * change while they are read
+     *
+     * @param data the bytes to send
+     */
+    public RCMPBufferReadable(ByteBuffer data) {
+        this.data = data.slice();
+    }
+
+    public int read(ByteBuffer dst, long position) {
+        if (position >= data.limit()) {
+            return -1;
+        }
+        int length = (int) Math.min(dst.remaining(), data.limit() - position);
+        dst.put(dst.position(), data, (int) position, length);
+        dst.position(dst.position() + length);
+        return length;
+    }
+
+    public long size() {
+        return data.limit();
+    }
+
+    public void close() {
+    }
+}
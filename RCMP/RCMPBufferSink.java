@@ -0,0 +1,59 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * This class implements an RCMP sink that collects a file in memory, for
+ * receivers that hand small files on rather than keep them. Every packet is
+ * copied to its offset in one buffer the size of the file as soon as it
+ * arrives, so packets may come in any order
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPBufferSink implements RCMPSink {
+
+	private int maxSize;
+	private ByteBuffer buffer;
+
+	/**
+	 * Creates a sink for files of up to the given size
+	 *
+	 * @param maxSize the largest file to take, in bytes
+	 */
+	public RCMPBufferSink(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public void open(long fileSize) throws IOException {
+		if (fileSize > maxSize) {
+			throw new IOException("A file of " + fileSize + " bytes does not fit in " + maxSize);
+		}
+		buffer = ByteBuffer.allocate((int) fileSize);
+	}
+
+	public boolean acceptsOutOfOrder() {
+		return true;
+	}
+
+	public void write(long position, ByteBuffer payload) {
+		// ignore payloads that would run past the end of the file
+		if (position + payload.remaining() > buffer.capacity()) {
+			return;
+		}
+		buffer.put((int) position, payload, payload.position(), payload.remaining());
+		payload.position(payload.limit());
+	}
+
+	public void force() {
+	}
+
+	public void close() {
+	}
+
+	/**
+	 * Returns the file, between position 0 and its size
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer.duplicate().clear();
+	}
+}
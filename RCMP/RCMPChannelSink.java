@@ -0,0 +1,42 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * This class implements an RCMP sink that writes packets, in order, to a
+ * channel such as a FileOutputStream's
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPChannelSink implements RCMPSink {
+
+	private WritableByteChannel fout;
+
+	public RCMPChannelSink(WritableByteChannel fout) {
+		this.fout = fout;
+	}
+
+	public void open(long fileSize) {
+	}
+
+	public boolean acceptsOutOfOrder() {
+		return false;
+	}
+
+	public void write(long position, ByteBuffer payload) throws IOException {
+		while (payload.hasRemaining()) {
+			fout.write(payload);
+		}
+	}
+
+	public void force() throws IOException {
+		if (fout instanceof FileChannel) {
+			((FileChannel) fout).force(false);
+		}
+	}
+
+	public void close() {
+	}
+}
@@ -0,0 +1,220 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class implements an RCMP sender that a program can embed, rather than
+ * start as a process of its own for every file. It sends files, buffers and
+ * streams to one receiver from a few threads of its own, and returns a
+ * CompletableFuture for each that completes once the receiver has ACKed all
+ * of it, or completes exceptionally with the error that stopped it, instead
+ * of ending the program. The sockets transfers are sent over are kept for
+ * the next transfers once they are done, and the payload buffers of every
+ * transfer come from one pool, so a small file costs little more than its
+ * packets
+ *
+ * A stream has to be read to its end before the first packet, since every
+ * packet carries the size of the file. Streams of up to MAXBUFFERED bytes are
+ * read into memory, and longer ones into a temporary file
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPClient implements AutoCloseable {
+
+    public static final int DEFAULTTHREADS = 4;
+    // the longest stream read into memory before it is sent
+    public static final int MAXBUFFERED = 16 * 1024 * 1024;
+
+    private InetSocketAddress address;
+    private RCMPSenderOptions options;
+    private ExecutorService senders;
+
+    // the sockets connected to the receiver that no transfer is sending over right now
+    private ConcurrentLinkedQueue<DatagramChannel> idle = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed = false;
+
+    public RCMPClient(InetSocketAddress address, RCMPSenderOptions options) {
+        this(address, options, DEFAULTTHREADS);
+    }
+
+    /**
+     * Creates a client that sends to the given receiver
+     *
+     * @param address where the receiver receives
+     * @param options how to send every transfer, which is copied
+     * @param threads how many transfers to send at once
+     */
+    public RCMPClient(InetSocketAddress address, RCMPSenderOptions options, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads must be at least 1");
+        }
+        this.address = address;
+        this.options = options.copy();
+        if (this.options.pool == null) {
+            this.options.pool = new RCMPBufferPool(options.windowSize * threads, options.packetSize, options.direct);
+        }
+        senders = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread sender = new Thread(runnable, "RCMP client");
+            sender.setDaemon(true);
+            return sender;
+        });
+    }
+
+    /**
+     * Sends a file
+     *
+     * @param path the file to send
+     */
+    public CompletableFuture<Void> send(Path path) {
+        return submit(() -> {
+            try (RCMPFileReadable fin = new RCMPFileReadable(FileChannel.open(path, StandardOpenOption.READ))) {
+                transfer(fin);
+            }
+        });
+    }
+
+    /**
+     * Sends the bytes left in a buffer, which must not change until the
+     * transfer is done. The buffer's position is left where it is
+     *
+     * @param data the bytes to send
+     */
+    public CompletableFuture<Void> send(ByteBuffer data) {
+        RCMPBufferReadable readable = new RCMPBufferReadable(data);
+        return submit(() -> transfer(readable));
+    }
+
+    /**
+     * Reads a stream to its end on one of the client's threads and sends what
+     * it held. The stream is not closed
+     *
+     * @param in the stream to send
+     */
+    public CompletableFuture<Void> send(InputStream in) {
+        return submit(() -> {
+            byte[] data = in.readNBytes(MAXBUFFERED);
+            int next = data.length < MAXBUFFERED ? -1 : in.read();
+            if (next < 0) {
+                transfer(new RCMPBufferReadable(ByteBuffer.wrap(data)));
+                return;
+            }
+
+            // the stream is longer than we hold in memory, so write it to the disk, along with the
+            // byte read to find that out
+            File spool = File.createTempFile("rcmp-stream", ".bin");
+            try {
+                try (OutputStream out = Files.newOutputStream(spool.toPath())) {
+                    out.write(data);
+                    out.write(next);
+                    in.transferTo(out);
+                }
+                try (RCMPFileReadable fin = new RCMPFileReadable(
+                        FileChannel.open(spool.toPath(), StandardOpenOption.READ))) {
+                    transfer(fin);
+                }
+            } finally {
+                spool.delete();
+            }
+        });
+    }
+
+    /**
+     * Stops taking transfers, waits for the ones already taken to finish and
+     * closes the sockets
+     */
+    public void close() {
+        closed = true;
+        senders.shutdown();
+        try {
+            senders.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeIdle();
+    }
+
+    /**
+     * Runs a transfer on one of the client's threads, completing the future
+     * it returns with the outcome
+     */
+    private CompletableFuture<Void> submit(Transfer transfer) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            senders.execute(() -> {
+                try {
+                    transfer.run();
+                    result.complete(null);
+                } catch (IOException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(new IOException("The client is closed"));
+        }
+        return result;
+    }
+
+    /**
+     * Sends a file over a socket kept from an earlier transfer, or a new one,
+     * and keeps the socket for the next transfer unless something went wrong
+     * with it
+     *
+     * @param fin the file to send
+     */
+    private void transfer(RCMPReadable fin) throws IOException {
+        DatagramChannel channel = idle.poll();
+        if (channel == null) {
+            channel = DatagramChannel.open();
+            channel.connect(address);
+        }
+        boolean acked;
+        try {
+            RCMPParallelSender sender = new RCMPParallelSender(address, fin, options);
+            sender.setChannel(channel);
+            acked = sender.send();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        idle.add(channel);
+        if (closed) {
+            closeIdle();
+        }
+        if (!acked) {
+            throw new IOException("The receiver stopped answering before it ACKed the whole file");
+        }
+    }
+
+    private void closeIdle() {
+        DatagramChannel channel;
+        while ((channel = idle.poll()) != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing socket: " + e);
+            }
+        }
+    }
+
+    /**
+     * One transfer, waiting for a thread to send it on
+     */
+    private interface Transfer {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * This interface is implemented by the congestion control algorithms an RCMP
+ * sender can use to decide how many packets it may have in flight
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public interface RCMPCongestionControl {
+
+    /**
+     * Called when an ACK covers packets that had not been ACKed before
+     *
+     * @param packetsAcked how many packets the ACK newly covers
+     * @param rttNanos the RTT sample the ACK gave us, or -1 if it gave none
+     */
+    void onAck(int packetsAcked, long rttNanos);
+
+    /**
+     * Called once per window when a loss is detected from later packets being
+     * ACKed, i.e. when a packet is fast-retransmitted
+     */
+    void onLoss();
+
+    /**
+     * Called when the retransmission timer fires
+     */
+    void onTimeout();
+
+    /**
+     * Returns how many packets may be in flight, never less than one
+     */
+    int getWindow();
+
+    /**
+     * Returns the rate to pace packets at, in bytes per second, so that the
+     * window is spread over a round trip instead of going out in one burst,
+     * or 0 if there is no RTT to spread it over yet. The rate runs a little
+     * ahead of the window so that pacing never holds the window back
+     *
+     * @param srttNanos the smoothed RTT, or -1 before the first sample
+     * @param packetBytes the size of a full packet
+     */
+    default long getPacingRate(long srttNanos, int packetBytes) {
+        if (srttNanos <= 0) {
+            return 0;
+        }
+        return (long) (1.25 * getWindow() * packetBytes * 1e9 / srttNanos);
+    }
+
+    /**
+     * Creates the congestion control algorithm with the given name
+     *
+     * @param name reno, cubic or fixed
+     * @param maxWindow the largest window the algorithm may open up to
+     */
+    static RCMPCongestionControl create(String name, int maxWindow) {
+        if (name.equals("reno")) {
+            return new RCMPRenoControl(maxWindow);
+        } else if (name.equals("cubic")) {
+            return new RCMPCubicControl(maxWindow);
+        } else if (name.equals("fixed")) {
+            return new RCMPFixedControl(maxWindow);
+        }
+        throw new IllegalArgumentException("Unknown congestion control: " + name);
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * This class implements CUBIC congestion control (RFC 8312). Slow start works
+ * as in Reno, but after a loss the window only shrinks to 70% and then grows
+ * along a cubic curve centred on the window at which the loss happened, so it
+ * gets back to that window quickly and probes past it slowly. A timeout drops
+ * the window to one packet, but sets the slow start threshold to 70% too
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPCubicControl extends RCMPRenoControl {
+
+    // the scaling constant and multiplicative decrease factor from the RFC
+    public static final double C = 0.4;
+    public static final double BETA = 0.7;
+
+    // the window before the last loss, and when the current growth epoch started
+    private double maxBeforeLoss = 0;
+    private long epochStart = -1;
+    private double k;
+    private double target = 0;
+    private long minRtt = Long.MAX_VALUE;
+
+    public RCMPCubicControl(int maxWindow) {
+        super(maxWindow);
+    }
+
+    public void onAck(int packetsAcked, long rttNanos) {
+        if (rttNanos > 0 && rttNanos < minRtt) {
+            minRtt = rttNanos;
+        }
+        if (window < slowStartThreshold || minRtt == Long.MAX_VALUE) {
+            super.onAck(packetsAcked, rttNanos);
+            return;
+        }
+
+        long now = System.nanoTime();
+        if (epochStart < 0) {
+            epochStart = now;
+            if (window < maxBeforeLoss) {
+                k = Math.cbrt((maxBeforeLoss - window) / C);
+            } else {
+                k = 0;
+                maxBeforeLoss = window;
+            }
+        }
+
+        // aim for where the cubic curve will be one round trip from now
+        double t = (now - epochStart + minRtt) / 1e9;
+        target = Math.min(C * Math.pow(t - k, 3) + maxBeforeLoss, maxWindow);
+        for (int i = 0; i < packetsAcked; i++) {
+            if (target > window) {
+                window += (target - window) / window;
+            } else {
+                window += 0.01 / window;
+            }
+        }
+        window = Math.min(window, maxWindow);
+    }
+
+    public void onLoss() {
+        epochStart = -1;
+        target = 0;
+        maxBeforeLoss = window;
+        window = Math.max(2, window * BETA);
+        slowStartThreshold = window;
+    }
+
+    public void onTimeout() {
+        epochStart = -1;
+        target = 0;
+        maxBeforeLoss = window;
+        slowStartThreshold = Math.max(2, window * BETA);
+        window = 1;
+    }
+
+    /**
+     * Spreads the window the cubic curve aims for one round trip from now over
+     * the smallest RTT seen, instead of the current window over the smoothed
+     * RTT. The smoothed RTT grows with the queueing the pacing itself causes,
+     * and the window trails the curve, so pacing on them would hold the rate
+     * further down after every loss than the 70% the window shrank to
+     */
+    public long getPacingRate(long srttNanos, int packetBytes) {
+        long rtt = minRtt == Long.MAX_VALUE ? srttNanos : Math.min(srttNanos, minRtt);
+        if (rtt <= 0) {
+            return 0;
+        }
+        double gain = window < slowStartThreshold ? 2 : 1.25;
+        return (long) (gain * Math.max(getWindow(), target) * packetBytes * 1e9 / rtt);
+    }
+}
@@ -0,0 +1,98 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * This class implements batched receiving for RCMP. Each wakeup of a
+ * receive loop drains every datagram waiting on a non-blocking channel, up to
+ * the size of the batch, into buffers allocated once up front, and only then
+ * are the datagrams handled, so the loop goes back to the selector once per
+ * batch rather than once per datagram. The JDK has no recvmmsg, so each
+ * datagram is still one read from the socket, but the reads follow each
+ * other without anything else in between
+ *
+ * How many datagrams each batch held is counted in an RCMPBatchStats
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPDatagramBatch {
+
+	// how many datagrams a batch holds unless told otherwise
+	public static final int DEFAULTBATCH = 32;
+
+	private ByteBuffer[] buffers;
+	private SocketAddress[] senders;
+	private int count = 0;
+	private RCMPBatchStats stats;
+
+	/**
+	 * Creates a batch with its buffers
+	 *
+	 * @param size the most datagrams one batch holds
+	 * @param bufferSize the largest datagram to receive
+	 * @param direct whether to allocate direct buffers
+	 * @param stats where to count the batches
+	 */
+	public RCMPDatagramBatch(int size, int bufferSize, boolean direct, RCMPBatchStats stats) {
+		if (size < 1) {
+			throw new IllegalArgumentException("A batch must hold at least 1 datagram");
+		}
+		buffers = new ByteBuffer[size];
+		senders = new SocketAddress[size];
+		for (int i = 0; i < size; i++) {
+			buffers[i] = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+		}
+		this.stats = stats;
+	}
+
+	/**
+	 * Receives every datagram waiting on the channel, up to the size of the
+	 * batch, and returns how many there were. Returns 0 right away if there
+	 * were none
+	 *
+	 * @param channel a non-blocking channel
+	 */
+	public int receive(DatagramChannel channel) throws IOException {
+		count = 0;
+		while (count < buffers.length) {
+			ByteBuffer buffer = buffers[count];
+			buffer.clear();
+			SocketAddress sender = channel.receive(buffer);
+			if (sender == null) {
+				break;
+			}
+			buffer.flip();
+			senders[count++] = sender;
+		}
+		stats.record(count);
+		return count;
+	}
+
+	/**
+	 * Returns a datagram of the last batch, between its buffer's position and limit
+	 *
+	 * @param index which datagram of the batch
+	 */
+	public ByteBuffer get(int index) {
+		return buffers[index];
+	}
+
+	/**
+	 * Returns where a datagram of the last batch came from
+	 *
+	 * @param index which datagram of the batch
+	 */
+	public SocketAddress getSender(int index) {
+		return senders[index];
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public RCMPBatchStats getStats() {
+		return stats;
+	}
+}
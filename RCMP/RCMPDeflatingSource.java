@@ -0,0 +1,114 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * This class implements an RCMP source that compresses a file, or a range of
+ * it, as it is sent. The file is read in large blocks and fed through a
+ * Deflater, and the compressed stream is cut into full packets, so every
+ * packet carries a full payload of compressed data except the last. How
+ * many packets that takes is only known once the whole range has been
+ * compressed, so the packets have to be loaded in order, each of them once
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPDeflatingSource implements RCMPSource {
+
+    // how much of the file to read at a time
+    public static final int BLOCKSIZE = 64 * 1024;
+
+    private RCMPReadable fin;
+    private long offset;
+    private long fileSize;
+    private int packetSize;
+    private long bytesRead = 0;
+    private long packetCount = Long.MAX_VALUE;
+
+    private Deflater deflater;
+    private ByteBuffer block;
+    private RCMPBufferPool pool;
+    private ByteBuffer[] slots;
+
+    /**
+     * Creates a source compressing at the given Deflater level, from 0 for
+     * no compression to 9 for the best
+     */
+    public RCMPDeflatingSource(RCMPReadable fin, long offset, long length, int packetSize, int windowSize,
+            RCMPBufferPool pool, int level) {
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be between 0 and 9");
+        }
+        this.fin = fin;
+        this.offset = offset;
+        this.fileSize = length;
+        this.packetSize = packetSize;
+        this.pool = pool;
+        deflater = new Deflater(level);
+        block = pool.isDirect() ? ByteBuffer.allocateDirect(BLOCKSIZE) : ByteBuffer.allocate(BLOCKSIZE);
+        block.limit(0);
+        slots = new ByteBuffer[windowSize];
+    }
+
+    /**
+     * Returns the size of the range before compression, which is what the
+     * receiver writes
+     */
+    public long getSize() {
+        return fileSize;
+    }
+
+    public long getPacketCount() {
+        return packetCount;
+    }
+
+    public int getPacketSize() {
+        return packetSize;
+    }
+
+    public ByteBuffer load(int slot, long packetNum) throws IOException {
+        if (slots[slot] == null) {
+            slots[slot] = pool.acquire();
+        }
+        ByteBuffer payload = slots[slot];
+        payload.clear();
+        payload.limit(packetSize);
+
+        // compress until the packet is full or the stream has ended
+        while (payload.hasRemaining() && !deflater.finished()) {
+            if (deflater.needsInput() && bytesRead < fileSize) {
+                block.clear();
+                block.limit((int) Math.min(BLOCKSIZE, fileSize - bytesRead));
+                while (block.hasRemaining()) {
+                    if (fin.read(block, offset + bytesRead + block.position()) < 0) {
+                        throw new IOException("File shrank while it was being sent");
+                    }
+                }
+                block.flip();
+                bytesRead += block.remaining();
+                deflater.setInput(block);
+                if (bytesRead == fileSize) {
+                    deflater.finish();
+                }
+            } else if (deflater.needsInput()) {
+                deflater.finish();
+            }
+            deflater.deflate(payload);
+        }
+        if (deflater.finished()) {
+            packetCount = packetNum + 1;
+        }
+        payload.flip();
+        return payload;
+    }
+
+    public void release() {
+        deflater.end();
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] != null) {
+                pool.release(slots[i]);
+                slots[i] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+import java.net.SocketAddress;
+
+/**
+ * This class implements the delayed ACK policy of one RCMP connection on the
+ * receiver. Packets that arrive in order are not ACKed one by one: a single
+ * ACK goes out once a number of them have arrived or once the oldest of them
+ * has waited for the ACK delay, whichever comes first. A packet that leaves
+ * or fills a gap, a duplicate, and the last packet of the connection are
+ * ACKed at once, so the sender hears about losses and the end of the
+ * connection as early as it did before. Since one ACK has to cover every
+ * packet that arrived since the last one, delayed ACKs are always SACKs
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPDelayedAck {
+
+	// ACK every second packet, or once the first of them has waited half a millisecond
+	public static final int DEFAULTCOUNT = 2;
+	public static final int DEFAULTDELAY = 500;
+
+	private int connectionID;
+	private int count;
+	private long delay;
+
+	// how many packets are waiting for an ACK, when the first of them has to be
+	// ACKed by, and where the ACK goes
+	private int pending = 0;
+	private long deadline;
+	private SocketAddress sender;
+
+	/**
+	 * Creates the policy of one connection
+	 *
+	 * @param connectionID the id of the connection
+	 * @param count how many packets to ACK at once, where 1 ACKs every packet right away
+	 * @param delayMicros the longest a packet waits for its ACK, in microseconds
+	 */
+	public RCMPDelayedAck(int connectionID, int count, int delayMicros) {
+		this.connectionID = connectionID;
+		this.count = count;
+		this.delay = delayMicros * 1000L;
+	}
+
+	public int getConnectionID() {
+		return connectionID;
+	}
+
+	public SocketAddress getSender() {
+		return sender;
+	}
+
+	/**
+	 * Returns true if ACKs are delayed at all, which makes every ACK a SACK
+	 */
+	public boolean isEnabled() {
+		return count > 1;
+	}
+
+	/**
+	 * Records a packet the window wrote or held, returning true if it has to
+	 * be ACKed now, which also covers every packet still waiting, and false
+	 * if its ACK is delayed
+	 *
+	 * @param inOrder whether the packet was the next one expected, leaving no gap behind it and not being the last
+	 * @param sender where the packet came from
+	 * @param now the current time, from System.nanoTime()
+	 */
+	public boolean onPacket(boolean inOrder, SocketAddress sender, long now) {
+		this.sender = sender;
+		if (!inOrder || pending + 1 >= count) {
+			pending = 0;
+			return true;
+		}
+		if (pending++ == 0) {
+			deadline = now + delay;
+		}
+		return false;
+	}
+
+	public boolean isPending() {
+		return pending > 0;
+	}
+
+	/**
+	 * Returns when the packets waiting have to be ACKed by, from System.nanoTime()
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Returns true, and forgets the packets waiting, if their ACK is due
+	 *
+	 * @param now the current time, from System.nanoTime()
+	 */
+	public boolean takeDue(long now) {
+		if (pending == 0 || now - deadline < 0) {
+			return false;
+		}
+		pending = 0;
+		return true;
+	}
+}
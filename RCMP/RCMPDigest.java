@@ -0,0 +1,79 @@
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * This class implements the integrity checks of RCMP: a CRC32C of every
+ * packet, covering its header and payload, and a digest of a whole
+ * connection built from the checksums of its packets. The digest is the sum of
+ * a 64-bit hash of every packet's number and checksum, so both sides can
+ * fold packets in whatever order they send or receive them, without keeping
+ * any of them back and without reading the file a second time
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPDigest {
+
+	// the size of the checksum that follows the header
+	public static final int CRCSIZE = 4;
+
+	private CRC32C crc = new CRC32C();
+	private long value = 0;
+
+	/**
+	 * Returns the CRC32C of a packet whose header and payload are in separate
+	 * buffers, between their positions and limits. The buffers are left as
+	 * they were
+	 *
+	 * @param header the header of the packet, without the checksum
+	 * @param payload the payload of the packet
+	 */
+	public int checksum(ByteBuffer header, ByteBuffer payload) {
+		crc.reset();
+		update(header);
+		update(payload);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Checks the CRC32C of a received packet whose checksum sits right
+	 * before the payload. The packet is left as it was
+	 *
+	 * @param packet the packet, positioned at the start of the payload
+	 * @param expected the checksum the packet carries
+	 */
+	public boolean verify(ByteBuffer packet, int expected) {
+		int start = packet.position(), limit = packet.limit();
+		crc.reset();
+		packet.position(0).limit(start - CRCSIZE);
+		crc.update(packet);
+		packet.limit(limit).position(start);
+		update(packet);
+		return (int) crc.getValue() == expected;
+	}
+
+	/**
+	 * Folds a packet into the digest of its connection. Every packet must be
+	 * folded exactly once
+	 *
+	 * @param packetNum the number of the packet
+	 * @param checksum the CRC32C of the packet
+	 */
+	public void add(long packetNum, int checksum) {
+		// the finalizer of MurmurHash3, spreading every input bit over the sum
+		long hash = packetNum * 0x9e3779b97f4a7c15L ^ (checksum & 0xffffffffL);
+		hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+		hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		value += hash ^ (hash >>> 33);
+	}
+
+	public long getValue() {
+		return value;
+	}
+
+	private void update(ByteBuffer buffer) {
+		int position = buffer.position();
+		crc.update(buffer);
+		buffer.position(position);
+	}
+}
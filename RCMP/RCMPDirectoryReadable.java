@@ -0,0 +1,300 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class implements an RCMP readable over a whole directory tree packed
+ * into one stream, so that a directory can be sent over one RCMP connection
+ * like a single file, by any source that reads an RCMPReadable. The
+ * stream starts with a manifest listing every directory and file of the tree
+ * and the size of every file, and the contents of the files follow it back
+ * to back in the order the manifest lists them. An RCMPDirectorySink unpacks
+ * the stream on the receiving side
+ *
+ * The manifest is MAGIC, the number of entries, and then the path of each
+ * entry relative to the root as a 16-bit length and UTF-8 bytes with '/'
+ * between its names, followed by its size in 64 bits, or -1 for a directory
+ *
+ * Opening and reading a small file costs far more than sending it, so a pool
+ * of reader threads reads the small files ahead of the sender, up to
+ * READAHEAD files past the one being sent. Larger files are read straight
+ * from the disk as they are sent
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPDirectoryReadable implements RCMPReadable {
+
+    // the start of every packed directory, "RCMPDIR1"
+    public static final long MAGIC = 0x52434d5044495231L;
+    // the longest path an entry can have, in UTF-8 bytes
+    public static final int MAXNAME = 0xffff;
+    // how many files are read ahead of the one being sent, and the largest file read ahead whole
+    public static final int READAHEAD = 64;
+    public static final int SMALLFILE = 256 * 1024;
+    // how many threads read files ahead by default
+    public static final int DEFAULTREADERS = 4;
+
+    private Path root;
+
+    // the path of every entry relative to the root, its size or -1 for a directory, and
+    // where its contents start in the stream
+    private String[] names;
+    private long[] sizes;
+    private long[] starts;
+
+    private ByteBuffer manifest;
+    private long size;
+
+    // the small files being read ahead, by entry, and the next entry to read ahead
+    private ExecutorService readers;
+    private List<CompletableFuture<ByteBuffer>> loaded;
+    private int scheduled = 0;
+
+    // the large file being read, if any
+    private FileChannel open;
+    private int openEntry = -1;
+
+    /**
+     * Lists every directory and regular file under the root, which are sent
+     * in the order they are listed. Symbolic links and other special files
+     * are left out
+     *
+     * @param root the directory to send
+     * @param threads how many threads read small files ahead
+     */
+    public RCMPDirectoryReadable(Path root, int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Readers must be at least 1");
+        }
+        this.root = root;
+        ArrayList<String> entryNames = new ArrayList<>();
+        ArrayList<Long> entrySizes = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!dir.equals(root)) {
+                    entryNames.add(relativeName(dir));
+                    entrySizes.add(-1L);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    entryNames.add(relativeName(file));
+                    entrySizes.add(attrs.size());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        // build the manifest, and lay the contents of the files out after it
+        int count = entryNames.size(), manifestSize = 12;
+        byte[][] encoded = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            encoded[i] = entryNames.get(i).getBytes(StandardCharsets.UTF_8);
+            if (encoded[i].length > MAXNAME) {
+                throw new IOException("Path too long to send: " + entryNames.get(i));
+            }
+            manifestSize += 2 + encoded[i].length + 8;
+        }
+        manifest = ByteBuffer.allocate(manifestSize);
+        manifest.putLong(MAGIC).putInt(count);
+        names = new String[count];
+        sizes = new long[count];
+        starts = new long[count];
+        size = manifestSize;
+        for (int i = 0; i < count; i++) {
+            names[i] = entryNames.get(i);
+            sizes[i] = entrySizes.get(i);
+            starts[i] = size;
+            size += Math.max(0, sizes[i]);
+            manifest.putShort((short) encoded[i].length).put(encoded[i]).putLong(sizes[i]);
+        }
+        manifest.flip();
+
+        loaded = new ArrayList<>(Collections.nCopies(count, null));
+        readers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread reader = new Thread(runnable, "RCMP directory reader");
+            reader.setDaemon(true);
+            return reader;
+        });
+    }
+
+    /**
+     * Returns how many directories and files the stream holds
+     */
+    public int getEntryCount() {
+        return names.length;
+    }
+
+    public synchronized int read(ByteBuffer dst, long position) throws IOException {
+        if (position >= size) {
+            return -1;
+        }
+        int read = 0;
+        while (dst.hasRemaining() && position < size) {
+            int length;
+            if (position < manifest.limit()) {
+                ByteBuffer part = manifest.duplicate();
+                part.position((int) position).limit((int) Math.min(manifest.limit(), position + dst.remaining()));
+                length = part.remaining();
+                dst.put(part);
+            } else {
+                length = readEntry(findEntry(position), dst, position);
+            }
+            read += length;
+            position += length;
+        }
+        return read;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Returns the entry whose contents hold the given position of the stream,
+     * which lies past the manifest. Empty entries start where the next one
+     * does, so the last entry starting at or before the position holds it
+     */
+    private int findEntry(long position) {
+        int low = 0, high = starts.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (starts[middle] <= position) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Reads as much of one file into the buffer as fits, from the given
+     * position of the stream, and returns how many bytes that was
+     */
+    private int readEntry(int entry, ByteBuffer dst, long position) throws IOException {
+        long offset = position - starts[entry];
+        int length = (int) Math.min(dst.remaining(), sizes[entry] - offset);
+        readAhead(entry);
+
+        if (sizes[entry] <= SMALLFILE) {
+            ByteBuffer contents = loaded.get(entry) != null ? join(loaded.get(entry)) : readWhole(entry);
+            ByteBuffer part = contents.duplicate();
+            part.position((int) offset).limit((int) offset + length);
+            dst.put(part);
+            return length;
+        }
+
+        if (openEntry != entry) {
+            closeOpen();
+            open = FileChannel.open(root.resolve(names[entry]), StandardOpenOption.READ);
+            openEntry = entry;
+        }
+        int limit = dst.limit();
+        dst.limit(dst.position() + length);
+        try {
+            while (dst.hasRemaining()) {
+                if (open.read(dst, offset + length - dst.remaining()) < 0) {
+                    throw new IOException("File shrank while it was being sent: " + names[entry]);
+                }
+            }
+        } finally {
+            dst.limit(limit);
+        }
+        return length;
+    }
+
+    /**
+     * Starts reading the small files up to READAHEAD entries past the given
+     * one, and forgets the ones before it, which have been sent
+     */
+    private void readAhead(int entry) {
+        for (int i = Math.max(0, entry - READAHEAD); i < entry; i++) {
+            loaded.set(i, null);
+        }
+        scheduled = Math.max(scheduled, entry);
+        for (; scheduled < Math.min(names.length, entry + READAHEAD); scheduled++) {
+            int next = scheduled;
+            if (sizes[next] > 0 && sizes[next] <= SMALLFILE) {
+                loaded.set(next, CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return readWhole(next);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, readers));
+            }
+        }
+    }
+
+    /**
+     * Reads a whole small file, which must still be as large as when it was listed
+     */
+    private ByteBuffer readWhole(int entry) throws IOException {
+        ByteBuffer contents = ByteBuffer.allocate((int) Math.max(0, sizes[entry]));
+        try (FileChannel file = FileChannel.open(root.resolve(names[entry]), StandardOpenOption.READ)) {
+            while (contents.hasRemaining()) {
+                if (file.read(contents, contents.position()) < 0) {
+                    throw new IOException("File shrank while it was being sent: " + names[entry]);
+                }
+            }
+        }
+        contents.flip();
+        return contents;
+    }
+
+    private static ByteBuffer join(CompletableFuture<ByteBuffer> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private String relativeName(Path path) {
+        StringBuilder name = new StringBuilder();
+        for (Path part : root.relativize(path)) {
+            if (name.length() > 0) {
+                name.append('/');
+            }
+            name.append(part.toString());
+        }
+        return name.toString();
+    }
+
+    private void closeOpen() throws IOException {
+        if (open != null) {
+            open.close();
+            open = null;
+            openEntry = -1;
+        }
+    }
+
+    /**
+     * Stops reading files ahead and closes the file being read
+     */
+    public synchronized void close() throws IOException {
+        readers.shutdownNow();
+        closeOpen();
+    }
+}
@@ -0,0 +1,240 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class implements an RCMP sink that unpacks a directory tree sent as
+ * one stream by an RCMPDirectoryReadable. It reads the manifest at the start
+ * of the stream, creates every directory it lists, and then writes the
+ * contents that follow to one file after another, closing each file as soon
+ * as all of it has arrived. The stream has to be written in order, so the
+ * receive window holds packets that arrive early until their turn
+ *
+ * Paths in the manifest are checked before anything is created, and a path
+ * that would lead outside the directory fails the transfer
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPDirectorySink implements RCMPSink {
+
+	// what the next bytes of the stream hold
+	private static final int HEADER = 0;
+	private static final int NAMELENGTH = 1;
+	private static final int NAME = 2;
+	private static final int SIZE = 3;
+	private static final int CONTENTS = 4;
+	private static final int DONE = 5;
+
+	private Path root;
+	private long fileSize;
+	private long written = 0;
+
+	// the part of the manifest being read, and how many bytes of it we need
+	private int state = HEADER;
+	private ByteBuffer field = ByteBuffer.allocate(RCMPDirectoryReadable.MAXNAME);
+	private int need = 12;
+
+	// every entry of the manifest, with its size or -1 for a directory
+	private Path[] paths;
+	private long[] sizes;
+	private int entry = 0;
+
+	// the file being written, and how many of its bytes are still to come
+	private FileChannel out;
+	private long remaining;
+	private int files = 0;
+
+	/**
+	 * Creates a sink that unpacks into the given directory, which must exist
+	 */
+	public RCMPDirectorySink(Path root) {
+		this.root = root.toAbsolutePath().normalize();
+	}
+
+	public void open(long fileSize) throws IOException {
+		if (fileSize < 12) {
+			throw new IOException("The transfer is not a directory");
+		}
+		this.fileSize = fileSize;
+	}
+
+	public boolean acceptsOutOfOrder() {
+		return false;
+	}
+
+	public void write(long position, ByteBuffer payload) throws IOException {
+		if (position != written) {
+			throw new IOException("A directory has to be written in order");
+		}
+		written += payload.remaining();
+		while (payload.hasRemaining()) {
+			if (state == CONTENTS) {
+				writeContents(payload);
+			} else if (state == DONE) {
+				throw new IOException("The directory holds more than its manifest lists");
+			} else if (fill(payload)) {
+				field.flip();
+				readField();
+				field.clear();
+			}
+		}
+	}
+
+	public void force() throws IOException {
+		if (out != null) {
+			out.force(false);
+		}
+	}
+
+	/**
+	 * Checks that every file has arrived, and closes the last one
+	 */
+	public void close() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+		if (state != DONE || written != fileSize) {
+			throw new IOException("The directory ended before every file arrived");
+		}
+	}
+
+	/**
+	 * Returns how many files have been written so far
+	 */
+	public int getFileCount() {
+		return files;
+	}
+
+	/**
+	 * Copies as much of the field being read out of the payload as it holds,
+	 * returning true once the whole field is there
+	 */
+	private boolean fill(ByteBuffer payload) {
+		int length = Math.min(need - field.position(), payload.remaining());
+		int limit = payload.limit();
+		payload.limit(payload.position() + length);
+		field.put(payload);
+		payload.limit(limit);
+		return field.position() == need;
+	}
+
+	/**
+	 * Handles a field of the manifest once all of it has arrived, and decides
+	 * what comes next
+	 */
+	private void readField() throws IOException {
+		if (state == HEADER) {
+			if (field.getLong() != RCMPDirectoryReadable.MAGIC) {
+				throw new IOException("The transfer is not a directory");
+			}
+			// every entry takes at least 11 bytes of the manifest
+			int count = field.getInt();
+			if (count < 0 || count > fileSize / 11) {
+				throw new IOException("The directory's manifest is damaged");
+			}
+			paths = new Path[count];
+			sizes = new long[count];
+			state = NAMELENGTH;
+			need = 2;
+		} else if (state == NAMELENGTH) {
+			state = NAME;
+			need = field.getShort() & 0xffff;
+		} else if (state == NAME) {
+			paths[entry] = resolve(new String(field.array(), 0, field.limit(), StandardCharsets.UTF_8));
+			state = SIZE;
+			need = 8;
+		} else if (state == SIZE) {
+			sizes[entry] = field.getLong();
+			if (sizes[entry] < -1) {
+				throw new IOException("The directory's manifest is damaged");
+			}
+			if (sizes[entry] == -1) {
+				Files.createDirectories(paths[entry]);
+			}
+			entry++;
+			state = NAMELENGTH;
+			need = 2;
+		}
+		if (state == NAMELENGTH && entry == paths.length) {
+			// the contents of the files follow the manifest
+			state = CONTENTS;
+			entry = -1;
+			nextFile();
+		}
+	}
+
+	/**
+	 * Writes as much of the payload to the file being written as belongs to
+	 * it, moving on to the next file once it is complete
+	 */
+	private void writeContents(ByteBuffer payload) throws IOException {
+		int length = (int) Math.min(remaining, payload.remaining());
+		int limit = payload.limit();
+		payload.limit(payload.position() + length);
+		while (payload.hasRemaining()) {
+			out.write(payload);
+		}
+		payload.limit(limit);
+		remaining -= length;
+		if (remaining == 0) {
+			nextFile();
+		}
+	}
+
+	/**
+	 * Closes the file just written and opens the next one with any contents,
+	 * creating the empty ones in between
+	 */
+	private void nextFile() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+		while (++entry < paths.length) {
+			if (sizes[entry] < 0) {
+				continue;
+			}
+			Files.createDirectories(paths[entry].getParent());
+			out = FileChannel.open(paths[entry], StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			files++;
+			if (sizes[entry] > 0) {
+				remaining = sizes[entry];
+				return;
+			}
+			out.close();
+			out = null;
+		}
+		state = DONE;
+	}
+
+	/**
+	 * Returns where an entry of the manifest goes, refusing paths that are
+	 * absolute, have empty, "." or ".." names, or lead outside the directory
+	 *
+	 * @param name the path of the entry relative to the directory, with '/' between its names
+	 */
+	private Path resolve(String name) throws IOException {
+		boolean valid = !name.isEmpty() && name.indexOf('\\') < 0 && name.indexOf('\0') < 0;
+		for (String part : name.split("/", -1)) {
+			valid &= !part.isEmpty() && !part.equals(".") && !part.equals("..");
+		}
+		Path path = null;
+		try {
+			path = valid ? root.resolve(name).normalize() : null;
+		} catch (InvalidPathException e) {
+			throw new IOException("Cannot write " + name + " here: " + e.getMessage());
+		}
+		if (path == null || !path.startsWith(root) || path.equals(root)) {
+			throw new IOException("Refusing to write outside the directory: " + name);
+		}
+		return path;
+	}
+}
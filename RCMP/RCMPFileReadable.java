@@ -0,0 +1,39 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class implements an RCMP readable over a file on the disk. It hands
+ * its channel to the sources that need more of the file than positional
+ * reads, such as RCMPMappedSource
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPFileReadable implements RCMPReadable {
+
+    private FileChannel fin;
+
+    public RCMPFileReadable(FileChannel fin) {
+        this.fin = fin;
+    }
+
+    public int read(ByteBuffer dst, long position) throws IOException {
+        return fin.read(dst, position);
+    }
+
+    public long size() throws IOException {
+        return fin.size();
+    }
+
+    /**
+     * Returns the channel the file is read through
+     */
+    public FileChannel getChannel() {
+        return fin;
+    }
+
+    public void close() throws IOException {
+        fin.close();
+    }
+}
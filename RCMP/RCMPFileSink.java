@@ -0,0 +1,71 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class implements an RCMP sink that writes every packet to its offset
+ * in a file with a positional write as soon as it arrives, so packets from
+ * several streams, or from either side of a gap, never have to be held back.
+ * Payloads that follow each other are written with one gathering write
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPFileSink implements RCMPSink {
+
+	private FileChannel fout;
+	private long fileSize;
+
+	public RCMPFileSink(FileChannel fout) {
+		this.fout = fout;
+	}
+
+	/**
+	 * Cuts off anything past the end of the file left by an earlier, larger
+	 * file, leaving what is inside it for a resumed transfer
+	 */
+	public void open(long fileSize) throws IOException {
+		this.fileSize = fileSize;
+		if (fout.size() > fileSize) {
+			fout.truncate(fileSize);
+		}
+	}
+
+	public boolean acceptsOutOfOrder() {
+		return true;
+	}
+
+	public void write(long position, ByteBuffer payload) throws IOException {
+		// ignore payloads that would run past the end of the file
+		if (position + payload.remaining() > fileSize) {
+			return;
+		}
+		while (payload.hasRemaining()) {
+			position += fout.write(payload, position);
+		}
+	}
+
+	public void write(long position, ByteBuffer[] payloads, int offset, int length) throws IOException {
+		long end = position;
+		for (int i = offset; i < offset + length; i++) {
+			end += payloads[i].remaining();
+		}
+		// let the single writes drop whatever would run past the end of the file
+		if (end > fileSize) {
+			RCMPSink.super.write(position, payloads, offset, length);
+			return;
+		}
+		// only one thread writes to a sink at a time, so the channel's position is ours to move
+		fout.position(position);
+		while (fout.position() < end) {
+			fout.write(payloads, offset, length);
+		}
+	}
+
+	public void force() throws IOException {
+		fout.force(false);
+	}
+
+	public void close() {
+	}
+}
@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * This class implements an RCMP source that copies payloads out of a file,
+ * or a range of it, with positional reads into a buffer per window slot taken
+ * from a pool. The file may be anything RCMPReadable
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPFileSource implements RCMPSource {
+
+    private RCMPReadable fin;
+    private long offset;
+    private long fileSize;
+    private int packetSize;
+    private RCMPBufferPool pool;
+    private ByteBuffer[] slots;
+
+    /**
+     * Creates a source for a range of the file, whose pool must hand out
+     * buffers of at least the packet size
+     */
+    public RCMPFileSource(RCMPReadable fin, long offset, long length, int packetSize, int windowSize,
+            RCMPBufferPool pool) {
+        this.fin = fin;
+        this.offset = offset;
+        this.fileSize = length;
+        this.packetSize = packetSize;
+        this.pool = pool;
+        slots = new ByteBuffer[windowSize];
+    }
+
+    public RCMPFileSource(RCMPReadable fin, int windowSize, RCMPBufferPool pool) throws IOException {
+        this(fin, 0, fin.size(), RCMPHeader.PACKETSIZE, windowSize, pool);
+    }
+
+    public long getSize() {
+        return fileSize;
+    }
+
+    public long getPacketCount() {
+        // an empty file still takes one (empty) packet to send
+        return Math.max(1, (fileSize + packetSize - 1) / packetSize);
+    }
+
+    public int getPacketSize() {
+        return packetSize;
+    }
+
+    public ByteBuffer load(int slot, long packetNum) throws IOException {
+        if (slots[slot] == null) {
+            slots[slot] = pool.acquire();
+        }
+        ByteBuffer payload = slots[slot];
+
+        // read in as much of the payload as is left in the file, at its own
+        // position so that nothing has to seek
+        long position = packetNum * packetSize;
+        payload.clear();
+        payload.limit((int) Math.min(packetSize, fileSize - position));
+        while (payload.hasRemaining()) {
+            if (fin.read(payload, offset + position + payload.position()) < 0) {
+                throw new IOException("File shrank while it was being sent");
+            }
+        }
+        payload.flip();
+        return payload;
+    }
+
+    public void release() {
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] != null) {
+                pool.release(slots[i]);
+                slots[i] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/**
+ * This class implements a congestion control algorithm that does not control
+ * anything: it always allows a fixed number of packets in flight, as the
+ * selective-repeat sender did before congestion control was added
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPFixedControl implements RCMPCongestionControl {
+
+    private int window;
+
+    public RCMPFixedControl(int window) {
+        this.window = Math.max(1, window);
+    }
+
+    public void onAck(int packetsAcked, long rttNanos) {
+    }
+
+    public void onLoss() {
+    }
+
+    public void onTimeout() {
+    }
+
+    public int getWindow() {
+        return window;
+    }
+}
@@ -0,0 +1,186 @@
+import java.nio.ByteBuffer;
+
+/**
+ * This class holds the header of a received RCMP packet. One instance is
+ * reused for every packet a receive loop reads, so parsing a header allocates
+ * nothing. It also holds the sizes, flags, types and features of the protocol,
+ * which the senders and receivers all build their packets from
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPHeader {
+
+	// the sizes of the payload and of the header and ACK every packet starts with
+	public static final int PACKETSIZE = 1450;
+	// the smallest and largest payload sizes a transfer can negotiate in place of PACKETSIZE. The
+	// largest fits a 9000-byte jumbo frame along with the largest header and an IPv6 and UDP header
+	public static final int MINPACKETSIZE = 512;
+	public static final int MAXPACKETSIZE = 8880;
+	public static final int HEADERSIZE = 13;
+	public static final int ACKSIZE = 8;
+
+	// bits of the flags byte at the end of the header
+	public static final byte ACKFLAG = 1;
+	public static final byte SELECTIVEFLAG = 2;
+	public static final byte SACKFLAG = 4;
+	// set when the packet belongs to one range of a file sent over several streams
+	public static final byte RANGEFLAG = 8;
+	// set when the file size and packet number are carried as 64-bit values after the header
+	public static final byte LONGFLAG = 0x10;
+	// set when a CRC32C of the packet follows the header
+	public static final byte CRCFLAG = 0x20;
+	// set when the payloads are one Deflate stream, to be decompressed in order
+	public static final byte COMPRESSEDFLAG = 0x40;
+	// set on packets that carry a request rather than part of the file, with its type after the header
+	public static final byte CONTROLFLAG = (byte) 0x80;
+
+	// extended ACKs carry a type byte after the connection id
+	public static final byte SACKTYPE = 1;
+	// a resume reply lists the ranges of the file the receiver already has
+	public static final byte RESUMETYPE = 2;
+	// a final ACK carries the digest of everything the connection received
+	public static final byte FINTYPE = 3;
+	public static final int FINSIZE = 13;
+	// a size reply carries the payload size the receiver accepted, and a probe reply the payload
+	// size of a probe that reached it
+	public static final byte SIZETYPE = 4;
+	public static final byte PROBETYPE = 5;
+	public static final int SIZEREPLYSIZE = 9;
+	// a hello reply carries the version, the features and the payload size and window the receiver
+	// agreed to
+	public static final byte HELLOTYPE = 6;
+	public static final int HELLOREPLYSIZE = 18;
+
+	// types of control packet, and the size of a resume request: the type, the file identity and
+	// size, and the payload size the sender asks for
+	public static final byte RESUMEQUERY = 1;
+	public static final int RESUMEQUERYSIZE = HEADERSIZE + 21;
+	// a size request holds the type, the payload size the sender asks for and the file size
+	public static final byte SIZEQUERY = 2;
+	public static final int SIZEQUERYSIZE = HEADERSIZE + 13;
+	// a probe holds the type and the payload size it probes, and is padded to the size of a
+	// packet with that payload and the largest header
+	public static final byte PROBEQUERY = 3;
+	public static final int PROBEQUERYSIZE = HEADERSIZE + 5;
+	// a parity packet holds the XOR of one group of a block of packets. Unlike other control
+	// packets it carries the extensions of its connection after its type, then the block size, the
+	// stride and index of its group, how many packets the block holds and the XOR of their lengths
+	// and checksums, followed by the XOR of their payloads
+	public static final byte PARITY = 4;
+	public static final int PARITYSIZE = 12;
+	// a hello opens a connection before its first packet. It holds the type, the version of the
+	// protocol and the features the sender wants, the payload size and window it asks for, and the
+	// file size
+	public static final byte HELLOQUERY = 5;
+	public static final int HELLOQUERYSIZE = HEADERSIZE + 22;
+
+	// the version of the protocol a hello speaks, and the features it can ask for: checksums,
+	// compression, parity, SACKs, ranges over several streams and resuming
+	public static final byte VERSION = 1;
+	public static final int CRCFEATURE = 1;
+	public static final int COMPRESSIONFEATURE = 2;
+	public static final int PARITYFEATURE = 4;
+	public static final int SACKFEATURE = 8;
+	public static final int RANGEFEATURE = 0x10;
+	public static final int RESUMEFEATURE = 0x20;
+	// a SACK holds the next expected packet and a bitmap of the packets held after it
+	public static final int SACKBYTES = 32;
+	public static final int SACKSIZE = 13 + SACKBYTES;
+	// a range packet carries the id of its transfer, the offset of its range and the size of the
+	// whole file after the header
+	public static final int RANGESIZE = 20;
+	// the 64-bit file size and packet number, and the ACK that echoes a 64-bit packet number
+	public static final int LONGSIZE = 16;
+	public static final int LONGACKSIZE = 12;
+	// the largest header a packet can carry, which is that of a parity packet
+	public static final int MAXHEADERSIZE = HEADERSIZE + 1 + LONGSIZE + RANGESIZE + RCMPDigest.CRCSIZE + PARITYSIZE;
+	// the most streams a file can be split over
+	public static final int MAXSTREAMS = 64;
+
+	public int connectionID;
+	public long fileSize;
+	public long packetNum;
+	public byte flags;
+
+	// the transfer the connection belongs to, where its range starts and how big
+	// the whole file is. A connection without a range carries the whole file
+	public int transferID;
+	public long rangeOffset;
+	public long totalSize;
+
+	// the CRC32C of the packet, if it carries one
+	public int checksum;
+
+	// what a control packet asks for. Control packets carry a body instead of a payload
+	public byte controlType;
+
+	/**
+	 * Reads the header from the start of a received packet, leaving the
+	 * payload between the buffer's position and limit. Returns false if the
+	 * packet is too short to hold the header
+	 *
+	 * @param packet the received packet, between its position and limit
+	 */
+	public boolean read(ByteBuffer packet) {
+		if (packet.remaining() < HEADERSIZE) {
+			return false;
+		}
+		connectionID = packet.getInt();
+		fileSize = packet.getInt();
+		packetNum = packet.getInt() & 0xffffffffL;
+		flags = packet.get();
+		if ((flags & CONTROLFLAG) != 0) {
+			if (!packet.hasRemaining()) {
+				return false;
+			}
+			controlType = packet.get();
+			// parity packets belong to a connection and carry its extensions, other control packets do not
+			if (controlType != PARITY) {
+				return true;
+			}
+		}
+		if ((flags & LONGFLAG) != 0) {
+			// the 32-bit fields are replaced by the 64-bit ones that follow
+			if (packet.remaining() < LONGSIZE) {
+				return false;
+			}
+			fileSize = packet.getLong();
+			packetNum = packet.getLong();
+		}
+		if ((flags & RANGEFLAG) != 0) {
+			if (packet.remaining() < RANGESIZE) {
+				return false;
+			}
+			transferID = packet.getInt();
+			rangeOffset = packet.getLong();
+			totalSize = packet.getLong();
+		} else {
+			transferID = connectionID;
+			rangeOffset = 0;
+			totalSize = fileSize;
+		}
+		if ((flags & CRCFLAG) != 0) {
+			if (packet.remaining() < RCMPDigest.CRCSIZE) {
+				return false;
+			}
+			checksum = packet.getInt();
+		}
+		return true;
+	}
+
+	public boolean hasFlag(byte flag) {
+		return (flags & flag) != 0;
+	}
+
+	/**
+	 * Returns true if the connection's range lies on a packet boundary inside
+	 * the file
+	 *
+	 * @param packetSize the payload size of the transfer's packets
+	 */
+	public boolean hasValidRange(int packetSize) {
+		return rangeOffset >= 0 && rangeOffset % packetSize == 0 && fileSize >= 0
+				&& rangeOffset + fileSize <= totalSize;
+	}
+}
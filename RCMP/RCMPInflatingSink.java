@@ -0,0 +1,94 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * This class implements an RCMP sink that decompresses the packets of one
+ * compressed connection, which it has to be given in order, and writes what
+ * comes out to the file's sink in packet-sized pieces from the connection's
+ * place in the file on. It knows the connection is complete once the compressed
+ * stream ends
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPInflatingSink implements RCMPSink {
+
+	private RCMPSink sink;
+	private long position;
+
+	private Inflater inflater = new Inflater();
+	private ByteBuffer output;
+
+	/**
+	 * Creates a sink decompressing into the given sink
+	 *
+	 * @param sink the sink of the file, which must already be open
+	 * @param position where the connection's range starts in the file
+	 * @param packetSize how much to decompress before writing it out
+	 * @param direct whether to decompress into a direct buffer
+	 */
+	public RCMPInflatingSink(RCMPSink sink, long position, int packetSize, boolean direct) {
+		this.sink = sink;
+		this.position = position;
+		output = direct ? ByteBuffer.allocateDirect(packetSize) : ByteBuffer.allocate(packetSize);
+	}
+
+	public void open(long fileSize) {
+	}
+
+	public boolean acceptsOutOfOrder() {
+		return false;
+	}
+
+	/**
+	 * Decompresses the next packet of the connection, writing out every
+	 * packet's worth of output it completes. The position of a compressed
+	 * packet says nothing about where its output goes, so it is ignored
+	 */
+	public void write(long packetPosition, ByteBuffer payload) throws IOException {
+		if (inflater.finished()) {
+			return;
+		}
+		inflater.setInput(payload);
+		try {
+			while (!inflater.finished() && !inflater.needsInput()) {
+				inflater.inflate(output);
+				if (!output.hasRemaining()) {
+					flush();
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Compressed data is corrupt: " + e.getMessage());
+		}
+		if (inflater.finished()) {
+			flush();
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Returns true once the end of the compressed stream has arrived
+	 */
+	public boolean isFinished() {
+		return inflater.finished();
+	}
+
+	public void force() throws IOException {
+		sink.force();
+	}
+
+	public void close() {
+	}
+
+	private void flush() throws IOException {
+		output.flip();
+		if (output.hasRemaining()) {
+			int length = output.remaining();
+			sink.write(position, output);
+			position += length;
+		}
+		output.clear();
+	}
+}
@@ -0,0 +1,314 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * This class implements the checkpoint journal of a resumable RCMP transfer:
+ * the ranges of packets of a file that have been written, kept as sorted,
+ * merged [start, end) pairs so that a mostly complete file takes only a few
+ * of them. The receiver saves the journal next to the file, and only after
+ * forcing the file to disk, so everything the saved journal lists is durable.
+ * A sender that reconnects with the same file identity is sent the ranges
+ * and skips the packets they cover. Packets are counted in the payload size
+ * the transfer negotiated, so a new attempt is told to use the payload size
+ * of the saved journal rather than the one it asks for
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPJournal {
+
+	// how often the journal is saved while a transfer runs, in milliseconds
+	public static final int CHECKPOINTINTERVAL = 1000;
+	// marks the start of a journal file
+	public static final int MAGIC = 0x52434d4a;
+
+	private long fileID;
+	private long totalSize;
+	private int packetSize;
+	private File file;
+
+	private long[] starts = new long[16];
+	private long[] ends = new long[16];
+	private int count = 0;
+
+	private boolean dirty = false;
+	private long lastCheckpoint = System.nanoTime();
+
+	/**
+	 * Creates an empty journal
+	 *
+	 * @param fileID the identity of the file being transferred
+	 * @param totalSize the size of the file
+	 * @param packetSize the payload size of the file's packets
+	 * @param file where to save the journal, or null to keep it in memory only
+	 */
+	public RCMPJournal(long fileID, long totalSize, int packetSize, File file) {
+		this.fileID = fileID;
+		this.totalSize = totalSize;
+		this.packetSize = packetSize;
+		this.file = file;
+	}
+
+	/**
+	 * Loads the journal saved in the given file if it belongs to the same file
+	 * and packet size, and returns an empty journal for the file otherwise
+	 *
+	 * @param file where the journal is saved
+	 * @param fileID the identity of the file being transferred
+	 * @param totalSize the size of the file
+	 * @param packetSize the payload size of the file's packets
+	 */
+	public static RCMPJournal load(File file, long fileID, long totalSize, int packetSize) {
+		RCMPJournal journal = new RCMPJournal(fileID, totalSize, packetSize, file);
+		if (!file.exists()) {
+			return journal;
+		}
+		try {
+			ByteBuffer saved = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+			if (saved.getInt() != MAGIC || saved.getLong() != fileID || saved.getLong() != totalSize
+					|| saved.getInt() != packetSize) {
+				return journal;
+			}
+			journal.readRanges(saved, saved.getInt());
+		} catch (IOException | RuntimeException e) {
+			// a journal we cannot read is as good as none, so the file is sent again
+			journal.count = 0;
+		}
+		return journal;
+	}
+
+	/**
+	 * Returns the payload size of the journal saved in the given file if it
+	 * belongs to the same file, and 0 otherwise
+	 *
+	 * @param file where the journal is saved
+	 * @param fileID the identity of the file being transferred
+	 * @param totalSize the size of the file
+	 */
+	public static int savedPacketSize(File file, long fileID, long totalSize) {
+		if (!file.exists()) {
+			return 0;
+		}
+		try {
+			ByteBuffer saved = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+			if (saved.getInt() != MAGIC || saved.getLong() != fileID || saved.getLong() != totalSize) {
+				return 0;
+			}
+			return saved.getInt();
+		} catch (IOException | RuntimeException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Reads the body of a resume reply: the file identity and packet size
+	 * followed by a count and that many ranges
+	 *
+	 * @param reply the reply, positioned after its type byte
+	 */
+	public static RCMPJournal read(ByteBuffer reply) {
+		RCMPJournal journal = new RCMPJournal(reply.getLong(), -1, reply.getInt(), null);
+		journal.readRanges(reply, reply.getInt());
+		return journal;
+	}
+
+	/**
+	 * Puts the body of a resume reply into the given buffer, with as many of
+	 * the ranges as fit. Ranges that do not fit are dropped from the journal,
+	 * so that both sides agree they are to be sent again
+	 *
+	 * @param buffer the buffer to put the body into
+	 */
+	public void put(ByteBuffer buffer) {
+		int ranges = Math.max(0, Math.min(count, (buffer.remaining() - 16) / 16));
+		if (ranges < count) {
+			count = ranges;
+			dirty = true;
+		}
+		buffer.putLong(fileID);
+		buffer.putInt(packetSize);
+		buffer.putInt(ranges);
+		for (int i = 0; i < ranges; i++) {
+			buffer.putLong(starts[i]);
+			buffer.putLong(ends[i]);
+		}
+	}
+
+	public long getFileID() {
+		return fileID;
+	}
+
+	public int getPacketSize() {
+		return packetSize;
+	}
+
+	public int getRangeCount() {
+		return count;
+	}
+
+	/**
+	 * Returns true if the given packet has been written
+	 *
+	 * @param packetNum the number of the packet in the file
+	 */
+	public boolean contains(long packetNum) {
+		int i = find(packetNum);
+		return i >= 0 && packetNum < ends[i];
+	}
+
+	/**
+	 * Returns the end of the range holding the given packet, i.e. the first
+	 * packet after it that has not been written
+	 *
+	 * @param packetNum the number of a packet the journal contains
+	 */
+	public long rangeEnd(long packetNum) {
+		int i = find(packetNum);
+		return i >= 0 && packetNum < ends[i] ? ends[i] : packetNum;
+	}
+
+	/**
+	 * Records that a packet has been written, extending or merging the ranges
+	 * next to it. Packets usually extend the end of a range, which needs no copying
+	 *
+	 * @param packetNum the number of the packet in the file
+	 */
+	public void add(long packetNum) {
+		int i = find(packetNum);
+		if (i >= 0 && packetNum < ends[i]) {
+			return;
+		}
+		dirty = true;
+		if (i >= 0 && packetNum == ends[i]) {
+			ends[i]++;
+			// the range may now touch the next one
+			if (i + 1 < count && ends[i] == starts[i + 1]) {
+				ends[i] = ends[i + 1];
+				remove(i + 1);
+			}
+		} else if (i + 1 < count && packetNum + 1 == starts[i + 1]) {
+			starts[i + 1] = packetNum;
+		} else {
+			insert(i + 1, packetNum, packetNum + 1);
+		}
+	}
+
+	/**
+	 * Forces the file to disk and saves the journal once the checkpoint
+	 * interval has passed since the last save, or right away if asked to
+	 *
+	 * @param sink the sink writing the file the journal describes
+	 * @param now whether to save even if the interval has not passed
+	 */
+	public void checkpoint(RCMPSink sink, boolean now) throws IOException {
+		long time = System.nanoTime();
+		if (file == null || !dirty || (!now && time - lastCheckpoint < CHECKPOINTINTERVAL * 1000000L)) {
+			return;
+		}
+		lastCheckpoint = time;
+		sink.force();
+
+		// write the new journal next to the old one and swap it in, so a crash
+		// leaves one or the other behind but never half of one
+		ByteBuffer saved = ByteBuffer.allocate(28 + count * 16);
+		saved.putInt(MAGIC).putLong(fileID).putLong(totalSize).putInt(packetSize).putInt(count);
+		for (int i = 0; i < count; i++) {
+			saved.putLong(starts[i]).putLong(ends[i]);
+		}
+		saved.flip();
+		File temporary = new File(file.getPath() + ".tmp");
+		try (FileChannel out = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (saved.hasRemaining()) {
+				out.write(saved);
+			}
+			out.force(true);
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		dirty = false;
+	}
+
+	/**
+	 * Deletes the saved journal once the transfer is complete
+	 */
+	public void delete() {
+		if (file != null) {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Returns an identity for a file that stays the same as long as the file
+	 * is not changed or moved: a 64-bit FNV-1a hash of its canonical path, its
+	 * size and when it was last modified
+	 *
+	 * @param file the file to identify
+	 */
+	public static long identify(File file) throws IOException {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : file.getCanonicalPath().getBytes(StandardCharsets.UTF_8)) {
+			hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+		}
+		long[] values = { file.length(), file.lastModified() };
+		for (long value : values) {
+			for (int shift = 0; shift < 64; shift += 8) {
+				hash = (hash ^ ((value >>> shift) & 0xff)) * 0x100000001b3L;
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * Returns the index of the last range starting at or before the given
+	 * packet, or -1 if there is none
+	 */
+	private int find(long packetNum) {
+		int low = 0, high = count - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (starts[middle] <= packetNum) {
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return high;
+	}
+
+	private void readRanges(ByteBuffer buffer, int ranges) {
+		for (int i = 0; i < ranges; i++) {
+			long start = buffer.getLong(), end = buffer.getLong();
+			// keep the ranges sorted and apart even if the other side did not
+			if (start >= end || (count > 0 && start <= ends[count - 1])) {
+				continue;
+			}
+			insert(count, start, end);
+		}
+	}
+
+	private void insert(int index, long start, long end) {
+		if (count == starts.length) {
+			starts = Arrays.copyOf(starts, count * 2);
+			ends = Arrays.copyOf(ends, count * 2);
+		}
+		System.arraycopy(starts, index, starts, index + 1, count - index);
+		System.arraycopy(ends, index, ends, index + 1, count - index);
+		starts[index] = start;
+		ends[index] = end;
+		count++;
+	}
+
+	private void remove(int index) {
+		System.arraycopy(starts, index + 1, starts, index, count - index - 1);
+		System.arraycopy(ends, index + 1, ends, index, count - index - 1);
+		count--;
+	}
+}
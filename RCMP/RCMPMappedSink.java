@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class implements an RCMP sink that memory-maps the output file once
+ * its size is known, so every packet is copied straight to its offset in the
+ * mapping as soon as it arrives, whatever order it arrives in, and nothing has
+ * to be held back while a gap is filled
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPMappedSink implements RCMPSink {
+
+	// the number of bytes in each mapping
+	public static final long CHUNKSIZE = 1L << 30;
+
+	private FileChannel fout;
+	private long fileSize;
+	private MappedByteBuffer[] chunks;
+
+	// a view of each chunk, so that writing a packet only moves its position
+	private ByteBuffer[] views;
+
+	public RCMPMappedSink(FileChannel fout) {
+		this.fout = fout;
+	}
+
+	public void open(long fileSize) throws IOException {
+		this.fileSize = fileSize;
+		// mapping grows the file but never shrinks it
+		if (fout.size() > fileSize) {
+			fout.truncate(fileSize);
+		}
+		chunks = new MappedByteBuffer[(int) ((fileSize + CHUNKSIZE - 1) / CHUNKSIZE)];
+		views = new ByteBuffer[chunks.length];
+		for (int i = 0; i < chunks.length; i++) {
+			long start = i * CHUNKSIZE;
+			chunks[i] = fout.map(FileChannel.MapMode.READ_WRITE, start, Math.min(CHUNKSIZE, fileSize - start));
+			views[i] = chunks[i].duplicate();
+		}
+	}
+
+	public boolean acceptsOutOfOrder() {
+		return true;
+	}
+
+	public void write(long position, ByteBuffer payload) {
+		// ignore payloads that would run past the end of the file
+		if (position + payload.remaining() > fileSize) {
+			return;
+		}
+		// a payload may straddle two chunks, so copy it a chunk at a time
+		int limit = payload.limit();
+		while (payload.hasRemaining()) {
+			int chunk = (int) (position / CHUNKSIZE);
+			views[chunk].clear().position((int) (position - chunk * CHUNKSIZE));
+			int length = Math.min(payload.remaining(), views[chunk].remaining());
+			payload.limit(payload.position() + length);
+			views[chunk].put(payload);
+			payload.limit(limit);
+			position += length;
+		}
+	}
+
+	/**
+	 * Flushes the mapped pages to the file
+	 */
+	public void force() {
+		for (MappedByteBuffer chunk : chunks) {
+			chunk.force();
+		}
+	}
+
+	public void close() {
+		force();
+	}
+}
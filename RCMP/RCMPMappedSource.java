@@ -0,0 +1,83 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class implements an RCMP source that memory-maps the file, so payloads
+ * are sent straight out of the page cache with no copy into a packet buffer
+ * and no read or seek when a packet is retransmitted. Files, or ranges of
+ * them, are mapped in
+ * chunks of whole packets, since one mapping cannot be larger than 2 GB
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPMappedSource implements RCMPSource {
+
+    // the most bytes in each mapping, which is rounded down to a whole number of packets
+    public static final long MAXCHUNKSIZE = 1L << 30;
+
+    private long fileSize;
+    private int packetSize;
+    private long chunkSize;
+    private MappedByteBuffer[] chunks;
+
+    // each slot keeps its own view of a chunk, so that loading a packet only
+    // moves the view's position and limit
+    private ByteBuffer[] views;
+    private int[] viewChunks;
+
+    public RCMPMappedSource(FileChannel fin, long offset, long length, int packetSize, int windowSize)
+            throws IOException {
+        fileSize = length;
+        this.packetSize = packetSize;
+        chunkSize = MAXCHUNKSIZE / packetSize * packetSize;
+        chunks = new MappedByteBuffer[(int) ((fileSize + chunkSize - 1) / chunkSize)];
+        for (int i = 0; i < chunks.length; i++) {
+            long start = i * chunkSize;
+            chunks[i] = fin.map(FileChannel.MapMode.READ_ONLY, offset + start, Math.min(chunkSize, fileSize - start));
+        }
+        views = new ByteBuffer[windowSize];
+        viewChunks = new int[windowSize];
+    }
+
+    public RCMPMappedSource(FileChannel fin, int windowSize) throws IOException {
+        this(fin, 0, fin.size(), RCMPHeader.PACKETSIZE, windowSize);
+    }
+
+    public long getSize() {
+        return fileSize;
+    }
+
+    public long getPacketCount() {
+        // an empty file still takes one (empty) packet to send
+        return Math.max(1, (fileSize + packetSize - 1) / packetSize);
+    }
+
+    public int getPacketSize() {
+        return packetSize;
+    }
+
+    public ByteBuffer load(int slot, long packetNum) throws IOException {
+        long position = packetNum * packetSize;
+        int length = (int) Math.min(packetSize, fileSize - position);
+
+        // an empty file has no mapping to point into
+        if (chunks.length == 0) {
+            return ByteBuffer.allocate(0);
+        }
+        int chunk = (int) (position / chunkSize);
+        if (views[slot] == null || viewChunks[slot] != chunk) {
+            views[slot] = chunks[chunk].duplicate();
+            viewChunks[slot] = chunk;
+        }
+        int offset = (int) (position - chunk * chunkSize);
+        ByteBuffer view = views[slot];
+        view.limit(offset + length).position(offset);
+        return view;
+    }
+
+    public void release() {
+    }
+}
@@ -0,0 +1,334 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class implements the counters of one RCMP connection, on either side
+ * of it: what the sender put on the wire, how much of it was retransmitted,
+ * how often its timer ran out and how much of the file the receiver ACKed,
+ * and what the receiver took in, how much of it arrived out of order or
+ * twice, and how much it passed on to its sink. The sender also keeps its
+ * congestion window, the packets it has in flight and its smoothed RTT up to
+ * date, and a histogram of every RTT sample it takes
+ *
+ * The counters are updated from the loops that send and receive packets, so
+ * recording costs no more than adding to a LongAdder and nothing is printed
+ * or allocated. They are read through JMX, as RCMPMetricsMXBean, and printed
+ * once in a while by an RCMPMetricsReporter
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPMetrics implements RCMPMetricsMXBean {
+
+	// which side of the connection the metrics belong to
+	public static final String SENDER = "sender";
+	public static final String RECEIVER = "receiver";
+
+	// the RTT histogram has a bucket per power of two microseconds, the first holding
+	// everything below 2us and the last everything from about 8s on
+	public static final int RTTBUCKETS = 24;
+
+	private String role;
+	private int connectionID;
+	private long startTime = System.nanoTime();
+	private volatile long endTime = 0;
+
+	// the sender's side
+	private LongAdder packetsSent = new LongAdder();
+	private LongAdder bytesSent = new LongAdder();
+	private LongAdder retransmissions = new LongAdder();
+	private LongAdder timeouts = new LongAdder();
+	private LongAdder bytesAcked = new LongAdder();
+	private volatile int window = 0;
+	private volatile long inFlight = 0;
+	private volatile long smoothedRtt = 0;
+	private AtomicLongArray rttBuckets = new AtomicLongArray(RTTBUCKETS);
+
+	// the receiver's side
+	private LongAdder packetsReceived = new LongAdder();
+	private LongAdder bytesReceived = new LongAdder();
+	private LongAdder bytesDelivered = new LongAdder();
+	private LongAdder duplicates = new LongAdder();
+	private LongAdder outOfOrder = new LongAdder();
+	private LongAdder recovered = new LongAdder();
+
+	/**
+	 * Creates the metrics of one side of a connection
+	 *
+	 * @param role SENDER or RECEIVER
+	 * @param connectionID the id of the connection
+	 */
+	public RCMPMetrics(String role, int connectionID) {
+		this.role = role;
+		this.connectionID = connectionID;
+	}
+
+	/**
+	 * Counts a datagram put on the wire
+	 *
+	 * @param bytes the size of the datagram, header included
+	 * @param retransmission whether the packet had been sent before
+	 */
+	public void onSent(int bytes, boolean retransmission) {
+		packetsSent.increment();
+		bytesSent.add(bytes);
+		if (retransmission) {
+			retransmissions.increment();
+		}
+	}
+
+	/**
+	 * Counts a retransmission timer running out
+	 */
+	public void onTimeout() {
+		timeouts.increment();
+	}
+
+	/**
+	 * Counts bytes of the file the receiver ACKed for the first time
+	 */
+	public void onAcked(long bytes) {
+		bytesAcked.add(bytes);
+	}
+
+	/**
+	 * Adds an RTT sample to the histogram
+	 *
+	 * @param rttNanos the time from sending a packet to its ACK
+	 */
+	public void onRtt(long rttNanos) {
+		long micros = Math.max(1, rttNanos / 1000);
+		rttBuckets.incrementAndGet(Math.min(RTTBUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros)));
+	}
+
+	/**
+	 * Updates what the sender's window looks like now
+	 *
+	 * @param window the congestion window, in packets
+	 * @param inFlight how many packets are sent but not ACKed
+	 * @param smoothedRtt the smoothed RTT in nanoseconds
+	 */
+	public void setWindow(int window, long inFlight, long smoothedRtt) {
+		this.window = window;
+		this.inFlight = inFlight;
+		this.smoothedRtt = smoothedRtt;
+	}
+
+	/**
+	 * Counts a data or parity packet handed to the receive window
+	 *
+	 * @param bytes the size of its payload
+	 */
+	public void onReceived(int bytes) {
+		packetsReceived.increment();
+		bytesReceived.add(bytes);
+	}
+
+	/**
+	 * Counts a packet the receiver already had
+	 */
+	public void onDuplicate() {
+		duplicates.increment();
+	}
+
+	/**
+	 * Counts a packet that arrived ahead of one still missing
+	 */
+	public void onOutOfOrder() {
+		outOfOrder.increment();
+	}
+
+	/**
+	 * Counts a packet rebuilt from parity instead of being retransmitted
+	 */
+	public void onRecovered() {
+		recovered.increment();
+	}
+
+	/**
+	 * Counts bytes of the file passed on to the sink for the first time
+	 */
+	public void onDelivered(int bytes) {
+		bytesDelivered.add(bytes);
+	}
+
+	/**
+	 * Stops the clock the rates are averaged over, once the connection is done
+	 */
+	public void finish() {
+		if (endTime == 0) {
+			endTime = System.nanoTime();
+		}
+	}
+
+	public String getRole() {
+		return role;
+	}
+
+	public int getConnectionID() {
+		return connectionID;
+	}
+
+	public long getElapsedMillis() {
+		return ((endTime != 0 ? endTime : System.nanoTime()) - startTime) / 1000000;
+	}
+
+	public long getPacketsSent() {
+		return packetsSent.sum();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	public long getRetransmissions() {
+		return retransmissions.sum();
+	}
+
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+
+	public long getBytesAcked() {
+		return bytesAcked.sum();
+	}
+
+	public long getPacketsReceived() {
+		return packetsReceived.sum();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	public long getBytesDelivered() {
+		return bytesDelivered.sum();
+	}
+
+	public long getDuplicates() {
+		return duplicates.sum();
+	}
+
+	public long getOutOfOrder() {
+		return outOfOrder.sum();
+	}
+
+	public long getRecovered() {
+		return recovered.sum();
+	}
+
+	/**
+	 * Returns the bits per second put on the wire by a sender, or taken in by
+	 * a receiver, duplicates and headers included
+	 */
+	public long getThroughput() {
+		return perSecond(role.equals(SENDER) ? getBytesSent() : getBytesReceived());
+	}
+
+	/**
+	 * Returns the bits per second of the file that got across: ACKed for a
+	 * sender, passed on to the sink for a receiver
+	 */
+	public long getGoodput() {
+		return perSecond(role.equals(SENDER) ? getBytesAcked() : getBytesDelivered());
+	}
+
+	public int getWindow() {
+		return window;
+	}
+
+	public long getInFlight() {
+		return inFlight;
+	}
+
+	public long getSmoothedRttMicros() {
+		return smoothedRtt / 1000;
+	}
+
+	public long getRttMedianMicros() {
+		return rttPercentile(0.5);
+	}
+
+	public long getRtt99Micros() {
+		return rttPercentile(0.99);
+	}
+
+	/**
+	 * Returns how many RTT samples fell in each bucket, where bucket i holds
+	 * the samples of at least 2^i microseconds and below 2^(i+1)
+	 */
+	public long[] getRttHistogram() {
+		long[] counts = new long[RTTBUCKETS];
+		for (int i = 0; i < RTTBUCKETS; i++) {
+			counts[i] = rttBuckets.get(i);
+		}
+		return counts;
+	}
+
+	/**
+	 * Returns one line of key=value pairs describing the connection, for logs
+	 * read by machines as much as by people
+	 */
+	public String toLogLine() {
+		StringBuilder line = new StringBuilder("rcmp");
+		append(line, "role", role);
+		append(line, "connection", Integer.toUnsignedString(connectionID));
+		append(line, "elapsed_ms", getElapsedMillis());
+		if (role.equals(SENDER)) {
+			append(line, "packets_sent", getPacketsSent());
+			append(line, "bytes_sent", getBytesSent());
+			append(line, "bytes_acked", getBytesAcked());
+			append(line, "throughput_bps", getThroughput());
+			append(line, "goodput_bps", getGoodput());
+			append(line, "retransmissions", getRetransmissions());
+			append(line, "timeouts", getTimeouts());
+			append(line, "window", getWindow());
+			append(line, "in_flight", getInFlight());
+			append(line, "srtt_us", getSmoothedRttMicros());
+			append(line, "rtt_p50_us", getRttMedianMicros());
+			append(line, "rtt_p99_us", getRtt99Micros());
+		} else {
+			append(line, "packets_received", getPacketsReceived());
+			append(line, "bytes_received", getBytesReceived());
+			append(line, "bytes_delivered", getBytesDelivered());
+			append(line, "throughput_bps", getThroughput());
+			append(line, "goodput_bps", getGoodput());
+			append(line, "out_of_order", getOutOfOrder());
+			append(line, "duplicates", getDuplicates());
+			append(line, "recovered", getRecovered());
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Returns the upper edge of the bucket holding the given fraction of the
+	 * RTT samples, in microseconds, or 0 before the first sample
+	 */
+	private long rttPercentile(double fraction) {
+		long[] counts = getRttHistogram();
+		long total = 0;
+		for (long count : counts) {
+			total += count;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * fraction), seen = 0;
+		for (int i = 0; i < RTTBUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return 1L << (i + 1);
+			}
+		}
+		return 1L << RTTBUCKETS;
+	}
+
+	private long perSecond(long bytes) {
+		long elapsed = getElapsedMillis();
+		return elapsed == 0 ? 0 : bytes * 8000 / elapsed;
+	}
+
+	private static void append(StringBuilder line, String key, Object value) {
+		line.append(' ').append(key).append('=').append(value);
+	}
+}
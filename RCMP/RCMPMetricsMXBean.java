@@ -0,0 +1,56 @@
+/**
+ * This interface lists what an RCMPMetrics exports through JMX, so that a
+ * running sender, receiver or daemon can be watched from jconsole or any
+ * other JMX client. Counters only ever grow, and rates are averaged over the
+ * life of the connection. Counters that do not apply to the side of the
+ * connection the metrics belong to stay 0
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public interface RCMPMetricsMXBean {
+
+	String getRole();
+
+	int getConnectionID();
+
+	long getElapsedMillis();
+
+	long getPacketsSent();
+
+	long getBytesSent();
+
+	long getRetransmissions();
+
+	long getTimeouts();
+
+	long getBytesAcked();
+
+	long getPacketsReceived();
+
+	long getBytesReceived();
+
+	long getBytesDelivered();
+
+	long getDuplicates();
+
+	long getOutOfOrder();
+
+	long getRecovered();
+
+	long getThroughput();
+
+	long getGoodput();
+
+	int getWindow();
+
+	long getInFlight();
+
+	long getSmoothedRttMicros();
+
+	long getRttMedianMicros();
+
+	long getRtt99Micros();
+
+	long[] getRttHistogram();
+}
@@ -0,0 +1,103 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * This class implements the export of RCMP metrics. Every connection added
+ * to it is registered with the platform MBean server as
+ * RCMP:type=<role>,connection=<id>, and a daemon thread prints the log line
+ * of every connection once per period. A connection's last line is printed
+ * when it is removed, so even a transfer shorter than the period leaves one
+ * behind
+ *
+ * The reporter only ever reads the counters, so printing happens off the
+ * paths that send and receive packets
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPMetricsReporter {
+
+	private int periodSeconds;
+	private PrintStream out;
+	private MBeanServer server;
+	private CopyOnWriteArrayList<RCMPMetrics> connections = new CopyOnWriteArrayList<>();
+	private Thread thread;
+
+	/**
+	 * Creates a reporter
+	 *
+	 * @param periodSeconds how often to print the connections, or 0 to print each only once it is removed
+	 * @param out where to print them
+	 */
+	public RCMPMetricsReporter(int periodSeconds, PrintStream out) {
+		if (periodSeconds < 0) {
+			throw new IllegalArgumentException("Metrics period must be at least 0");
+		}
+		this.periodSeconds = periodSeconds;
+		this.out = out;
+		// starting the platform MBean server takes a while, which the first packet should not wait for
+		server = ManagementFactory.getPlatformMBeanServer();
+	}
+
+	/**
+	 * Starts exporting the metrics of a connection
+	 */
+	public synchronized void add(RCMPMetrics metrics) {
+		connections.add(metrics);
+		try {
+			server.registerMBean(metrics, name(metrics));
+		} catch (JMException e) {
+			// a connection id seen twice keeps its first registration, and is only logged
+			System.err.println("Cannot export metrics through JMX: " + e.getMessage());
+		}
+		if (periodSeconds > 0 && thread == null) {
+			thread = new Thread(this::report, "RCMP metrics");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops exporting the metrics of a connection that is done, printing them
+	 * one last time
+	 */
+	public synchronized void remove(RCMPMetrics metrics) {
+		if (!connections.remove(metrics)) {
+			return;
+		}
+		metrics.finish();
+		out.println(metrics.toLogLine());
+		try {
+			if (server.isRegistered(name(metrics))) {
+				server.unregisterMBean(name(metrics));
+			}
+		} catch (JMException e) {
+			System.err.println("Cannot export metrics through JMX: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Runs on the reporter's thread: prints every connection once per period
+	 */
+	private void report() {
+		while (true) {
+			try {
+				Thread.sleep(periodSeconds * 1000L);
+			} catch (InterruptedException e) {
+				return;
+			}
+			for (RCMPMetrics metrics : connections) {
+				out.println(metrics.toLogLine());
+			}
+		}
+	}
+
+	private static ObjectName name(RCMPMetrics metrics) throws JMException {
+		return new ObjectName("RCMP:type=" + metrics.getRole() + ",connection="
+				+ Integer.toUnsignedString(metrics.getConnectionID()));
+	}
+}
@@ -0,0 +1,412 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class implements a UDP relay that behaves like a network between an
+ * RCMP sender and receiver on the same machine. Senders send to the relay's
+ * port instead of the receiver's, and the relay passes their datagrams on to
+ * the receiver and the receiver's replies back, losing, duplicating, delaying
+ * and reordering them and holding them to the speed of the link as an
+ * RCMPNetworkProfile describes. Each sender address gets a port of its own
+ * toward the receiver, so the receiver can tell the senders apart and the
+ * relay knows where every reply goes
+ *
+ * A relay thread receives the datagrams and decides their fate, and a
+ * delivery thread sends each one once its time has come. The link is a
+ * drop-tail queue in each direction: a datagram that finds more than the
+ * profile's queue waiting for the link is lost. Jitter only ever delays a
+ * datagram until the one before it has arrived, so only the datagrams the
+ * profile reorders arrive out of order. The random choices are seeded, so a
+ * run can be repeated
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPNetworkEmulator {
+
+    // the largest datagram relayed, and the size of a full datagram on the link's queue
+    public static final int MAXDATAGRAM = 65535;
+    public static final int QUEUEDATAGRAM = 1500;
+
+    // the directions of the link: from the senders to the receiver, and back
+    private static final int FORWARD = 0;
+    private static final int BACKWARD = 1;
+
+    private InetSocketAddress target;
+    private RCMPNetworkProfile profile;
+    private Random random;
+
+    private DatagramChannel listen;
+    private Selector selector;
+    // the channel each sender's datagrams leave toward the receiver from, by sender address
+    private HashMap<SocketAddress, DatagramChannel> upstreams = new HashMap<>();
+
+    // the datagrams waiting to arrive, and when each direction of the link is next free and
+    // when its last datagram arrives, from System.nanoTime()
+    private DelayQueue<Datagram> scheduled = new DelayQueue<>();
+    private long[] linkFree = new long[2];
+    private long[] lastArrival = new long[2];
+    private long sequence = 0;
+
+    private volatile boolean running;
+    private Thread relay;
+    private Thread delivery;
+
+    // what happened to the datagrams, over both directions
+    private LongAdder relayed = new LongAdder();
+    private LongAdder lost = new LongAdder();
+    private LongAdder overflowed = new LongAdder();
+    private LongAdder duplicated = new LongAdder();
+    private LongAdder reordered = new LongAdder();
+
+    public static void main(String[] args) {
+
+        // make sure the user specifies the correct
+        // number of command line arguments
+        if (args.length < 3) {
+            System.err.println("Usage: java RCMPNetworkEmulator <portNum> <targetHost> <targetPort> [-profile <name>]"
+                    + " [-loss <%>] [-dup <%>] [-reorder <%>] [-delay <ms>] [-jitter <ms>] [-rate <Mbit/s>]"
+                    + " [-queue <packets>] [-seed <number>]");
+            System.exit(0);
+        }
+
+        int portNum = (int) parseNumber(args[0], "port number");
+        int targetPort = (int) parseNumber(args[2], "target port number");
+        RCMPNetworkProfile profile = new RCMPNetworkProfile();
+        long seed = System.nanoTime();
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].equals("-profile") && i + 1 < args.length) {
+                // a named profile is a starting point the options after it change
+                profile = RCMPNetworkProfile.named(args[++i]);
+                if (profile == null) {
+                    System.err.println("Unknown profile: " + args[i] + ", expected one of "
+                            + String.join(", ", RCMPNetworkProfile.NAMES));
+                    System.exit(0);
+                }
+            } else if (args[i].equals("-loss") && i + 1 < args.length) {
+                profile.loss = parseNumber(args[++i], "loss") / 100;
+            } else if (args[i].equals("-dup") && i + 1 < args.length) {
+                profile.duplication = parseNumber(args[++i], "duplication") / 100;
+            } else if (args[i].equals("-reorder") && i + 1 < args.length) {
+                profile.reordering = parseNumber(args[++i], "reordering") / 100;
+            } else if (args[i].equals("-delay") && i + 1 < args.length) {
+                profile.delay = (long) (parseNumber(args[++i], "delay") * 1000);
+            } else if (args[i].equals("-jitter") && i + 1 < args.length) {
+                profile.jitter = (long) (parseNumber(args[++i], "jitter") * 1000);
+            } else if (args[i].equals("-rate") && i + 1 < args.length) {
+                profile.bandwidth = (long) (parseNumber(args[++i], "link rate") * 1000000);
+            } else if (args[i].equals("-queue") && i + 1 < args.length) {
+                profile.queuePackets = (int) parseNumber(args[++i], "queue size");
+            } else if (args[i].equals("-seed") && i + 1 < args.length) {
+                seed = (long) parseNumber(args[++i], "seed");
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(0);
+            }
+        }
+
+        try {
+            RCMPNetworkEmulator emulator = new RCMPNetworkEmulator(new InetSocketAddress(args[1], targetPort),
+                    profile, seed);
+            emulator.start(portNum);
+            System.out.println("Relaying port " + portNum + " to " + args[1] + ":" + targetPort + " with " + profile);
+            // report what the network did to the datagrams once we are stopped
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(emulator)));
+            emulator.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(0);
+        } catch (IOException e) {
+            System.err.println("Error creating socket with port number " + portNum + ": " + e);
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Creates a relay toward the given receiver
+     *
+     * @param target where the receiver listens
+     * @param profile how the network behaves
+     * @param seed the seed of the random choices
+     */
+    public RCMPNetworkEmulator(InetSocketAddress target, RCMPNetworkProfile profile, long seed) {
+        profile.validate();
+        if (target.isUnresolved()) {
+            throw new IllegalArgumentException("Unknown host: " + target.getHostString());
+        }
+        this.target = target;
+        this.profile = profile;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Binds the port senders send to and starts relaying
+     *
+     * @param portNum the port to bind, or 0 for any free one
+     */
+    public void start(int portNum) throws IOException {
+        listen = DatagramChannel.open();
+        listen.bind(new InetSocketAddress(portNum));
+        listen.configureBlocking(false);
+        selector = Selector.open();
+        listen.register(selector, SelectionKey.OP_READ);
+
+        running = true;
+        relay = new Thread(this::relay, "RCMP emulator relay");
+        relay.setDaemon(true);
+        relay.start();
+        delivery = new Thread(this::deliver, "RCMP emulator delivery");
+        delivery.setDaemon(true);
+        delivery.start();
+    }
+
+    /**
+     * Waits until the relay stops, which it only does once closed
+     */
+    public void join() throws InterruptedException {
+        relay.join();
+    }
+
+    /**
+     * Returns the port senders send to
+     */
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) listen.getLocalAddress()).getPort();
+    }
+
+    public long getRelayed() {
+        return relayed.sum();
+    }
+
+    /**
+     * Returns how many datagrams were lost, at random or because the link's queue was full
+     */
+    public long getLost() {
+        return lost.sum() + overflowed.sum();
+    }
+
+    public long getDuplicated() {
+        return duplicated.sum();
+    }
+
+    public long getReordered() {
+        return reordered.sum();
+    }
+
+    /**
+     * Stops relaying and closes every channel, dropping the datagrams still on their way
+     */
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            relay.join();
+            delivery.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        selector.close();
+        listen.close();
+        for (DatagramChannel upstream : upstreams.values()) {
+            upstream.close();
+        }
+    }
+
+    public String toString() {
+        return String.format("%d datagrams relayed, %d lost at random, %d lost to a full queue, %d duplicated,"
+                + " %d reordered", relayed.sum(), lost.sum(), overflowed.sum(), duplicated.sum(), reordered.sum());
+    }
+
+    /**
+     * Runs on the relay thread: receives every datagram from the senders and
+     * from the receiver and schedules its arrival at the other end
+     */
+    private void relay() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAXDATAGRAM);
+        try {
+            while (running) {
+                selector.select(100);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    while (true) {
+                        buffer.clear();
+                        SocketAddress from;
+                        try {
+                            from = channel.receive(buffer);
+                        } catch (IOException e) {
+                            // the receiver is gone for now, which a network does not tell anyone
+                            break;
+                        }
+                        if (from == null) {
+                            break;
+                        }
+                        buffer.flip();
+                        if (channel == listen) {
+                            schedule(FORWARD, buffer, upstream(from), null);
+                        } else {
+                            schedule(BACKWARD, buffer, listen, (SocketAddress) key.attachment());
+                        }
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("Error relaying datagrams: " + e);
+            }
+        }
+    }
+
+    /**
+     * Returns the channel a sender's datagrams go to the receiver from,
+     * opening it on the sender's first datagram
+     */
+    private DatagramChannel upstream(SocketAddress sender) throws IOException {
+        DatagramChannel upstream = upstreams.get(sender);
+        if (upstream == null) {
+            upstream = DatagramChannel.open();
+            upstream.connect(target);
+            upstream.configureBlocking(false);
+            upstream.register(selector, SelectionKey.OP_READ, sender);
+            upstreams.put(sender, upstream);
+        }
+        return upstream;
+    }
+
+    /**
+     * Decides what happens to a datagram on its way in one direction, and
+     * schedules its arrival, twice if it is duplicated, unless it is lost
+     *
+     * @param direction FORWARD or BACKWARD
+     * @param buffer the datagram, between its position and limit
+     * @param out the channel to send it on
+     * @param to where to send it, or null if the channel is connected
+     */
+    private void schedule(int direction, ByteBuffer buffer, DatagramChannel out, SocketAddress to) {
+        if (random.nextDouble() < profile.loss) {
+            lost.increment();
+            return;
+        }
+        int copies = 1;
+        if (random.nextDouble() < profile.duplication) {
+            duplicated.increment();
+            copies = 2;
+        }
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        for (int copy = 0; copy < copies; copy++) {
+            long now = System.nanoTime(), departure = now;
+            if (profile.bandwidth > 0) {
+                // a datagram that finds the queue full is dropped, and the others wait for the link
+                long queueNanos = profile.queuePackets * QUEUEDATAGRAM * 8L * 1000000000L / profile.bandwidth;
+                if (linkFree[direction] - now > queueNanos) {
+                    overflowed.increment();
+                    continue;
+                }
+                departure = Math.max(now, linkFree[direction]) + data.length * 8L * 1000000000L / profile.bandwidth;
+                linkFree[direction] = departure;
+            }
+            long arrival = departure + profile.delay * 1000;
+            if (profile.jitter > 0) {
+                arrival += (long) (random.nextDouble() * profile.jitter * 1000);
+            }
+            if (random.nextDouble() < profile.reordering) {
+                reordered.increment();
+                arrival += profile.reorderDelay * 1000;
+            } else {
+                arrival = Math.max(arrival, lastArrival[direction]);
+                lastArrival[direction] = arrival;
+            }
+            scheduled.add(new Datagram(arrival, sequence++, data, out, to));
+        }
+    }
+
+    /**
+     * Runs on the delivery thread: sends every datagram once it arrives
+     */
+    private void deliver() {
+        while (running) {
+            Datagram datagram;
+            try {
+                datagram = scheduled.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (datagram == null) {
+                continue;
+            }
+            try {
+                ByteBuffer data = ByteBuffer.wrap(datagram.data);
+                if (datagram.to == null) {
+                    datagram.channel.write(data);
+                } else {
+                    datagram.channel.send(data, datagram.to);
+                }
+                relayed.increment();
+            } catch (IOException e) {
+                // lost on the way, like any other datagram a network fails to deliver
+            }
+        }
+    }
+
+    /**
+     * Converts a numeric command line option to a double, exiting with an
+     * error message when it isn't one
+     *
+     * @param value the value given on the command line
+     * @param name what the value is used for
+     */
+    private static double parseNumber(String value, String name) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Cannot convert " + value + " to a number to use for " + name);
+            System.exit(0);
+            return -1;
+        }
+    }
+
+    /**
+     * A datagram on its way, ordered by when it arrives and then by when it was sent
+     */
+    private static class Datagram implements Delayed {
+        private long arrival;
+        private long sequence;
+        private byte[] data;
+        private DatagramChannel channel;
+        private SocketAddress to;
+
+        public Datagram(long arrival, long sequence, byte[] data, DatagramChannel channel, SocketAddress to) {
+            this.arrival = arrival;
+            this.sequence = sequence;
+            this.data = data;
+            this.channel = channel;
+            this.to = to;
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(arrival - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        public int compareTo(Delayed other) {
+            Datagram datagram = (Datagram) other;
+            if (arrival != datagram.arrival) {
+                return arrival - datagram.arrival < 0 ? -1 : 1;
+            }
+            return Long.compare(sequence, datagram.sequence);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * This class holds how an RCMPNetworkEmulator treats the datagrams it
+ * relays: how many it loses, duplicates and reorders, how long they take to
+ * cross and how fast the link between the two ends is. Both directions of the
+ * emulated link behave the same way, so ACKs are lost and delayed just like
+ * the packets they ACK. A few named profiles describe typical networks
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPNetworkProfile {
+
+    // the names of the profiles named() knows
+    public static final String[] NAMES = { "clean", "lan", "wan", "lossy", "satellite" };
+
+    // the fraction of datagrams lost, sent twice, and held back so that later ones overtake them
+    public double loss = 0;
+    public double duplication = 0;
+    public double reordering = 0;
+
+    // the one-way delay every datagram takes, how much more it takes at random on top of that,
+    // and how much longer a reordered datagram is held back, in microseconds
+    public long delay = 0;
+    public long jitter = 0;
+    public long reorderDelay = 5000;
+
+    // the speed of the link in bits per second, or 0 for no limit, and how many full datagrams
+    // may queue for it before any more are dropped
+    public long bandwidth = 0;
+    public int queuePackets = 256;
+
+    /**
+     * Returns a copy of a named profile, or null if there is none by that name:
+     * clean relays everything at once, lan adds a fast link, wan a long one
+     * that loses a few datagrams, lossy a slower one that loses, reorders
+     * and duplicates many, and satellite a very long one
+     *
+     * @param name one of NAMES
+     */
+    public static RCMPNetworkProfile named(String name) {
+        RCMPNetworkProfile profile = new RCMPNetworkProfile();
+        if (name.equals("clean")) {
+            return profile;
+        } else if (name.equals("lan")) {
+            profile.delay = 100;
+            profile.jitter = 50;
+            profile.bandwidth = 1000000000L;
+        } else if (name.equals("wan")) {
+            profile.delay = 20000;
+            profile.jitter = 2000;
+            profile.bandwidth = 100000000L;
+            profile.loss = 0.001;
+        } else if (name.equals("lossy")) {
+            profile.delay = 10000;
+            profile.jitter = 5000;
+            profile.bandwidth = 50000000L;
+            profile.loss = 0.02;
+            profile.reordering = 0.01;
+            profile.duplication = 0.005;
+        } else if (name.equals("satellite")) {
+            profile.delay = 300000;
+            profile.jitter = 10000;
+            profile.bandwidth = 20000000L;
+            profile.loss = 0.005;
+            profile.queuePackets = 2048;
+        } else {
+            return null;
+        }
+        return profile;
+    }
+
+    /**
+     * Checks that every setting is in range
+     */
+    public void validate() {
+        if (loss < 0 || loss > 1 || duplication < 0 || duplication > 1 || reordering < 0 || reordering > 1) {
+            throw new IllegalArgumentException("Loss, duplication and reordering must be between 0 and 100%");
+        }
+        if (delay < 0 || jitter < 0 || reorderDelay < 0 || bandwidth < 0 || queuePackets < 1) {
+            throw new IllegalArgumentException("Delays and the bandwidth cannot be negative, and the queue must hold"
+                    + " at least 1 datagram");
+        }
+    }
+
+    public String toString() {
+        return String.format("loss %.2f%%, duplication %.2f%%, reordering %.2f%%, delay %.1f ms, jitter %.1f ms, %s",
+                loss * 100, duplication * 100, reordering * 100, delay / 1000.0, jitter / 1000.0,
+                bandwidth == 0 ? "no bandwidth limit" : String.format("%.0f Mbit/s", bandwidth / 1e6));
+    }
+}
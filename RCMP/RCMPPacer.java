@@ -0,0 +1,99 @@
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class implements a token bucket that paces the packets of an RCMP
+ * sender: instead of a window of packets leaving back to back, each packet is
+ * given a send time so that they go out evenly spaced at the target rate. A
+ * link that has been idle builds up credit for a small burst, but no more, so
+ * switch and socket buffers only ever see a couple of packets at once
+ *
+ * Send times are kept in System.nanoTime() and waited out by parking the
+ * thread until shortly before them and spinning the rest of the way, since
+ * Thread.sleep() and timed waits can oversleep by a millisecond or more, which
+ * is longer than a packet takes at the rates worth pacing. A pacer may be
+ * shared by several streams, which then share its rate
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPPacer {
+
+    // how many full packets may go out back to back after the link sat idle
+    public static final int BURSTPACKETS = 2;
+    // how long before a send time we stop parking and spin, in nanoseconds
+    public static final long SPINNANOS = 50000;
+
+    private static final long NANOSPERSECOND = 1000000000L;
+
+    // the rate in bytes per second, or 0 to let packets go as fast as they come
+    private long rate;
+    private int burstBytes;
+
+    // when the next packet may go out, from System.nanoTime()
+    private long nextSendTime = System.nanoTime();
+
+    /**
+     * Creates a pacer
+     *
+     * @param bytesPerSecond the rate to pace at, or 0 not to pace until a rate is set
+     * @param burstBytes how many bytes may go out at once after the link sat idle
+     */
+    public RCMPPacer(long bytesPerSecond, int burstBytes) {
+        if (bytesPerSecond < 0 || burstBytes < 0) {
+            throw new IllegalArgumentException("Pacing rate and burst size cannot be negative");
+        }
+        this.rate = bytesPerSecond;
+        this.burstBytes = burstBytes;
+    }
+
+    /**
+     * Changes the rate, which applies from the next packet on
+     *
+     * @param bytesPerSecond the rate to pace at, or 0 to stop pacing
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        rate = Math.max(0, bytesPerSecond);
+    }
+
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * Books the next slot on the link for a packet and returns the
+     * System.nanoTime() it may be sent at, which may be in the past
+     *
+     * @param bytes the size of the packet
+     */
+    public synchronized long reserve(int bytes) {
+        long now = System.nanoTime();
+        if (rate <= 0) {
+            nextSendTime = now;
+            return now;
+        }
+        // a link that sat idle may catch up by one burst, but not by everything it missed
+        long sendTime = Math.max(nextSendTime, now - burstBytes * NANOSPERSECOND / rate);
+        nextSendTime = sendTime + bytes * NANOSPERSECOND / rate;
+        return sendTime;
+    }
+
+    /**
+     * Waits until the given time, parking the thread while it is far off and
+     * spinning once it is close
+     *
+     * @param time the System.nanoTime() to wait for
+     */
+    public static void waitUntil(long time) {
+        while (true) {
+            long left = time - System.nanoTime();
+            if (left <= 0) {
+                return;
+            }
+            if (left > SPINNANOS) {
+                LockSupport.parkNanos(left - SPINNANOS);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+}
@@ -0,0 +1,491 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+
+/**
+ * This class implements an RCMP sender that splits a file into ranges and
+ * sends every range over its own stream at the same time. Each stream is a
+ * selective-repeat connection of its own, with its own connection id, socket,
+ * window, RTT estimate and congestion control, so a loss on one stream does
+ * not hold back the others. With a single stream the file is sent as one
+ * ordinary connection that any receiver understands. Before sending, the
+ * receiver is asked for a payload size other than the default, which can
+ * first be probed for by finding the largest packets that get through to
+ * it. A resumable transfer asks the receiver which packets of the file it
+ * already has instead, and none of the streams send those again
+ *
+ * Every transfer but that of a small file that needs nothing agreed on
+ * starts with a hello, in which the sender asks for the payload size, window
+ * and features it wants and the receiver answers with the ones it agrees to,
+ * and the transfer goes ahead with those. A small file with the default
+ * payload size over one stream goes out at once instead, since its packets
+ * say which features they use and every receiver of this version takes them.
+ * A receiver that does not answer the hello knows nothing of it, and is sent
+ * the file as before
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPParallelSender {
+
+    // the MTUs of common links, whose payload sizes are probed below the largest one allowed
+    public static final int[] PROBEMTUS = { 9000, 4352, 1500 };
+    // the bytes taken by the IP and UDP headers of an IPv4 and of an IPv6 packet
+    public static final int IPV4OVERHEAD = 28;
+    public static final int IPV6OVERHEAD = 48;
+    // the largest file sent without a hello, and how many times a hello is sent before the
+    // receiver is taken to know nothing of it
+    public static final int ZERORTTSIZE = 64 * 1024;
+    public static final int HELLOATTEMPTS = 3;
+
+    private InetSocketAddress address;
+    private RCMPReadable fin;
+    private RCMPSenderOptions options;
+
+    // the identity of the file when the transfer may be resumed, and what the receiver already has
+    private long fileID;
+    private boolean resume = false;
+    private RCMPJournal received;
+
+    // the payload size the receiver agreed to
+    private int packetSize = RCMPHeader.PACKETSIZE;
+
+    // the result of every stream, and the first error one of them ran into
+    private boolean[] results;
+    private IOException failure;
+
+    // how many packets and ACKs the streams handled per batch, counted over all of them
+    private RCMPBatchStats transmitStats = new RCMPBatchStats();
+    private RCMPBatchStats ackStats = new RCMPBatchStats();
+
+    // where every stream's metrics are exported while it runs, if anywhere
+    private RCMPMetricsReporter reporter;
+
+    // the socket a transfer over one stream is sent over, if the caller keeps one for it
+    private DatagramChannel channel;
+
+    public RCMPParallelSender(InetSocketAddress address, RCMPReadable fin, RCMPSenderOptions options) {
+        if (options.streams < 1 || options.streams > RCMPHeader.MAXSTREAMS) {
+            throw new IllegalArgumentException("Streams must be between 1 and " + RCMPHeader.MAXSTREAMS);
+        }
+        this.address = address;
+        this.fin = fin;
+        this.options = options.copy();
+    }
+
+    /**
+     * Makes the transfer resumable: before sending, the receiver is asked which
+     * packets of the file with the given identity it already has
+     *
+     * @param fileID the identity of the file, from RCMPJournal.identify()
+     */
+    public void setResume(long fileID) {
+        this.fileID = fileID;
+        this.resume = true;
+    }
+
+    /**
+     * Makes every stream export its metrics through the given reporter for as
+     * long as it runs
+     */
+    public void setMetrics(RCMPMetricsReporter reporter) {
+        this.reporter = reporter;
+    }
+
+    /**
+     * Sends the file over the given socket, already connected to the
+     * receiver, if it ends up going over one stream, so that a caller sending
+     * many files does not open a socket for each. The socket is left open.
+     * ACKs for an earlier transfer that still arrive on it carry another
+     * connection id, and are ignored
+     */
+    public void setChannel(DatagramChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Returns how many packets the streams sent per batch
+     */
+    public RCMPBatchStats getTransmitStats() {
+        return transmitStats;
+    }
+
+    /**
+     * Returns how many ACKs the streams processed per batch
+     */
+    public RCMPBatchStats getAckStats() {
+        return ackStats;
+    }
+
+    /**
+     * Sends the whole file, returning true once every stream has been ACKed
+     * completely and false if any of them gave up without knowing whether its
+     * range arrived
+     */
+    public boolean send() throws IOException {
+        long fileSize = fin.size();
+        int connectionID = new Random().nextInt();
+
+        // agree on the payload size, window and features, unless the file is small enough to go
+        // out at once. A resumed transfer takes the payload size from the receiver's journal
+        int requested = options.probe ? probePacketSize(connectionID) : options.packetSize;
+        boolean agreed = false;
+        if (fileSize > ZERORTTSIZE || requested != RCMPHeader.PACKETSIZE || resume || options.streams > 1) {
+            agreed = handshake(connectionID, fileSize, requested);
+        }
+        if (resume) {
+            received = queryReceived(connectionID, fileSize, requested);
+        }
+        if (received != null) {
+            packetSize = received.getPacketSize();
+        } else if (!agreed && requested != RCMPHeader.PACKETSIZE) {
+            packetSize = negotiatePacketSize(connectionID, fileSize, requested);
+        }
+        if (options.streams == 1) {
+            return sendRange(connectionID, 0, 0, fileSize, -1);
+        }
+
+        // split the file into whole packets, giving no stream less than one
+        long totalPackets = Math.max(1, (fileSize + packetSize - 1) / packetSize);
+        int streams = (int) Math.min(options.streams, totalPackets);
+        long packetsPerStream = (totalPackets + streams - 1) / streams;
+        streams = (int) ((totalPackets + packetsPerStream - 1) / packetsPerStream);
+
+        results = new boolean[streams];
+        Thread[] threads = new Thread[streams];
+        for (int i = 0; i < streams; i++) {
+            int stream = i;
+            long offset = Math.min(fileSize, i * packetsPerStream * packetSize);
+            long length = Math.min(fileSize - offset, packetsPerStream * packetSize);
+            threads[i] = new Thread(() -> {
+                try {
+                    results[stream] = sendRange(connectionID, stream, offset, length, fileSize);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }, "RCMP stream " + i);
+            threads[i].start();
+        }
+
+        boolean success = true;
+        for (int i = 0; i < streams; i++) {
+            try {
+                threads[i].join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the streams to finish");
+            }
+            success &= results[i];
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return success;
+    }
+
+    /**
+     * Sends one range of the file over a connection of its own, on the
+     * caller's socket if the range is the whole file and there is one
+     *
+     * @param transferID the id of the transfer, which the first stream uses as its connection id
+     * @param stream the number of the stream
+     * @param offset where the range starts in the file
+     * @param length how many bytes the range holds
+     * @param totalSize the size of the whole file, or -1 to send the range as a plain file
+     */
+    private boolean sendRange(int transferID, int stream, long offset, long length, long totalSize)
+            throws IOException {
+        if (channel != null && totalSize < 0) {
+            return sendRange(channel, transferID, stream, offset, length, totalSize);
+        }
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.connect(address);
+            return sendRange(channel, transferID, stream, offset, length, totalSize);
+        }
+    }
+
+    /**
+     * Sends one range of the file over the given connected socket
+     */
+    private boolean sendRange(DatagramChannel channel, int transferID, int stream, long offset, long length,
+            long totalSize) throws IOException {
+        RCMPSelectiveSender sender = new RCMPSelectiveSender(channel,
+                options.createSource(fin, offset, length, packetSize), transferID + stream, options.windowSize,
+                options.sack, options.createRtt(), options.createCongestion());
+        if (totalSize >= 0) {
+            sender.setRange(transferID, offset, totalSize);
+        }
+        sender.setReceived(received);
+        sender.setChecksums(options.checksums);
+        sender.setCompressed(options.compression >= 0);
+        sender.setPacer(options.createPacer(packetSize), options.pace);
+        sender.setBatchStats(transmitStats, ackStats);
+        if (options.parityBlock > 0) {
+            sender.setParity(options.parityBlock, options.parityCount);
+        }
+        if (reporter == null) {
+            return sender.send();
+        }
+        reporter.add(sender.getMetrics());
+        try {
+            return sender.send();
+        } finally {
+            reporter.remove(sender.getMetrics());
+        }
+    }
+
+    /**
+     * Says hello to the receiver, asking for the payload size, the window and
+     * the features of the options, and narrows the options down to what the
+     * receiver agreed to. Returns false if the receiver never answers, and
+     * the options are left as they are
+     *
+     * @param transferID the id of the transfer
+     * @param fileSize the size of the file
+     * @param requested the payload size to ask for
+     */
+    private boolean handshake(int transferID, long fileSize, int requested) throws IOException {
+        int wanted = options.getFeatures(resume);
+        ByteBuffer query = createQuery(transferID, fileSize, RCMPHeader.HELLOQUERY, RCMPHeader.HELLOQUERYSIZE);
+        query.put(RCMPHeader.VERSION);
+        query.putInt(wanted);
+        query.putInt(requested);
+        query.putInt(options.windowSize);
+        query.putLong(fileSize);
+
+        ByteBuffer reply = request(query, transferID, RCMPHeader.HELLOTYPE, HELLOATTEMPTS);
+        if (reply == null || reply.remaining() < RCMPHeader.HELLOREPLYSIZE - 5) {
+            System.out.println("Receiver did not answer the hello, sending without one");
+            return false;
+        }
+        int version = reply.get(), features = reply.getInt(), agreed = reply.getInt(), window = reply.getInt();
+        if (version < 1 || agreed < RCMPHeader.MINPACKETSIZE || agreed > requested || window < 1) {
+            System.out.println("Receiver answered the hello with nothing we can use, sending without one");
+            return false;
+        }
+        packetSize = agreed;
+        options.windowSize = Math.min(options.windowSize, window);
+        options.restrictTo(features);
+        resume &= (features & RCMPHeader.RESUMEFEATURE) != 0;
+        if ((wanted & ~features) != 0) {
+            System.out.println("Receiver turned down some of the features asked for, sending without them");
+        }
+        return true;
+    }
+
+    /**
+     * Asks the receiver which packets of the file it already has, and for a
+     * payload size, which it ignores if an earlier attempt used another one.
+     * Returns null if the receiver never answers, so the whole file is sent
+     *
+     * @param transferID the id of the transfer
+     * @param fileSize the size of the file
+     * @param requested the payload size to ask for
+     */
+    private RCMPJournal queryReceived(int transferID, long fileSize, int requested) throws IOException {
+        ByteBuffer query = createQuery(transferID, fileSize, RCMPHeader.RESUMEQUERY, RCMPHeader.RESUMEQUERYSIZE);
+        query.putLong(fileID);
+        query.putLong(fileSize);
+        query.putInt(requested);
+
+        ByteBuffer reply = request(query, transferID, RCMPHeader.RESUMETYPE);
+        if (reply != null && reply.remaining() >= 16) {
+            RCMPJournal journal = RCMPJournal.read(reply);
+            if (journal.getFileID() == fileID && journal.getPacketSize() >= RCMPHeader.MINPACKETSIZE
+                    && journal.getPacketSize() <= RCMPHeader.MAXPACKETSIZE) {
+                return journal;
+            }
+        }
+        System.out.println("Receiver did not answer the resume request, sending the whole file");
+        return null;
+    }
+
+    /**
+     * Asks the receiver for a payload size, returning the one it agreed to,
+     * which may be smaller. Returns PACKETSIZE if the receiver never answers,
+     * since receivers that know nothing of payload sizes expect that
+     *
+     * @param transferID the id of the transfer
+     * @param fileSize the size of the file
+     * @param requested the payload size to ask for
+     */
+    private int negotiatePacketSize(int transferID, long fileSize, int requested) throws IOException {
+        ByteBuffer query = createQuery(transferID, fileSize, RCMPHeader.SIZEQUERY, RCMPHeader.SIZEQUERYSIZE);
+        query.putInt(requested);
+        query.putLong(fileSize);
+
+        ByteBuffer reply = request(query, transferID, RCMPHeader.SIZETYPE);
+        if (reply != null) {
+            int agreed = reply.getInt();
+            if (agreed >= RCMPHeader.MINPACKETSIZE && agreed <= requested) {
+                return agreed;
+            }
+        }
+        System.out.println("Receiver did not agree to a payload size, sending " + RCMPHeader.PACKETSIZE
+                + "-byte payloads");
+        return RCMPHeader.PACKETSIZE;
+    }
+
+    /**
+     * Finds the largest payload size that gets through to the receiver, up to
+     * the one in the options and to what the MTU of the interface towards the
+     * receiver allows. A probe padded to the size of a packet with the
+     * largest header is sent for that size and for the payload size of each
+     * common MTU below it, and the largest probe the receiver says arrived
+     * wins. Java cannot set the don't-fragment bit, so this finds the sizes
+     * whose fragments get through rather than those that need no
+     * fragmenting, which the interface MTU at least rules out on this side.
+     * Returns PACKETSIZE if no probe is answered
+     *
+     * @param transferID the id of the transfer
+     */
+    private int probePacketSize(int transferID) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(address);
+
+            // no payload larger than the local link carries in one frame is worth probing
+            int largest = options.packetSize;
+            NetworkInterface local = NetworkInterface.getByInetAddress(socket.getLocalAddress());
+            int overhead = socket.getLocalAddress() instanceof Inet6Address ? IPV6OVERHEAD : IPV4OVERHEAD;
+            if (local != null && local.getMTU() > 0) {
+                largest = Math.min(largest, local.getMTU() - overhead - RCMPHeader.MAXHEADERSIZE);
+            }
+            int[] sizes = new int[PROBEMTUS.length + 1];
+            int count = 0;
+            sizes[count++] = largest;
+            for (int mtu : PROBEMTUS) {
+                int size = mtu - overhead - RCMPHeader.MAXHEADERSIZE;
+                if (size < largest) {
+                    sizes[count++] = size;
+                }
+            }
+
+            byte[] probe = new byte[RCMPHeader.MAXHEADERSIZE + largest];
+            byte[] reply = new byte[RCMPHeader.SIZEREPLYSIZE];
+            DatagramPacket replyPacket = new DatagramPacket(reply, reply.length);
+            RCMPRttEstimator rtt = options.createRtt();
+            int best = -1;
+            for (int attempt = 0; attempt < RCMPSelectiveSender.MAXTIMEOUTS && best < 0; attempt++) {
+                for (int i = 0; i < count; i++) {
+                    if (sizes[i] >= RCMPHeader.MINPACKETSIZE) {
+                        ByteBuffer query = createQuery(transferID, 0, RCMPHeader.PROBEQUERY,
+                                RCMPHeader.PROBEQUERYSIZE);
+                        query.putInt(sizes[i]);
+                        System.arraycopy(query.array(), 0, probe, 0, RCMPHeader.PROBEQUERYSIZE);
+                        socket.send(new DatagramPacket(probe, RCMPHeader.MAXHEADERSIZE + sizes[i]));
+                    }
+                }
+
+                // give every probe the whole timeout to be answered, unless the largest is
+                long deadline = System.nanoTime() + rtt.getTimeoutNanos();
+                try {
+                    while (best < largest) {
+                        socket.setSoTimeout((int) Math.max(1, (deadline - System.nanoTime()) / 1000000));
+                        replyPacket.setLength(reply.length);
+                        socket.receive(replyPacket);
+                        ByteBuffer buffer = ByteBuffer.wrap(reply, 0, replyPacket.getLength());
+                        if (buffer.remaining() >= RCMPHeader.SIZEREPLYSIZE && buffer.getInt() == transferID
+                                && buffer.get() == RCMPHeader.PROBETYPE) {
+                            int size = buffer.getInt();
+                            if (size <= largest) {
+                                best = Math.max(best, size);
+                            }
+                        }
+                    }
+                } catch (SocketTimeoutException e) {
+                    rtt.backoff();
+                }
+            }
+            if (best < 0) {
+                System.out.println("Receiver did not answer any probe, sending " + RCMPHeader.PACKETSIZE
+                        + "-byte payloads");
+                return RCMPHeader.PACKETSIZE;
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Creates a control packet of the given type and size, with the header
+     * and type filled in
+     *
+     * @param transferID the id of the transfer
+     * @param fileSize the size of the file
+     * @param type the type of the control packet
+     * @param size the size of the control packet
+     */
+    private static ByteBuffer createQuery(int transferID, long fileSize, byte type, int size) {
+        ByteBuffer query = ByteBuffer.allocate(size);
+        query.putInt(transferID);
+        query.putInt((int) fileSize);
+        // an all-ones packet number makes receivers that know nothing of control packets drop it
+        query.putInt(-1);
+        query.put(RCMPHeader.CONTROLFLAG);
+        query.put(type);
+        return query;
+    }
+
+    /**
+     * Sends a control packet to the receiver until a reply of the given type
+     * comes back, sending it again whenever the reply takes longer than the
+     * retransmission timeout. Returns the reply positioned after its type, or
+     * null if the receiver never answers
+     *
+     * @param query the control packet
+     * @param transferID the id of the transfer, which the reply carries
+     * @param type the type of reply to wait for
+     */
+    private ByteBuffer request(ByteBuffer query, int transferID, byte type) throws IOException {
+        return request(query, transferID, type, RCMPSelectiveSender.MAXTIMEOUTS);
+    }
+
+    /**
+     * Sends a control packet like request(query, transferID, type), giving
+     * up after the given number of attempts
+     *
+     * @param query the control packet
+     * @param transferID the id of the transfer, which the reply carries
+     * @param type the type of reply to wait for
+     * @param attempts how many times to send the control packet
+     */
+    private ByteBuffer request(ByteBuffer query, int transferID, byte type, int attempts) throws IOException {
+        byte[] reply = new byte[RCMPHeader.PACKETSIZE];
+        DatagramPacket replyPacket = new DatagramPacket(reply, reply.length);
+        RCMPRttEstimator rtt = options.createRtt();
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(address);
+            for (int attempt = 0; attempt < attempts; attempt++) {
+                socket.send(new DatagramPacket(query.array(), query.capacity()));
+                long deadline = System.nanoTime() + rtt.getTimeoutNanos();
+                try {
+                    while (true) {
+                        socket.setSoTimeout((int) Math.max(1, (deadline - System.nanoTime()) / 1000000));
+                        replyPacket.setLength(reply.length);
+                        socket.receive(replyPacket);
+                        ByteBuffer buffer = ByteBuffer.wrap(reply, 0, replyPacket.getLength());
+                        if (buffer.remaining() >= RCMPHeader.SIZEREPLYSIZE && buffer.getInt() == transferID
+                                && buffer.get() == type) {
+                            return buffer;
+                        }
+                    }
+                } catch (SocketTimeoutException e) {
+                    rtt.backoff();
+                }
+            }
+        }
+        return null;
+    }
+
+    private synchronized void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+import java.nio.ByteBuffer;
+
+/**
+ * This class implements the receiving side of RCMP forward error correction.
+ * A sender that uses it splits a connection's packets into blocks and sends
+ * parity packets after each block, each the XOR of one group of the block's
+ * packets: with a stride of M, group j holds every Mth packet starting at
+ * packet j of the block, so M parity packets cover a burst of up to M lost
+ * packets in a row. Instead of keeping copies of the packets, the decoder
+ * keeps a running XOR of everything received for each group, parity
+ * included, so once a group's parity has arrived and only one of its packets
+ * is missing, the running XOR is that packet
+ *
+ * Groups are kept in a ring of recent blocks and their buffers come from the
+ * window's pool. A group that is not complete when a newer block needs its
+ * place in the ring is given up, and its packet is left for the sender to
+ * retransmit
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPParityDecoder {
+
+	// the most packets a block can hold, so that the packets seen of a group fit in a long
+	public static final int MAXBLOCK = 64;
+
+	private RCMPBufferPool pool;
+	private int packetSize;
+	private int blockSize;
+	private int stride;
+
+	// the groups of the recent blocks, indexed by (block % blocks) * stride + index
+	private Group[] groups;
+	private int blocks;
+
+	// the packet rebuilt by the last call, if any
+	private long recoveredPacket;
+	private ByteBuffer recovered;
+	private int recoveredChecksum;
+
+	/**
+	 * Creates a decoder for the blocks of one connection
+	 *
+	 * @param pool the pool to take buffers for the running XORs from
+	 * @param packetSize the payload size of the connection's packets
+	 * @param blockSize how many packets a block holds
+	 * @param stride how many groups, and so parity packets, a block has
+	 */
+	public RCMPParityDecoder(RCMPBufferPool pool, int packetSize, int blockSize, int stride) {
+		if (blockSize < 1 || blockSize > MAXBLOCK || stride < 1 || stride > blockSize) {
+			throw new IllegalArgumentException("Blocks must hold between 1 and " + MAXBLOCK
+					+ " packets and have no more groups than packets");
+		}
+		this.pool = pool;
+		this.packetSize = packetSize;
+		this.blockSize = blockSize;
+		this.stride = stride;
+
+		// keep enough blocks to cover the packets a receive window can hold
+		blocks = RCMPReceiveWindow.MAXWINDOW / blockSize + 2;
+		groups = new Group[blocks * stride];
+		for (int i = 0; i < groups.length; i++) {
+			groups[i] = new Group();
+		}
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public int getStride() {
+		return stride;
+	}
+
+	/**
+	 * Folds a packet the window took for the first time into its group,
+	 * returning true if that rebuilt the group's missing packet
+	 *
+	 * @param packetNum the number of the packet
+	 * @param payload the payload, between its position and limit, which is left as it was
+	 * @param checksum the CRC32C of the packet, if it carried one
+	 */
+	public boolean add(long packetNum, ByteBuffer payload, int checksum) {
+		int offset = (int) (packetNum % blockSize);
+		Group group = find(packetNum / blockSize, offset % stride);
+		int member = offset / stride;
+		if (group == null || (group.received & (1L << member)) != 0) {
+			return false;
+		}
+		group.received |= 1L << member;
+		fold(group, payload, payload.remaining(), checksum);
+		return recover(group);
+	}
+
+	/**
+	 * Folds a parity packet into its group, returning true if that rebuilt
+	 * the group's missing packet
+	 *
+	 * @param firstPacket the first packet of the block
+	 * @param count how many packets the block holds, fewer than the block size only for the last one
+	 * @param index the group of the block the parity packet covers
+	 * @param lengths the XOR of the payload lengths of the group's packets
+	 * @param checksums the XOR of the checksums of the group's packets
+	 * @param payload the XOR of the payloads of the group's packets, between its position and limit
+	 */
+	public boolean addParity(long firstPacket, int count, int index, int lengths, int checksums, ByteBuffer payload) {
+		if (firstPacket < 0 || firstPacket % blockSize != 0 || count < 1 || count > blockSize || index >= count
+				|| index >= stride || payload.remaining() > packetSize) {
+			return false;
+		}
+		Group group = find(firstPacket / blockSize, index);
+		if (group == null || group.parity) {
+			return false;
+		}
+		group.parity = true;
+		group.members = (count - index + stride - 1) / stride;
+		fold(group, payload, lengths, checksums);
+		return recover(group);
+	}
+
+	public long getRecoveredPacket() {
+		return recoveredPacket;
+	}
+
+	/**
+	 * Returns the payload of the packet rebuilt by the last call, between its
+	 * position and limit
+	 */
+	public ByteBuffer getRecovered() {
+		return recovered;
+	}
+
+	public int getRecoveredChecksum() {
+		return recoveredChecksum;
+	}
+
+	/**
+	 * Gives the buffer of the rebuilt packet back to the pool once the window
+	 * has taken the packet
+	 */
+	public void releaseRecovered() {
+		if (recovered != null) {
+			pool.release(recovered);
+			recovered = null;
+		}
+	}
+
+	/**
+	 * Gives the buffers of every group back to the pool
+	 */
+	public void release() {
+		for (Group group : groups) {
+			group.clear(pool);
+		}
+		releaseRecovered();
+	}
+
+	/**
+	 * Returns the group of the given block, taking over its place in the ring
+	 * if an older block still holds it, or null if the block is too old or the
+	 * group is already done with
+	 */
+	private Group find(long block, int index) {
+		Group group = groups[(int) (block % blocks) * stride + index];
+		if (group.block == block) {
+			return group.done ? null : group;
+		}
+		if (group.block > block) {
+			return null;
+		}
+		group.clear(pool);
+		group.block = block;
+		group.index = index;
+		group.done = false;
+		return group;
+	}
+
+	/**
+	 * XORs a payload, its length and its checksum into a group's running XOR,
+	 * treating the payload as padded with zeros up to the payload size
+	 */
+	private void fold(Group group, ByteBuffer payload, int length, int checksum) {
+		if (group.xor == null) {
+			group.xor = pool.acquire();
+			group.xor.limit(packetSize);
+			while (group.xor.remaining() >= 8) {
+				group.xor.putLong(0);
+			}
+			while (group.xor.hasRemaining()) {
+				group.xor.put((byte) 0);
+			}
+		}
+		ByteBuffer xor = group.xor;
+		int start = payload.position(), size = payload.remaining(), i = 0;
+		for (; i + 8 <= size; i += 8) {
+			xor.putLong(i, xor.getLong(i) ^ payload.getLong(start + i));
+		}
+		for (; i < size; i++) {
+			xor.put(i, (byte) (xor.get(i) ^ payload.get(start + i)));
+		}
+		group.lengths ^= length;
+		group.checksums ^= checksum;
+	}
+
+	/**
+	 * Rebuilds the missing packet of a group whose parity has arrived if it
+	 * is the only one missing, and gives up the group's buffer once nothing
+	 * is missing
+	 */
+	private boolean recover(Group group) {
+		if (!group.parity) {
+			return false;
+		}
+		long all = group.members == 64 ? -1L : (1L << group.members) - 1;
+		int missing = group.members - Long.bitCount(group.received & all);
+		if (missing > 1) {
+			return false;
+		}
+		group.done = true;
+		if (missing == 0 || group.lengths < 0 || group.lengths > packetSize) {
+			group.clear(pool);
+			return false;
+		}
+		releaseRecovered();
+		int member = Long.numberOfTrailingZeros(~group.received);
+		recoveredPacket = group.block * blockSize + group.index + (long) member * stride;
+		recovered = group.xor;
+		recovered.limit(group.lengths).position(0);
+		recoveredChecksum = group.checksums;
+		group.xor = null;
+		return true;
+	}
+
+	/**
+	 * The running XOR of one group of a block and the packets it has seen
+	 */
+	private static class Group {
+		private long block = -1;
+		private int index;
+		private int members;
+		private long received;
+		private boolean parity;
+		private boolean done;
+		private ByteBuffer xor;
+		private int lengths;
+		private int checksums;
+
+		private void clear(RCMPBufferPool pool) {
+			if (xor != null) {
+				pool.release(xor);
+				xor = null;
+			}
+			received = 0;
+			parity = false;
+			lengths = 0;
+			checksums = 0;
+		}
+	}
+}
@@ -0,0 +1,150 @@
+import java.nio.ByteBuffer;
+
+/**
+ * This class implements the sending side of RCMP forward error correction. It
+ * splits a connection's packets into blocks and keeps one running XOR for
+ * each group of the block being sent, where with a stride of M group j holds
+ * every Mth packet starting at packet j of the block. Once the last packet of
+ * a block has been sent, the sender sends one parity packet per group, which
+ * lets the receiver rebuild any one lost packet of the group without waiting
+ * a round trip for it to be retransmitted, and a burst of up to M lost
+ * packets in a row in all. The block size and stride set the redundancy:
+ * M parity packets for every block of packets
+ *
+ * Each parity buffer starts with room for the body of the parity packet, so
+ * that a parity packet goes out as a header and one buffer like any other
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPParityEncoder {
+
+    private int blockSize;
+    private int stride;
+
+    // the body and running XOR of every group of the current block, the XOR of
+    // its packets' lengths and checksums, and the length of its longest packet
+    private ByteBuffer[] parity;
+    private int[] lengths;
+    private int[] checksums;
+    private int[] longest;
+
+    // the block being encoded, and how many of its packets have been added
+    private long block = -1;
+    private int count;
+
+    /**
+     * Creates an encoder
+     *
+     * @param blockSize how many packets a block holds
+     * @param stride how many parity packets to send per block
+     * @param packetSize the payload size of the connection's packets
+     */
+    public RCMPParityEncoder(int blockSize, int stride, int packetSize) {
+        if (blockSize < 1 || blockSize > RCMPParityDecoder.MAXBLOCK || stride < 1 || stride > blockSize) {
+            throw new IllegalArgumentException("Blocks must hold between 1 and " + RCMPParityDecoder.MAXBLOCK
+                    + " packets and have no more parity packets than packets");
+        }
+        this.blockSize = blockSize;
+        this.stride = stride;
+        parity = new ByteBuffer[stride];
+        for (int i = 0; i < stride; i++) {
+            parity[i] = ByteBuffer.allocateDirect(RCMPHeader.PARITYSIZE + packetSize);
+        }
+        lengths = new int[stride];
+        checksums = new int[stride];
+        longest = new int[stride];
+    }
+
+    /**
+     * XORs a packet into the running XOR of its group, starting over when it
+     * belongs to a new block. A block some of whose packets were skipped
+     * yields parity the receiver cannot use, but that does no harm
+     *
+     * @param packetNum the number of the packet
+     * @param payload the payload, between its position and limit, which is left as it was
+     * @param checksum the CRC32C of the packet, or 0 if it has none
+     */
+    public void add(long packetNum, ByteBuffer payload, int checksum) {
+        if (packetNum / blockSize != block) {
+            block = packetNum / blockSize;
+            count = 0;
+            for (int i = 0; i < stride; i++) {
+                ByteBuffer xor = parity[i];
+                xor.clear();
+                while (xor.remaining() >= 8) {
+                    xor.putLong(0);
+                }
+                while (xor.hasRemaining()) {
+                    xor.put((byte) 0);
+                }
+                lengths[i] = checksums[i] = longest[i] = 0;
+            }
+        }
+        int offset = (int) (packetNum % blockSize), index = offset % stride;
+        ByteBuffer xor = parity[index];
+        int start = payload.position(), size = payload.remaining(), base = RCMPHeader.PARITYSIZE, i = 0;
+        for (; i + 8 <= size; i += 8) {
+            xor.putLong(base + i, xor.getLong(base + i) ^ payload.getLong(start + i));
+        }
+        for (; i < size; i++) {
+            xor.put(base + i, (byte) (xor.get(base + i) ^ payload.get(start + i)));
+        }
+        lengths[index] ^= size;
+        checksums[index] ^= checksum;
+        longest[index] = Math.max(longest[index], size);
+        count = Math.max(count, offset + 1);
+    }
+
+    /**
+     * Returns true if the given packet ends its block, so that the block's
+     * parity packets are due once it has been sent
+     *
+     * @param packetNum the number of the packet just sent for the first time
+     * @param totalPackets how many packets the connection has, as far as is known
+     */
+    public boolean endsBlock(long packetNum, long totalPackets) {
+        return packetNum / blockSize == block && (packetNum % blockSize == blockSize - 1
+                || packetNum == totalPackets - 1);
+    }
+
+    /**
+     * Returns the last packet of the last block that ends at or before the
+     * given packet, or -1 if there is none
+     *
+     * @param packetNum the number of a packet
+     */
+    public long lastBlockEnd(long packetNum) {
+        return (packetNum + 1) / blockSize * blockSize - 1;
+    }
+
+    /**
+     * Returns the first packet of the current block
+     */
+    public long getFirstPacket() {
+        return block * blockSize;
+    }
+
+    /**
+     * Returns how many parity packets the current block has, which is fewer
+     * than the stride only when the block holds fewer packets than that
+     */
+    public int getParityCount() {
+        return Math.min(stride, count);
+    }
+
+    /**
+     * Returns one parity packet of the current block without its header: its
+     * body followed by the XOR of its group's payloads, ready to be sent
+     *
+     * @param index the group of the block
+     */
+    public ByteBuffer getParity(int index) {
+        ByteBuffer buffer = parity[index];
+        buffer.clear();
+        buffer.put((byte) blockSize).put((byte) stride).put((byte) index).put((byte) count);
+        buffer.putInt(lengths[index]).putInt(checksums[index]);
+        buffer.position(0).limit(RCMPHeader.PARITYSIZE + longest[index]);
+        return buffer;
+    }
+}
@@ -0,0 +1,31 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * This interface is implemented by whatever an RCMP sender can send as a
+ * file: a file on the disk, a directory packed into one stream, or bytes
+ * already in memory. The sources only ever read it at a position, so that
+ * the streams of one transfer can read their own ranges of it at once, and
+ * never write to it
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public interface RCMPReadable extends Closeable {
+
+    /**
+     * Reads bytes from the given position into the buffer, as many as fit or
+     * are left, without moving any position of its own. Returns how many were
+     * read, or -1 if the position is at or past the end
+     *
+     * @param dst the buffer to read into, from its position to its limit
+     * @param position where to start reading
+     */
+    int read(ByteBuffer dst, long position) throws IOException;
+
+    /**
+     * Returns the number of bytes there are to send
+     */
+    long size() throws IOException;
+}
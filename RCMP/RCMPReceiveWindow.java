@@ -0,0 +1,340 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * This class keeps track of the packets an RCMP receiver has received for one
+ * connection, which carries either a whole file or one range of it. Packets
+ * that arrive in order are written straight to the sink, and in
+ * selective-repeat mode packets that arrive ahead of a gap are held until
+ * the gap is filled instead of being dropped. Held packets are copied
+ * into buffers taken from an RCMPBufferPool and given back once written,
+ * unless the sink can write them at their own offset right away. When the
+ * transfer is resumable, every written packet is recorded in its journal, and
+ * packets the journal already lists count as received. The packets of a
+ * compressed connection are decompressed in order, and how many there are
+ * is only known once the compressed stream ends. Once the sender's first
+ * parity packet arrives, an RCMPParityDecoder rebuilds lost packets from
+ * the parity packets and the packets received around them
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPReceiveWindow {
+
+	// the largest number of packets we hold on to past the next expected packet
+	public static final int MAXWINDOW = 1024;
+
+	private RCMPSink sink;
+	private RCMPInflatingSink inflater;
+	private RCMPBufferPool pool;
+	private RCMPJournal journal;
+	private long fileSize;
+	private int packetSize;
+	private long packetOffset;
+	private long totalPackets;
+	private long nextExpectedPacket = 0;
+	private long bytesReceived = 0;
+
+	// the digest of every packet this connection has written or held
+	private RCMPDigest digest = new RCMPDigest();
+
+	// out-of-order packets, indexed by packetNum % slots.length, which is MAXWINDOW
+	// unless the connection has fewer packets. Packets a sink has already written
+	// are marked held without a buffer
+	private ByteBuffer[] slots;
+	private boolean[] held;
+	private int heldCount = 0;
+
+	// rebuilds lost packets once the sender has sent parity packets
+	private RCMPParityDecoder parity;
+
+	// where duplicates, out-of-order and rebuilt packets are counted
+	private RCMPMetrics metrics = new RCMPMetrics(RCMPMetrics.RECEIVER, 0);
+
+	/**
+	 * Creates a window for a connection whose packets belong at the given
+	 * offset of the file the sink writes. The sink has to be open already
+	 *
+	 * @param sink where to write the packets
+	 * @param fileSize the number of bytes the connection carries
+	 * @param packetSize the payload size of every packet but the last
+	 * @param packetOffset the number of packets in the file before the first one of the connection
+	 * @param pool the pool to take buffers for held packets from
+	 * @param journal the journal of a resumable transfer, or null
+	 * @param compressed whether the connection's packets are compressed
+	 */
+	public RCMPReceiveWindow(RCMPSink sink, long fileSize, int packetSize, long packetOffset, RCMPBufferPool pool,
+			RCMPJournal journal, boolean compressed) {
+		this.fileSize = fileSize;
+		this.packetSize = packetSize;
+		this.pool = pool;
+
+		if (compressed) {
+			// packets are decompressed in order, and the journal has no use for
+			// their numbers since they are not the file's
+			inflater = new RCMPInflatingSink(sink, packetOffset * packetSize, packetSize, pool.isDirect());
+			this.sink = inflater;
+			totalPackets = Long.MAX_VALUE;
+			slots = new ByteBuffer[MAXWINDOW];
+			held = new boolean[MAXWINDOW];
+			return;
+		}
+		this.sink = sink;
+		this.packetOffset = packetOffset;
+		this.journal = journal;
+
+		// an empty file still takes one (empty) packet to transfer
+		totalPackets = Math.max(1, (fileSize + packetSize - 1) / packetSize);
+
+		// a packet is never held further ahead than the last one, so a small connection needs few slots
+		int window = (int) Math.min(MAXWINDOW, totalPackets);
+		slots = new ByteBuffer[window];
+		held = new boolean[window];
+
+		// start past whatever an earlier attempt already wrote at the start of the range
+		if (journal != null && journal.contains(packetOffset)) {
+			nextExpectedPacket = Math.min(totalPackets, journal.rangeEnd(packetOffset) - packetOffset);
+		}
+	}
+
+	public RCMPReceiveWindow(RCMPSink sink, long fileSize, long packetOffset, RCMPBufferPool pool,
+			RCMPJournal journal) {
+		this(sink, fileSize, RCMPHeader.PACKETSIZE, packetOffset, pool, journal, false);
+	}
+
+	public RCMPReceiveWindow(RCMPSink sink, long fileSize, long packetOffset, RCMPBufferPool pool) {
+		this(sink, fileSize, packetOffset, pool, null);
+	}
+
+	public RCMPReceiveWindow(RCMPSink sink, long fileSize, RCMPBufferPool pool) {
+		this(sink, fileSize, 0, pool);
+	}
+
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	public long getNextExpectedPacket() {
+		return nextExpectedPacket;
+	}
+
+	/**
+	 * Makes the window count what it receives in the given metrics
+	 */
+	public void setMetrics(RCMPMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public RCMPMetrics getMetrics() {
+		return metrics;
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * Returns the digest of the packets received over this connection, which
+	 * leaves out the packets an earlier attempt wrote
+	 */
+	public long getDigest() {
+		return digest.getValue();
+	}
+
+	/**
+	 * Returns true if packets are held past a gap
+	 */
+	public boolean hasGap() {
+		return heldCount > 0;
+	}
+
+	public boolean isComplete() {
+		return nextExpectedPacket >= totalPackets;
+	}
+
+	/**
+	 * Hands a received packet to the window, writing it and any held packets
+	 * it makes contiguous to the sink. Returns true if the packet may be
+	 * ACKed, i.e. it is now written or held, and false if it was dropped
+	 *
+	 * @param packetNum the sequence number of the packet
+	 * @param selective whether the sender asked for selective repeat
+	 * @param payload the payload, between its position and limit
+	 * @param checksum the CRC32C of the packet, if it carried one
+	 */
+	public boolean receive(long packetNum, boolean selective, ByteBuffer payload, int checksum)
+			throws IOException {
+
+		// packets we already have only need to be ACKed again
+		if (packetNum < nextExpectedPacket || (journal != null && journal.contains(packetOffset + packetNum))) {
+			metrics.onDuplicate();
+			return true;
+		}
+
+		// without selective repeat anything past the next expected packet is dropped,
+		// and even with it we only hold on to a bounded number of packets
+		if (packetNum > nextExpectedPacket) {
+			if (!selective || packetNum >= nextExpectedPacket + slots.length || packetNum >= totalPackets) {
+				return false;
+			}
+			int slot = (int) (packetNum % slots.length);
+			if (held[slot]) {
+				metrics.onDuplicate();
+			} else {
+				metrics.onOutOfOrder();
+				boolean rebuilt = parity != null && parity.add(packetNum, payload, checksum);
+				digest.add(packetNum, checksum);
+				bytesReceived += payload.remaining();
+				if (sink.acceptsOutOfOrder()) {
+					metrics.onDelivered(payload.remaining());
+					sink.write((packetOffset + packetNum) * packetSize, payload);
+					if (journal != null) {
+						journal.add(packetOffset + packetNum);
+					}
+				} else {
+					slots[slot] = pool.acquire();
+					slots[slot].put(payload).flip();
+				}
+				held[slot] = true;
+				heldCount++;
+				if (rebuilt) {
+					receiveRebuilt();
+				}
+			}
+			return true;
+		}
+
+		// the packet is the one we expected, so write it and every held packet after it
+		boolean rebuilt = parity != null && parity.add(packetNum, payload, checksum);
+		digest.add(packetNum, checksum);
+		bytesReceived += payload.remaining();
+		write(nextExpectedPacket, payload);
+		nextExpectedPacket++;
+		advance();
+		if (rebuilt) {
+			receiveRebuilt();
+		}
+		// the rates of a finished connection should not keep falling while it lingers
+		if (isComplete()) {
+			metrics.finish();
+		}
+		return true;
+	}
+
+	/**
+	 * Hands a parity packet to the window, which rebuilds the lost packet of
+	 * the parity packet's group if it is the only one missing. Returns true if
+	 * that took a packet the window did not have, so the sender can be told
+	 *
+	 * @param firstPacket the first packet of the block the parity packet covers
+	 * @param body the body of the parity packet, between its position and limit
+	 */
+	public boolean receiveParity(long firstPacket, ByteBuffer body) throws IOException {
+		if (body.remaining() < RCMPHeader.PARITYSIZE || isComplete()) {
+			return false;
+		}
+		int blockSize = body.get() & 0xff, stride = body.get() & 0xff, index = body.get() & 0xff,
+				count = body.get() & 0xff, lengths = body.getInt(), checksums = body.getInt();
+		if (parity == null) {
+			if (blockSize < 1 || blockSize > RCMPParityDecoder.MAXBLOCK || stride < 1 || stride > blockSize) {
+				return false;
+			}
+			parity = new RCMPParityDecoder(pool, packetSize, blockSize, stride);
+		} else if (blockSize != parity.getBlockSize() || stride != parity.getStride()) {
+			return false;
+		}
+		if (!parity.addParity(firstPacket, count, index, lengths, checksums, body)) {
+			return false;
+		}
+		long expected = nextExpectedPacket;
+		int heldBefore = heldCount;
+		receiveRebuilt();
+		return nextExpectedPacket != expected || heldCount != heldBefore;
+	}
+
+	/**
+	 * Takes the packet the parity decoder just rebuilt as if it had arrived
+	 */
+	private void receiveRebuilt() throws IOException {
+		ByteBuffer payload = parity.getRecovered();
+		metrics.onRecovered();
+		receive(parity.getRecoveredPacket(), true, payload, parity.getRecoveredChecksum());
+		parity.releaseRecovered();
+	}
+
+	/**
+	 * Writes a packet to the sink in order, recording it in the journal, and
+	 * learns how many packets there are once a compressed stream ends
+	 */
+	private void write(long packetNum, ByteBuffer payload) throws IOException {
+		metrics.onDelivered(payload.remaining());
+		sink.write((packetOffset + packetNum) * packetSize, payload);
+		if (journal != null) {
+			journal.add(packetOffset + packetNum);
+		}
+		if (inflater != null && inflater.isFinished()) {
+			totalPackets = packetNum + 1;
+		}
+	}
+
+	/**
+	 * Moves the next expected packet past every packet that is held or that
+	 * the journal lists, writing the held packets that still need it
+	 */
+	private void advance() throws IOException {
+		while (nextExpectedPacket < totalPackets) {
+			int slot = (int) (nextExpectedPacket % slots.length);
+			if (held[slot]) {
+				held[slot] = false;
+				heldCount--;
+				if (slots[slot] != null) {
+					write(nextExpectedPacket, slots[slot]);
+					pool.release(slots[slot]);
+					slots[slot] = null;
+				}
+			} else if (journal == null || !journal.contains(packetOffset + nextExpectedPacket)) {
+				break;
+			}
+			nextExpectedPacket++;
+		}
+	}
+
+	/**
+	 * Gives every buffer still holding an out-of-order packet back to the pool
+	 */
+	public void release() {
+		heldCount = 0;
+		if (parity != null) {
+			parity.release();
+		}
+		for (int slot = 0; slot < slots.length; slot++) {
+			held[slot] = false;
+			if (slots[slot] != null) {
+				pool.release(slots[slot]);
+				slots[slot] = null;
+			}
+		}
+	}
+
+	/**
+	 * Puts the body of a SACK into the given buffer: the next expected packet,
+	 * followed by a bitmap in which bit i (counting from the most significant
+	 * bit of the first byte) is set when packet nextExpectedPacket + 1 + i is held
+	 *
+	 * @param ackByteBuffer the buffer to put the SACK body into
+	 * @param bitmapBytes the number of bytes to use for the bitmap
+	 */
+	public void putSack(ByteBuffer ackByteBuffer, int bitmapBytes) {
+		ackByteBuffer.putLong(nextExpectedPacket);
+		for (int i = 0; i < bitmapBytes; i++) {
+			int bits = 0;
+			for (int bit = 0; bit < 8; bit++) {
+				long packetNum = nextExpectedPacket + 1 + i * 8 + bit;
+				if (packetNum < nextExpectedPacket + slots.length && held[(int) (packetNum % slots.length)]) {
+					bits |= 0x80 >>> bit;
+				}
+			}
+			ackByteBuffer.put((byte) bits);
+		}
+	}
+}
@@ -1,14 +1,13 @@
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
-import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.UnknownHostException;
+import java.net.SocketAddress;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.FileNotFoundException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 
 /**
  * This class implements a receiver that receives a file over UDP using the RCMP
@@ -21,17 +20,17 @@ import java.nio.ByteBuffer;
  */
 public class RCMPReceiver {
 
-	// constants to use for sizes
-	public static final int PACKETSIZE = 1450;
-	public static final int HEADERSIZE = 13;
-	public static final int ACKSIZE = 8;
+	// how long to keep answering retransmissions after the whole file has arrived
+	public static final int LINGER = 2000;
 
 	public static void main(String[] args) {
 
 		// make sure the user specifies the correct
 		// number of command line arguments
 		if (args.length < 2) {
-			System.err.println("Usage: java RCMPReceiver <portNum> <fileName>");
+			System.err.println("Usage: java RCMPReceiver <portNum> <fileName|directory> [-maxpayload <bytes>]"
+					+ " [-ackevery <packets>] [-ackdelay <us>] [-queue <packets>] [-direct] [-mmap] [-stats]"
+					+ " [-metrics <seconds>]");
 			System.exit(0);
 		}
 
@@ -45,97 +44,618 @@ public class RCMPReceiver {
 			System.exit(0);
 		}
 
-		// create a File object and a stream for writing to it
+		// direct buffers save a copy on every socket and file operation, and a
+		// mapped file lets packets be written at their offset as they arrive
+		boolean direct = false, mapped = false, stats = false, metrics = false;
+		int maxPacketSize = RCMPHeader.MAXPACKETSIZE, metricsPeriod = 0;
+		int ackCount = RCMPDelayedAck.DEFAULTCOUNT, ackDelay = RCMPDelayedAck.DEFAULTDELAY;
+		int queue = RCMPWriteBehindSink.DEFAULTQUEUE;
+		for (int i = 2; i < args.length; i++) {
+			if (args[i].equals("-maxpayload") && i + 1 < args.length) {
+				// the largest payload size a sender may negotiate
+				maxPacketSize = parseOption(args[++i], "maximum payload size");
+			} else if (args[i].equals("-ackevery") && i + 1 < args.length) {
+				// how many in-order packets one ACK covers, and how long the first of them may wait
+				ackCount = parseOption(args[++i], "packets per ACK");
+			} else if (args[i].equals("-ackdelay") && i + 1 < args.length) {
+				ackDelay = parseOption(args[++i], "ACK delay");
+			} else if (args[i].equals("-queue") && i + 1 < args.length) {
+				// how many packets may wait for the writer thread, where 0 writes them on the receive thread
+				queue = parseOption(args[++i], "write queue size");
+			} else if (args[i].equals("-direct")) {
+				direct = true;
+			} else if (args[i].equals("-mmap")) {
+				mapped = true;
+			} else if (args[i].equals("-stats")) {
+				// report how many packets each wakeup of the receive loop handled
+				stats = true;
+			} else if (args[i].equals("-metrics") && i + 1 < args.length) {
+				// export every connection's counters through JMX and log them every so many seconds
+				metricsPeriod = parseOption(args[++i], "metrics period");
+				metrics = true;
+			} else {
+				System.err.println("Unknown option: " + args[i]);
+				System.exit(0);
+			}
+		}
+
+		if (maxPacketSize < RCMPHeader.PACKETSIZE || maxPacketSize > RCMPHeader.MAXPACKETSIZE) {
+			System.err.println("Maximum payload size must be between " + RCMPHeader.PACKETSIZE + " and "
+					+ RCMPHeader.MAXPACKETSIZE);
+			System.exit(0);
+		}
+		if (ackCount < 1 || ackDelay < 0) {
+			System.err.println("ACKs must cover at least 1 packet and the ACK delay cannot be negative");
+			System.exit(0);
+		}
+		if (queue < 0) {
+			System.err.println("The write queue size cannot be negative");
+			System.exit(0);
+		}
+		if (metricsPeriod < 0) {
+			System.err.println("Metrics period must be at least 0");
+			System.exit(0);
+		}
+		RCMPMetricsReporter reporter = metrics ? new RCMPMetricsReporter(metricsPeriod, System.out) : null;
+
+		// create a File object and a file for writing to it, unless it names a
+		// directory, which a sender's directory is unpacked into
 		String fileName = args[1];
 		File openFile = new File(fileName);
-		FileOutputStream fout = null;
+		boolean unpack = openFile.isDirectory();
+		RandomAccessFile fout = null;
+		// the journal of an interrupted transfer that a sender may resume, which a
+		// directory is not
+		File journalFile = unpack ? null : new File(fileName + ".journal");
+		if (unpack && mapped) {
+			System.err.println("A directory cannot be memory-mapped");
+			System.exit(0);
+		}
 
-		DatagramSocket socket = null;
+		DatagramChannel channel = null;
 
 		// try to open the specified file for writing
-		// and connect a UDP socket to the specified port
+		// and bind a UDP channel to the specified port
 		try {
-			fout = new FileOutputStream(openFile);
-			socket = new DatagramSocket(portNum);
-		} catch (SocketException e) {
-			System.err.println("Error creating socket with port number " + portNum + ": " + e);
-			System.exit(0);
+			if (!unpack) {
+				fout = new RandomAccessFile(openFile, "rw");
+				if (!journalFile.exists()) {
+					fout.setLength(0);
+				}
+			}
+			channel = DatagramChannel.open();
+			channel.bind(new InetSocketAddress(portNum));
 		} catch (FileNotFoundException e) {
 			System.err.println("File not found: " + e);
 			System.exit(0);
+		} catch (IOException e) {
+			System.err.println("Error creating socket with port number " + portNum + ": " + e);
+			System.exit(0);
+		}
+
+		try {
+			RCMPBufferPool pool = new RCMPBufferPool(RCMPReceiveWindow.MAXWINDOW / 8, maxPacketSize, direct);
+			RCMPSink sink;
+			if (unpack) {
+				sink = new RCMPDirectorySink(openFile.toPath());
+			} else {
+				sink = mapped ? new RCMPMappedSink(fout.getChannel()) : new RCMPFileSink(fout.getChannel());
+			}
+			if (queue > 0) {
+				sink = new RCMPWriteBehindSink(sink, pool, queue);
+			}
+			RCMPReceiverOptions options = new RCMPReceiverOptions();
+			options.pool = pool;
+			options.journalFile = journalFile;
+			options.ackCount = ackCount;
+			options.ackDelay = ackDelay;
+			options.reporter = reporter;
+			receiveFile(channel, sink, options);
+			if (stats) {
+				System.out.println("Received " + options.stats);
+			}
+			if (fout != null) {
+				fout.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Error receiving data from socket: " + e.getMessage());
+			System.exit(0);
 		}
 
-		// set up variables used for packet receiving
-		byte[] buffer = new byte[PACKETSIZE + HEADERSIZE], ackBuffer = new byte[ACKSIZE];
-		ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
-		ByteBuffer ackByteBuffer = ByteBuffer.wrap(ackBuffer);
-		DatagramPacket receivedPacket = null, ackToSend = null;
-		InetAddress ipToAck = null;
-		int portToAck = -1, connectionID = -1, packetNum = -1, filesize = -1, bytesWritten = 0, payloadSize = -1,
-				nextExpectedPacket = 0;
-		byte toAck;
-
-		// loop until we have received the complete file
-		while (true) {
-
-			try {
-				// receive the packet
-				receivedPacket = new DatagramPacket(buffer, buffer.length);
-				socket.receive(receivedPacket);
-
-				// extract the header information and payload size info
-				connectionID = byteBuffer.getInt();
-				filesize = byteBuffer.getInt();
-				packetNum = byteBuffer.getInt();
-				toAck = byteBuffer.get();
-
-				// determine the size of the datagram payload
-				payloadSize = receivedPacket.getLength() - HEADERSIZE;
-
-				// if the packet is what we expect to receive or a
-				// packet we have already received, ack it
-				if (packetNum <= nextExpectedPacket) {
-					// create an ACK packet and send it to the original sender
-					// if the last packet was marked to be acked
-					if (toAck == (byte) 1) {
-						portToAck = receivedPacket.getPort();
-						ipToAck = receivedPacket.getAddress();
-						ackByteBuffer.putInt(connectionID);
-						ackByteBuffer.putInt(packetNum);
-						ackToSend = new DatagramPacket(ackBuffer, ACKSIZE, ipToAck, portToAck);
-						socket.send(ackToSend);
+		// close the socket when we're done receiving the file
+		try {
+			channel.close();
+		} catch (IOException e) {
+			System.err.println("Error closing socket: " + e);
+		}
+	}
+
+	/**
+	 * Receives one file over the given channel and writes it to the output.
+	 * The file arrives either over one connection or split into ranges over
+	 * several, each of which gets a receive window of its own. Returns once
+	 * the whole file has been written and the senders have stopped
+	 * retransmitting. All of the buffers used per packet are allocated once up
+	 * front or taken from the pool, so the loop allocates nothing per packet.
+	 * Packets carry PACKETSIZE bytes of payload unless the sender negotiated
+	 * another size first, which can be up to the size of the pool's buffers
+	 *
+	 * With a journal file, a sender that asks to resume is told which packets
+	 * an earlier attempt wrote, and the packets it writes are recorded in the
+	 * journal until the file is complete. The in-order packets of
+	 * selective-repeat connections are ACKed together as RCMPDelayedAck
+	 * describes, and every wakeup of the receive loop drains the channel into
+	 * an RCMPDatagramBatch before handling any of the packets
+	 *
+	 * @param channel a channel bound to the port the sender sends to
+	 * @param sink where to write the file
+	 * @param options the pool, journal, ACK policy, statistics and metrics to receive with
+	 */
+	public static void receiveFile(DatagramChannel channel, RCMPSink sink, RCMPReceiverOptions options)
+			throws IOException {
+		RCMPBufferPool pool = options.getPool();
+		File journalFile = options.journalFile;
+
+		// set up variables used for packet receiving, with room for the largest payload we accept
+		int maxPacketSize = pool.getBufferSize();
+		RCMPDatagramBatch batch = new RCMPDatagramBatch(RCMPDatagramBatch.DEFAULTBATCH,
+				maxPacketSize + RCMPHeader.MAXHEADERSIZE, pool.isDirect(), options.stats);
+		ByteBuffer ackByteBuffer = pool.isDirect() ? ByteBuffer.allocateDirect(RCMPHeader.PACKETSIZE)
+				: ByteBuffer.allocate(RCMPHeader.PACKETSIZE);
+		int packetSize = RCMPHeader.PACKETSIZE;
+		RCMPHeader header = new RCMPHeader();
+		RCMPReceiveWindow window = null;
+		RCMPDelayedAck ack = null;
+		RCMPJournal journal = null;
+		RCMPDigest verifier = new RCMPDigest();
+		long totalSize = -1, bytesComplete = 0;
+		boolean complete = false;
+		// a file can only be written in ranges, or resumed, if the output and the journal allow it
+		int features = RCMPHeader.CRCFEATURE | RCMPHeader.COMPRESSIONFEATURE | RCMPHeader.PARITYFEATURE
+				| RCMPHeader.SACKFEATURE | (sink.acceptsOutOfOrder() ? RCMPHeader.RANGEFEATURE : 0)
+				| (journalFile != null ? RCMPHeader.RESUMEFEATURE : 0);
+
+		// the window and ACK policy of every connection, found by connection id. There
+		// are only ever a few, so a search beats boxing the ids for a map
+		int[] connectionIDs = new int[RCMPHeader.MAXSTREAMS];
+		RCMPReceiveWindow[] windows = new RCMPReceiveWindow[RCMPHeader.MAXSTREAMS];
+		RCMPDelayedAck[] acks = new RCMPDelayedAck[RCMPHeader.MAXSTREAMS];
+		int connections = 0;
+		// when the first delayed ACK is due, from System.nanoTime()
+		long ackDeadline = Long.MAX_VALUE;
+
+		// the channel is non-blocking so that the selector can tell us when the
+		// sender has gone quiet after the last packet
+		channel.configureBlocking(false);
+		Selector selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+
+		try {
+			// loop until we have received the complete file and the sender has stopped retransmitting
+			while (true) {
+
+				// send the delayed ACKs that are due
+				if (System.nanoTime() - ackDeadline >= 0) {
+					ackDeadline = sendDelayedAcks(channel, ackByteBuffer, acks, windows, connections);
+				}
+
+				// receive every packet waiting, or wait for one if none is there yet, or until
+				// the next delayed ACK is due
+				if (batch.receive(channel) == 0) {
+					long timeout = complete ? LINGER : 0;
+					if (ackDeadline != Long.MAX_VALUE) {
+						timeout = Math.max(1, (ackDeadline - System.nanoTime() + 999999) / 1000000);
+					}
+					if (selector.select(timeout) == 0 && ackDeadline == Long.MAX_VALUE) {
+						break;
+					}
+					selector.selectedKeys().clear();
+					continue;
+				}
+
+				for (int packet = 0; packet < batch.size(); packet++) {
+					ByteBuffer byteBuffer = batch.get(packet);
+					SocketAddress sender = batch.getSender(packet);
+
+					// extract the header information, leaving the payload between position and limit
+					if (!header.read(byteBuffer)) {
+						continue;
 					}
 
-					// only write the data to the file if the packet
-					// is one that hasn't been received yet
-					if (packetNum == nextExpectedPacket) {
-						// write the datagram payload to the file
-						fout.write(buffer, HEADERSIZE, payloadSize);
-						nextExpectedPacket++;
-						bytesWritten += payloadSize;
-
-						// break if we have received and written the whole file
-						if (bytesWritten == filesize) {
-							break;
+					// before sending any packets, a sender may probe which payload sizes reach us, say
+					// hello, ask for a payload size, or ask which packets we already have to resume a
+					// transfer. Parity packets belong to a connection and are handled along with its packets
+					if (header.hasFlag(RCMPHeader.CONTROLFLAG) && header.controlType != RCMPHeader.PARITY) {
+						if (header.controlType == RCMPHeader.HELLOQUERY
+								&& byteBuffer.remaining() >= RCMPHeader.HELLOQUERYSIZE - RCMPHeader.HEADERSIZE - 1) {
+							byteBuffer.get();
+							int wanted = byteBuffer.getInt(), requested = byteBuffer.getInt();
+							// the payload size cannot change once packets have arrived
+							if (connections == 0 && journal == null) {
+								packetSize = acceptPacketSize(requested, maxPacketSize);
+							}
+							putHello(ackByteBuffer, header.connectionID, wanted & features, packetSize,
+									Math.min(byteBuffer.getInt(), RCMPReceiveWindow.MAXWINDOW));
+							channel.send(ackByteBuffer, sender);
+						} else if (header.controlType == RCMPHeader.PROBEQUERY
+								&& putProbe(ackByteBuffer, header, byteBuffer, maxPacketSize)) {
+							channel.send(ackByteBuffer, sender);
+						} else if (header.controlType == RCMPHeader.SIZEQUERY
+								&& byteBuffer.remaining() >= RCMPHeader.SIZEQUERYSIZE - RCMPHeader.HEADERSIZE - 1) {
+							// the payload size cannot change once packets have arrived
+							if (connections == 0 && journal == null) {
+								packetSize = acceptPacketSize(byteBuffer.getInt(), maxPacketSize);
+							}
+							putSize(ackByteBuffer, header.connectionID, RCMPHeader.SIZETYPE, packetSize);
+							channel.send(ackByteBuffer, sender);
+						} else if (header.controlType == RCMPHeader.RESUMEQUERY && journalFile != null
+								&& byteBuffer.remaining() >= RCMPHeader.RESUMEQUERYSIZE - RCMPHeader.HEADERSIZE - 1) {
+							long fileID = byteBuffer.getLong(), size = byteBuffer.getLong();
+							int requested = byteBuffer.getInt();
+							// only a sender of the file already in progress may join in later
+							if (connections == 0 && (journal == null || journal.getFileID() != fileID)) {
+								// the journal counts packets in the payload size of the attempt
+								// that saved it, so a new attempt has to use that one
+								int saved = RCMPJournal.savedPacketSize(journalFile, fileID, size);
+								packetSize = saved >= RCMPHeader.MINPACKETSIZE && saved <= maxPacketSize ? saved
+										: acceptPacketSize(requested, maxPacketSize);
+								journal = RCMPJournal.load(journalFile, fileID, size, packetSize);
+								totalSize = size;
+								sink.open(totalSize);
+							}
+							if (journal != null && journal.getFileID() == fileID) {
+								putResume(ackByteBuffer, header.connectionID, journal);
+								channel.send(ackByteBuffer, sender);
+							}
 						}
+						continue;
+					}
+
+					// drop corrupted packets, which the sender will send again, and packets
+					// larger than the payload size we agreed on
+					if ((header.hasFlag(RCMPHeader.CRCFLAG) && !verifier.verify(byteBuffer, header.checksum))
+							|| byteBuffer.remaining() > packetSize
+									+ (header.hasFlag(RCMPHeader.CONTROLFLAG) ? RCMPHeader.PARITYSIZE : 0)) {
+						continue;
+					}
+
+					// find the window of the connection, creating it on its first packet
+					if (window == null || connectionIDs[connections - 1] != header.connectionID) {
+						window = null;
+						for (int i = 0; i < connections; i++) {
+							if (connectionIDs[i] == header.connectionID) {
+								// move the connection to the end so the next lookup finds it first
+								window = windows[i];
+								ack = acks[i];
+								connectionIDs[i] = connectionIDs[connections - 1];
+								windows[i] = windows[connections - 1];
+								acks[i] = acks[connections - 1];
+								connectionIDs[connections - 1] = header.connectionID;
+								windows[connections - 1] = window;
+								acks[connections - 1] = ack;
+								break;
+							}
+						}
+						if (window == null) {
+							// the first packet tells us how big the file is, unless a resume request did
+							if (totalSize < 0) {
+								totalSize = header.totalSize;
+								sink.open(totalSize);
+								// a journal left behind describes a file we are about to overwrite
+								if (journalFile != null) {
+									journalFile.delete();
+								}
+							}
+							// drop packets we have no room for, or whose range does not fit the file
+							if (connections == RCMPHeader.MAXSTREAMS || !header.hasValidRange(packetSize)
+									|| header.totalSize != totalSize) {
+								continue;
+							}
+							if (header.rangeOffset != 0 && !sink.acceptsOutOfOrder()) {
+								throw new IOException("The output cannot be written in ranges");
+							}
+							window = new RCMPReceiveWindow(sink, header.fileSize, packetSize,
+									header.rangeOffset / packetSize, pool, journal,
+									header.hasFlag(RCMPHeader.COMPRESSEDFLAG));
+							window.setMetrics(new RCMPMetrics(RCMPMetrics.RECEIVER, header.connectionID));
+							if (options.reporter != null) {
+								options.reporter.add(window.getMetrics());
+							}
+							ack = new RCMPDelayedAck(header.connectionID, options.ackCount, options.ackDelay);
+							connectionIDs[connections] = header.connectionID;
+							acks[connections] = ack;
+							windows[connections++] = window;
+							// a resumed range may have been complete before it started
+							if (window.isComplete()) {
+								bytesComplete += window.getFileSize();
+							}
+						}
+					}
+
+					// ack the packet if the window wrote or held it and the sender asked for an ACK,
+					// right away unless it arrived in order and the ACK can wait for the next few. A
+					// parity packet is ACKed when it rebuilt a lost packet
+					boolean wasComplete = window.isComplete();
+					long expected = window.getNextExpectedPacket();
+					if (receive(window, header, byteBuffer) && header.hasFlag(RCMPHeader.ACKFLAG)
+							&& (!header.hasFlag(RCMPHeader.SELECTIVEFLAG) || !ack.isEnabled()
+									|| ack.onPacket(isInOrder(header, window, expected), sender, System.nanoTime()))) {
+						if (header.hasFlag(RCMPHeader.SELECTIVEFLAG) && ack.isEnabled()) {
+							putSack(ackByteBuffer, header.connectionID, window);
+						} else {
+							putAck(ackByteBuffer, header, window);
+						}
+						channel.send(ackByteBuffer, sender);
+						// confirm the digest once the connection has everything
+						if (header.hasFlag(RCMPHeader.CRCFLAG) && window.isComplete()) {
+							putDigest(ackByteBuffer, header.connectionID, window);
+							channel.send(ackByteBuffer, sender);
+						}
+					}
+					if (ack != null && ack.isPending()) {
+						ackDeadline = Math.min(ackDeadline, ack.getDeadline());
+					}
+
+					// the file is complete once the ranges completed so far cover all of it
+					if (!wasComplete && window.isComplete()) {
+						bytesComplete += window.getFileSize();
+					}
+					// the ranges of a resumed transfer may have been counted by an earlier
+					// attempt too, so its journal decides when it is complete
+					if (!complete && window.isComplete() && (journal != null
+							? journal.rangeEnd(0) * packetSize >= totalSize : bytesComplete >= totalSize)) {
+						sink.close();
+						complete = true;
+						if (journal != null) {
+							journal.delete();
+						}
+					} else if (journal != null && !complete) {
+						journal.checkpoint(sink, false);
 					}
 				}
+			}
+		} finally {
+			for (int i = 0; i < connections; i++) {
+				windows[i].release();
+				if (options.reporter != null) {
+					options.reporter.remove(windows[i].getMetrics());
+				}
+			}
+			// save how far we got so that the sender can resume later
+			if (journal != null && !complete) {
+				journal.checkpoint(sink, true);
+			}
+			selector.close();
+			channel.configureBlocking(true);
+		}
+	}
 
-				// clear the buffers and re-wrap the bytebuffers
-				buffer = new byte[PACKETSIZE + HEADERSIZE];
-				byteBuffer = ByteBuffer.wrap(buffer);
+	/**
+	 * Hands a packet, or a parity packet, to the window of its connection and
+	 * returns true if it should be ACKed
+	 *
+	 * @param window the window of the packet's connection
+	 * @param header the header of the packet
+	 * @param packet the packet, positioned after the header
+	 */
+	public static boolean receive(RCMPReceiveWindow window, RCMPHeader header, ByteBuffer packet)
+			throws IOException {
+		window.getMetrics().onReceived(packet.remaining());
+		if (header.hasFlag(RCMPHeader.CONTROLFLAG)) {
+			return window.receiveParity(header.packetNum, packet);
+		}
+		return window.receive(header.packetNum, header.hasFlag(RCMPHeader.SELECTIVEFLAG), packet, header.checksum);
+	}
 
-				ackBuffer = new byte[ACKSIZE];
-				ackByteBuffer = ByteBuffer.wrap(ackBuffer);
+	/**
+	 * Returns true if a packet the window just took was the one it expected,
+	 * leaving no gap behind it and not finishing the connection, so that its
+	 * ACK may be delayed
+	 *
+	 * @param header the header of the packet
+	 * @param window the window of the packet's connection
+	 * @param expected the packet the window expected before it took this one
+	 */
+	public static boolean isInOrder(RCMPHeader header, RCMPReceiveWindow window, long expected) {
+		return !header.hasFlag(RCMPHeader.CONTROLFLAG) && header.packetNum == expected
+				&& window.getNextExpectedPacket() == expected + 1 && !window.hasGap() && !window.isComplete();
+	}
 
-			} catch (IOException e) {
-				System.err.println("Error receiving data from socket: " + e.getMessage());
-				System.exit(0);
+	/**
+	 * Sends the delayed ACK of every connection whose ACK is due, and returns
+	 * when the next one is due, or Long.MAX_VALUE if none are waiting
+	 *
+	 * @param channel the channel to send the ACKs on
+	 * @param ackByteBuffer the buffer to build the ACKs in
+	 * @param acks the ACK policy of every connection
+	 * @param windows the window of every connection
+	 * @param connections how many connections there are
+	 */
+	private static long sendDelayedAcks(DatagramChannel channel, ByteBuffer ackByteBuffer, RCMPDelayedAck[] acks,
+			RCMPReceiveWindow[] windows, int connections) throws IOException {
+		long now = System.nanoTime(), next = Long.MAX_VALUE;
+		for (int i = 0; i < connections; i++) {
+			if (acks[i].takeDue(now)) {
+				putSack(ackByteBuffer, acks[i].getConnectionID(), windows[i]);
+				channel.send(ackByteBuffer, acks[i].getSender());
+			} else if (acks[i].isPending()) {
+				next = Math.min(next, acks[i].getDeadline());
 			}
+		}
+		return next;
+	}
 
+	/**
+	 * Builds the final ACK of a connection whose window is complete, carrying
+	 * the digest of everything it received for the sender to compare with its own
+	 *
+	 * @param ackByteBuffer the buffer to build the ACK in, ready to send afterwards
+	 * @param connectionID the id of the connection
+	 * @param window the window of the connection
+	 */
+	public static void putDigest(ByteBuffer ackByteBuffer, int connectionID, RCMPReceiveWindow window) {
+		putDigest(ackByteBuffer, connectionID, window.getDigest());
+	}
+
+	/**
+	 * Builds the final ACK of a connection from a digest taken from its window
+	 * earlier, for receivers that cannot hold the window while they send
+	 *
+	 * @param ackByteBuffer the buffer to build the ACK in, ready to send afterwards
+	 * @param connectionID the id of the connection
+	 * @param digest the digest of everything the connection received
+	 */
+	public static void putDigest(ByteBuffer ackByteBuffer, int connectionID, long digest) {
+		ackByteBuffer.clear();
+		ackByteBuffer.putInt(connectionID);
+		ackByteBuffer.put(RCMPHeader.FINTYPE);
+		ackByteBuffer.putLong(digest);
+		ackByteBuffer.flip();
+	}
+
+	/**
+	 * Clamps the payload size a sender asked for to what we accept
+	 *
+	 * @param requested the payload size the sender asked for
+	 * @param maxPacketSize the largest payload size we can receive
+	 */
+	public static int acceptPacketSize(int requested, int maxPacketSize) {
+		return Math.max(RCMPHeader.MINPACKETSIZE, Math.min(requested, maxPacketSize));
+	}
+
+	/**
+	 * Builds the reply to a probe if the whole probe arrived, returning false
+	 * if there should be no reply. A probe larger than we can receive is cut
+	 * short, but still shows that packets of our largest payload size get
+	 * through, which is what the reply says then
+	 *
+	 * @param ackByteBuffer the buffer to build the reply in, ready to send afterwards
+	 * @param header the header of the probe
+	 * @param probe the probe, positioned after its type byte
+	 * @param maxPacketSize the largest payload size we can receive
+	 */
+	public static boolean putProbe(ByteBuffer ackByteBuffer, RCMPHeader header, ByteBuffer probe,
+			int maxPacketSize) {
+		if (probe.remaining() < RCMPHeader.PROBEQUERYSIZE - RCMPHeader.HEADERSIZE - 1) {
+			return false;
 		}
-		// close the socket when we're done receiving the file
-		socket.close();
+		int probed = Math.min(probe.getInt(), maxPacketSize);
+		if (probe.limit() < probed + RCMPHeader.MAXHEADERSIZE) {
+			return false;
+		}
+		putSize(ackByteBuffer, header.connectionID, RCMPHeader.PROBETYPE, probed);
+		return true;
+	}
+
+	/**
+	 * Builds a reply to a size request or a probe, carrying a payload size
+	 *
+	 * @param ackByteBuffer the buffer to build the reply in, ready to send afterwards
+	 * @param connectionID the connection id the request came from
+	 * @param type SIZETYPE or PROBETYPE
+	 * @param packetSize the payload size
+	 */
+	public static void putSize(ByteBuffer ackByteBuffer, int connectionID, byte type, int packetSize) {
+		ackByteBuffer.clear();
+		ackByteBuffer.putInt(connectionID);
+		ackByteBuffer.put(type);
+		ackByteBuffer.putInt(packetSize);
+		ackByteBuffer.flip();
+	}
+
+	/**
+	 * Builds the reply to a hello, carrying our version of the protocol and
+	 * what we agreed to
+	 *
+	 * @param ackByteBuffer the buffer to build the reply in, ready to send afterwards
+	 * @param connectionID the connection id the hello came from
+	 * @param features the features the sender asked for that we accept
+	 * @param packetSize the payload size we accept
+	 * @param window the largest window the sender may use
+	 */
+	public static void putHello(ByteBuffer ackByteBuffer, int connectionID, int features, int packetSize,
+			int window) {
+		ackByteBuffer.clear();
+		ackByteBuffer.putInt(connectionID);
+		ackByteBuffer.put(RCMPHeader.HELLOTYPE);
+		ackByteBuffer.put(RCMPHeader.VERSION);
+		ackByteBuffer.putInt(features);
+		ackByteBuffer.putInt(packetSize);
+		ackByteBuffer.putInt(window);
+		ackByteBuffer.flip();
+	}
+
+	/**
+	 * Builds the reply to a resume request, listing the ranges of the file
+	 * the journal says have been written
+	 *
+	 * @param ackByteBuffer the buffer to build the reply in, ready to send afterwards
+	 * @param connectionID the connection id the request came from
+	 * @param journal the journal of the file
+	 */
+	public static void putResume(ByteBuffer ackByteBuffer, int connectionID, RCMPJournal journal) {
+		ackByteBuffer.clear();
+		ackByteBuffer.putInt(connectionID);
+		ackByteBuffer.put(RCMPHeader.RESUMETYPE);
+		journal.put(ackByteBuffer);
+		ackByteBuffer.flip();
+	}
+
+	/**
+	 * Builds the ACK for a packet the window has written or held: a SACK
+	 * describing everything the window has when the sender asked for one, and
+	 * the packet's own number otherwise, in 64 bits when the packet's header
+	 * carried a 64-bit one
+	 *
+	 * @param ackByteBuffer the buffer to build the ACK in, ready to send afterwards
+	 * @param header the header of the packet being ACKed
+	 * @param window the window of the packet's connection
+	 */
+	public static void putAck(ByteBuffer ackByteBuffer, RCMPHeader header, RCMPReceiveWindow window) {
+		if (header.hasFlag(RCMPHeader.SACKFLAG)) {
+			// tell the sender everything we have rather than just this packet
+			putSack(ackByteBuffer, header.connectionID, window);
+			return;
+		}
+		ackByteBuffer.clear();
+		ackByteBuffer.putInt(header.connectionID);
+		if (header.hasFlag(RCMPHeader.LONGFLAG)) {
+			ackByteBuffer.putLong(header.packetNum);
+		} else {
+			ackByteBuffer.putInt((int) header.packetNum);
+		}
+		ackByteBuffer.flip();
+	}
+
+	/**
+	 * Builds a SACK describing every packet the window has
+	 *
+	 * @param ackByteBuffer the buffer to build the SACK in, ready to send afterwards
+	 * @param connectionID the id of the connection
+	 * @param window the window of the connection
+	 */
+	public static void putSack(ByteBuffer ackByteBuffer, int connectionID, RCMPReceiveWindow window) {
+		ackByteBuffer.clear();
+		ackByteBuffer.putInt(connectionID);
+		ackByteBuffer.put(RCMPHeader.SACKTYPE);
+		window.putSack(ackByteBuffer, RCMPHeader.SACKBYTES);
+		ackByteBuffer.flip();
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Converts a numeric command line option to an int, exiting with an
+	 * error message when it isn't one
+	 *
+	 * @param value the value given on the command line
+	 * @param name what the value is used for
+	 */
+	private static int parseOption(String value, String name) {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			System.err.println("Cannot convert " + value + " to int to use for " + name);
+			System.exit(0);
+			return -1;
+		}
+	}
+}
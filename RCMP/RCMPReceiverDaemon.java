@@ -0,0 +1,1037 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class implements a long-running RCMP receiver that takes transfers
+ * from any number of senders on one port and writes each of them to a file of
+ * its own in a directory. Packets are demultiplexed by connection id, and the
+ * state of every connection lives in a concurrent map shared by the receive
+ * threads, each of which reads its own socket bound to the port with
+ * SO_REUSEPORT so the kernel spreads senders over them. The streams of a file
+ * sent in parallel are put back together by the transfer id they share.
+ * Each file is named after its transfer id, or after the file's identity when
+ * the sender may resume it, and carries a .part suffix until it is complete.
+ * Connections that go quiet for longer than the idle timeout are evicted,
+ * throwing away the part of any transfer they leave unfinished unless it can
+ * be resumed, in which case the part and its journal are kept for the sender
+ * to pick up again. A sender may negotiate the payload size of its transfer
+ * before sending, up to the size of the buffers in the daemon's pool. The
+ * in-order packets of selective-repeat connections are ACKed together as
+ * RCMPDelayedAck describes, each receive thread sending the delayed ACKs of
+ * the connections it received from
+ *
+ * No connection has a thread of its own, so the daemon scales to thousands
+ * of small transfers at once: every connection is a state machine driven by
+ * whichever receive thread its packets arrive on, the payloads of every
+ * transfer are queued for a few writer threads shared by all of them, and
+ * the buffers packets are held in come from one pool. The state a
+ * connection keeps is sized to its transfer, so a small file costs little
+ * more than its connection id while it lingers
+ *
+ * Instead of writing files to a directory, the daemon can hand every
+ * transfer to an RCMPTransferHandler, which gives it a sink to write to and
+ * hears when it is done. Such transfers cannot be resumed, since the daemon
+ * has nowhere to keep their journals. A program that embeds the daemon binds
+ * it and serves on a thread of its own, the way RCMPServer does
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPReceiverDaemon {
+
+	// how long a connection may go without a packet before it is evicted, in milliseconds
+	public static final int DEFAULTIDLETIMEOUT = 30000;
+	public static final int DEFAULTTHREADS = 4;
+	public static final int DEFAULTWRITERS = 4;
+	// the most connections we keep state for at once, unless told otherwise
+	public static final int DEFAULTMAXCONNECTIONS = 65536;
+
+	private File directory;
+	private boolean mapped;
+	private RCMPBufferPool pool;
+	private long idleTimeout;
+	private int ackCount = RCMPDelayedAck.DEFAULTCOUNT;
+	private int ackDelay = RCMPDelayedAck.DEFAULTDELAY;
+	private int writeQueue = RCMPWriteBehindSink.DEFAULTQUEUE;
+	private int writerThreads = DEFAULTWRITERS;
+	private int maxConnections = DEFAULTMAXCONNECTIONS;
+
+	// the threads every transfer's payloads are written on while the daemon serves
+	private ExecutorService writers;
+
+	// how many packets each wakeup of the receive threads handled
+	private RCMPBatchStats receiveStats = new RCMPBatchStats();
+
+	// where every connection's metrics are exported while it lives, if anywhere
+	private RCMPMetricsReporter reporter;
+
+	// what every transfer is handed to instead of a file in the directory, if anything
+	private RCMPTransferHandler handler;
+
+	// every live connection by connection id, and every open file by transfer id
+	private ConcurrentHashMap<Integer, Connection> connections = new ConcurrentHashMap<>();
+	private ConcurrentHashMap<Integer, Transfer> transfers = new ConcurrentHashMap<>();
+
+	private DatagramChannel[] channels;
+	private Selector[] selectors;
+	private volatile boolean running = true;
+
+	public static void main(String[] args) {
+
+		// make sure the user specifies the correct
+		// number of command line arguments
+		if (args.length < 2) {
+			System.err.println("Usage: java RCMPReceiverDaemon <portNum> <directory> [-threads <count>]"
+					+ " [-idle <ms>] [-maxpayload <bytes>] [-ackevery <packets>] [-ackdelay <us>]"
+					+ " [-queue <packets>] [-writers <count>] [-maxconnections <count>] [-direct] [-mmap]"
+					+ " [-metrics <seconds>]");
+			System.exit(0);
+		}
+
+		int portNum = 22222;
+
+		// make sure the port number specified is an integer
+		try {
+			portNum = Integer.parseInt(args[0]);
+		} catch (NumberFormatException e) {
+			System.err.println("Cannot convert " + args[0] + " to int to use for port number");
+			System.exit(0);
+		}
+
+		int threads = DEFAULTTHREADS, idleTimeout = DEFAULTIDLETIMEOUT, maxPacketSize = RCMPHeader.MAXPACKETSIZE;
+		int ackCount = RCMPDelayedAck.DEFAULTCOUNT, ackDelay = RCMPDelayedAck.DEFAULTDELAY;
+		int queue = RCMPWriteBehindSink.DEFAULTQUEUE, metricsPeriod = 0;
+		int writers = DEFAULTWRITERS, maxConnections = DEFAULTMAXCONNECTIONS;
+		boolean direct = false, mapped = false, metrics = false;
+		for (int i = 2; i < args.length; i++) {
+			if (args[i].equals("-threads") && i + 1 < args.length) {
+				threads = parseOption(args[++i], "number of threads");
+			} else if (args[i].equals("-idle") && i + 1 < args.length) {
+				idleTimeout = parseOption(args[++i], "idle timeout");
+			} else if (args[i].equals("-maxpayload") && i + 1 < args.length) {
+				maxPacketSize = parseOption(args[++i], "maximum payload size");
+			} else if (args[i].equals("-ackevery") && i + 1 < args.length) {
+				ackCount = parseOption(args[++i], "packets per ACK");
+			} else if (args[i].equals("-ackdelay") && i + 1 < args.length) {
+				ackDelay = parseOption(args[++i], "ACK delay");
+			} else if (args[i].equals("-queue") && i + 1 < args.length) {
+				queue = parseOption(args[++i], "write queue size");
+			} else if (args[i].equals("-writers") && i + 1 < args.length) {
+				writers = parseOption(args[++i], "number of writer threads");
+			} else if (args[i].equals("-maxconnections") && i + 1 < args.length) {
+				maxConnections = parseOption(args[++i], "maximum number of connections");
+			} else if (args[i].equals("-metrics") && i + 1 < args.length) {
+				metricsPeriod = parseOption(args[++i], "metrics period");
+				metrics = true;
+			} else if (args[i].equals("-direct")) {
+				direct = true;
+			} else if (args[i].equals("-mmap")) {
+				mapped = true;
+			} else {
+				System.err.println("Unknown option: " + args[i]);
+				System.exit(0);
+			}
+		}
+
+		File directory = new File(args[1]);
+		if (!directory.isDirectory()) {
+			System.err.println("Not a directory: " + directory);
+			System.exit(0);
+		}
+
+		if (maxPacketSize < RCMPHeader.PACKETSIZE || maxPacketSize > RCMPHeader.MAXPACKETSIZE) {
+			System.err.println("Maximum payload size must be between " + RCMPHeader.PACKETSIZE + " and "
+					+ RCMPHeader.MAXPACKETSIZE);
+			System.exit(0);
+		}
+
+		try {
+			RCMPReceiverDaemon daemon = new RCMPReceiverDaemon(directory, idleTimeout, mapped,
+					new RCMPBufferPool(RCMPReceiveWindow.MAXWINDOW / 8, maxPacketSize, direct));
+			daemon.setAckPolicy(ackCount, ackDelay);
+			daemon.setWriteQueue(queue);
+			daemon.setWriters(writers);
+			daemon.setMaxConnections(maxConnections);
+			if (metrics) {
+				daemon.setMetrics(new RCMPMetricsReporter(metricsPeriod, System.out));
+			}
+			daemon.serve(portNum, threads);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(0);
+		} catch (IOException e) {
+			System.err.println("Error creating socket with port number " + portNum + ": " + e);
+			System.exit(0);
+		}
+	}
+
+	/**
+	 * Creates a daemon
+	 *
+	 * @param directory where to write the files, or null if a handler takes them
+	 * @param idleTimeoutMillis how long a connection may go without a packet before it is evicted
+	 * @param mapped whether to write the files through memory mappings
+	 * @param pool the pool to take the buffers of held and queued packets from
+	 */
+	public RCMPReceiverDaemon(File directory, int idleTimeoutMillis, boolean mapped, RCMPBufferPool pool) {
+		if (idleTimeoutMillis < 1) {
+			throw new IllegalArgumentException("Idle timeout must be at least 1 ms");
+		}
+		this.directory = directory;
+		this.idleTimeout = idleTimeoutMillis * 1000000L;
+		this.mapped = mapped;
+		this.pool = pool;
+	}
+
+	/**
+	 * Sets how the in-order packets of selective-repeat connections are ACKed
+	 *
+	 * @param count how many in-order packets one ACK covers, where 1 ACKs every packet at once
+	 * @param delayMicros the longest an in-order packet waits for its ACK, in microseconds
+	 */
+	public void setAckPolicy(int count, int delayMicros) {
+		if (count < 1 || delayMicros < 0) {
+			throw new IllegalArgumentException("ACKs must cover at least 1 packet and the ACK delay cannot be"
+					+ " negative");
+		}
+		this.ackCount = count;
+		this.ackDelay = delayMicros;
+	}
+
+	/**
+	 * Sets how many packets of each transfer may wait to be written by the
+	 * transfer's writer thread, so that a slow disk does not hold up the
+	 * receive threads
+	 *
+	 * @param packets the size of the queue, where 0 writes packets on the receive threads
+	 */
+	public void setWriteQueue(int packets) {
+		if (packets < 0) {
+			throw new IllegalArgumentException("The write queue size cannot be negative");
+		}
+		this.writeQueue = packets;
+	}
+
+	/**
+	 * Sets how many threads write the payloads of all transfers to their files
+	 *
+	 * @param threads the number of writer threads, which only matters with a write queue
+	 */
+	public void setWriters(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("There must be at least 1 writer thread");
+		}
+		this.writerThreads = threads;
+	}
+
+	/**
+	 * Sets how many connections we keep state for at once. The first packet
+	 * of any connection past that is dropped until others are evicted
+	 *
+	 * @param connections the most connections at once
+	 */
+	public void setMaxConnections(int connections) {
+		if (connections < 1) {
+			throw new IllegalArgumentException("There must be room for at least 1 connection");
+		}
+		this.maxConnections = connections;
+	}
+
+	/**
+	 * Returns how many connections we keep state for right now, finished ones
+	 * included until they are evicted
+	 */
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	/**
+	 * Makes every connection export its metrics through the given reporter
+	 * from its first packet until it is evicted
+	 */
+	public void setMetrics(RCMPMetricsReporter reporter) {
+		this.reporter = reporter;
+	}
+
+	/**
+	 * Hands every transfer to the given handler instead of writing it to a
+	 * file in the directory
+	 */
+	public void setHandler(RCMPTransferHandler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Returns how many packets each wakeup of the receive threads handled
+	 */
+	public RCMPBatchStats getReceiveStats() {
+		return receiveStats;
+	}
+
+	/**
+	 * Binds the given number of sockets to the port and receives on all of
+	 * them, evicting idle connections, until stop() is called
+	 *
+	 * @param portNum the port to receive on
+	 * @param threads how many sockets and receive threads to use
+	 */
+	public void serve(int portNum, int threads) throws IOException {
+		bind(portNum, threads);
+		serve();
+	}
+
+	/**
+	 * Binds the given number of sockets to the port, without receiving on
+	 * them until serve() is called. Port 0 binds them all to one free port
+	 *
+	 * @param portNum the port to receive on
+	 * @param threads how many sockets and receive threads to use
+	 */
+	public void bind(int portNum, int threads) throws IOException {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Threads must be at least 1");
+		}
+		channels = new DatagramChannel[threads];
+		selectors = new Selector[threads];
+		try {
+			for (int i = 0; i < threads; i++) {
+				channels[i] = DatagramChannel.open();
+				if (threads > 1) {
+					// let every thread bind its own socket to the same port
+					if (!channels[i].supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+						throw new IOException("Several threads need SO_REUSEPORT, which this platform lacks");
+					}
+					channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				}
+				channels[i].bind(new InetSocketAddress(i == 0 ? portNum : getPort()));
+				// the channels are non-blocking so that the threads can wake up to send delayed ACKs
+				channels[i].configureBlocking(false);
+				selectors[i] = Selector.open();
+				channels[i].register(selectors[i], SelectionKey.OP_READ);
+			}
+		} catch (IOException e) {
+			stop();
+			closeSelectors();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the port the daemon is bound to
+	 */
+	public int getPort() throws IOException {
+		return ((InetSocketAddress) channels[0].getLocalAddress()).getPort();
+	}
+
+	/**
+	 * Receives on the sockets bind() bound, evicting idle connections, until
+	 * stop() is called
+	 */
+	public void serve() throws IOException {
+		int threads = channels.length;
+		Thread[] receivers = new Thread[threads];
+		writers = Executors.newFixedThreadPool(writerThreads, runnable -> {
+			Thread writer = new Thread(runnable, "RCMP daemon writer");
+			writer.setDaemon(true);
+			return writer;
+		});
+		try {
+			for (int i = 0; i < threads; i++) {
+				DatagramChannel channel = channels[i];
+				Selector selector = selectors[i];
+				receivers[i] = new Thread(() -> receiveLoop(channel, selector), "RCMP daemon receiver " + i);
+				receivers[i].start();
+			}
+
+			// check for idle connections a few times per timeout
+			while (running) {
+				try {
+					Thread.sleep(Math.max(1, Math.min(1000, idleTimeout / 4000000L)));
+				} catch (InterruptedException e) {
+					break;
+				}
+				evictIdle(System.nanoTime());
+			}
+		} finally {
+			stop();
+			for (Thread receiver : receivers) {
+				if (receiver != null) {
+					try {
+						receiver.join();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+			closeSelectors();
+			evictIdle(Long.MAX_VALUE);
+			writers.shutdown();
+		}
+	}
+
+	/**
+	 * Stops receiving, which makes serve() return once every connection has
+	 * been evicted
+	 */
+	public void stop() {
+		running = false;
+		if (selectors != null) {
+			for (Selector selector : selectors) {
+				if (selector != null) {
+					selector.wakeup();
+				}
+			}
+		}
+		if (channels != null) {
+			for (DatagramChannel channel : channels) {
+				try {
+					if (channel != null) {
+						channel.close();
+					}
+				} catch (IOException e) {
+					System.err.println("Error closing socket: " + e);
+				}
+			}
+		}
+	}
+
+	private void closeSelectors() throws IOException {
+		for (Selector selector : selectors) {
+			if (selector != null) {
+				selector.close();
+			}
+		}
+	}
+
+	/**
+	 * Receives packets from one socket and hands each of them to its
+	 * connection until the socket is closed, draining every packet waiting
+	 * into a batch on each wakeup. All of the buffers used per packet are
+	 * allocated once up front
+	 *
+	 * @param channel the socket to receive from
+	 * @param selector a selector the channel is registered with for reading
+	 */
+	private void receiveLoop(DatagramChannel channel, Selector selector) {
+		int maxPacketSize = pool.getBufferSize();
+		RCMPDatagramBatch batch = new RCMPDatagramBatch(RCMPDatagramBatch.DEFAULTBATCH,
+				maxPacketSize + RCMPHeader.MAXHEADERSIZE, pool.isDirect(), receiveStats);
+		ByteBuffer ackByteBuffer = pool.isDirect() ? ByteBuffer.allocateDirect(RCMPHeader.PACKETSIZE)
+				: ByteBuffer.allocate(RCMPHeader.PACKETSIZE);
+		RCMPHeader header = new RCMPHeader();
+		RCMPDigest verifier = new RCMPDigest();
+
+		// senders usually send runs of packets, so remember the last connection
+		// to skip the map lookup for the rest of the run
+		Connection connection = null;
+
+		// the connections this thread owes a delayed ACK, and when the first is due
+		ArrayList<Connection> delayed = new ArrayList<>();
+		long ackDeadline = Long.MAX_VALUE;
+
+		while (running) {
+			try {
+				if (System.nanoTime() - ackDeadline >= 0) {
+					ackDeadline = sendDelayedAcks(channel, ackByteBuffer, delayed);
+				}
+				// receive every packet waiting, or wait for one, or until the next delayed ACK is due
+				if (batch.receive(channel) == 0) {
+					long timeout = 0;
+					if (ackDeadline != Long.MAX_VALUE) {
+						timeout = Math.max(1, (ackDeadline - System.nanoTime() + 999999) / 1000000);
+					}
+					selector.select(timeout);
+					selector.selectedKeys().clear();
+					continue;
+				}
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {
+				System.err.println("Error receiving data from socket: " + e);
+				continue;
+			}
+
+			for (int packet = 0; packet < batch.size(); packet++) {
+				ByteBuffer byteBuffer = batch.get(packet);
+				SocketAddress sender = batch.getSender(packet);
+				if (!header.read(byteBuffer)) {
+					continue;
+				}
+
+				// before sending any packets, a sender may probe which payload sizes reach us, say
+				// hello, ask for a payload size, or ask which packets we already have to resume a
+				// transfer. Parity packets belong to a connection and are handled along with its packets
+				if (header.hasFlag(RCMPHeader.CONTROLFLAG) && header.controlType != RCMPHeader.PARITY) {
+					boolean reply = false;
+					if (header.controlType == RCMPHeader.HELLOQUERY
+							&& byteBuffer.remaining() >= RCMPHeader.HELLOQUERYSIZE - RCMPHeader.HEADERSIZE - 1) {
+						reply = hello(ackByteBuffer, header.connectionID, byteBuffer);
+					} else if (header.controlType == RCMPHeader.PROBEQUERY) {
+						reply = RCMPReceiver.putProbe(ackByteBuffer, header, byteBuffer, maxPacketSize);
+					} else if (header.controlType == RCMPHeader.SIZEQUERY
+							&& byteBuffer.remaining() >= RCMPHeader.SIZEQUERYSIZE - RCMPHeader.HEADERSIZE - 1) {
+						int requested = byteBuffer.getInt();
+						Transfer transfer = openSized(header.connectionID, byteBuffer.getLong(),
+								RCMPReceiver.acceptPacketSize(requested, maxPacketSize));
+						if (transfer != null) {
+							RCMPReceiver.putSize(ackByteBuffer, header.connectionID, RCMPHeader.SIZETYPE,
+									transfer.packetSize);
+							reply = true;
+						}
+					} else if (header.controlType == RCMPHeader.RESUMEQUERY
+							&& byteBuffer.remaining() >= RCMPHeader.RESUMEQUERYSIZE - RCMPHeader.HEADERSIZE - 1) {
+						long fileID = byteBuffer.getLong(), totalSize = byteBuffer.getLong();
+						Transfer transfer = openResumable(header.connectionID, fileID, totalSize,
+								RCMPReceiver.acceptPacketSize(byteBuffer.getInt(), maxPacketSize));
+						if (transfer != null) {
+							synchronized (transfer) {
+								RCMPReceiver.putResume(ackByteBuffer, header.connectionID, transfer.journal);
+							}
+							reply = true;
+						}
+					}
+					if (reply) {
+						try {
+							channel.send(ackByteBuffer, sender);
+						} catch (ClosedChannelException e) {
+							return;
+						} catch (IOException e) {
+							System.err.println("Error sending reply: " + e);
+						}
+					}
+					continue;
+				}
+
+				// drop corrupted packets, which the sender will send again
+				if (header.hasFlag(RCMPHeader.CRCFLAG) && !verifier.verify(byteBuffer, header.checksum)) {
+					continue;
+				}
+
+				if (connection == null || connection.connectionID != header.connectionID || connection.evicted) {
+					connection = connections.get(header.connectionID);
+					if (connection == null) {
+						connection = openConnection(header);
+						if (connection == null) {
+							continue;
+						}
+					}
+				}
+				connection.lastActivity = System.nanoTime();
+
+				// the streams of a transfer share its file, so only one of them writes at a time
+				Transfer transfer = connection.transfer;
+				if (byteBuffer.remaining() > transfer.packetSize
+						+ (header.hasFlag(RCMPHeader.CONTROLFLAG) ? RCMPHeader.PARITYSIZE : 0)) {
+					continue;
+				}
+				boolean ack = false, confirm = false;
+				long digest = 0;
+				synchronized (transfer) {
+					if (connection.evicted) {
+						continue;
+					}
+					try {
+						boolean wasComplete = connection.window.isComplete();
+						long expected = connection.window.getNextExpectedPacket();
+						ack = RCMPReceiver.receive(connection.window, header, byteBuffer)
+								&& header.hasFlag(RCMPHeader.ACKFLAG);
+
+						// build the ACK while the window cannot change, unless it can wait for the next few packets
+						if (ack && header.hasFlag(RCMPHeader.SELECTIVEFLAG) && connection.ack.isEnabled()) {
+							ack = connection.ack.onPacket(RCMPReceiver.isInOrder(header, connection.window, expected),
+									sender, System.nanoTime());
+							if (ack) {
+								RCMPReceiver.putSack(ackByteBuffer, header.connectionID, connection.window);
+							} else if (!connection.queued) {
+								connection.queued = true;
+								delayed.add(connection);
+								ackDeadline = Math.min(ackDeadline, connection.ack.getDeadline());
+							}
+						} else if (ack) {
+							RCMPReceiver.putAck(ackByteBuffer, header, connection.window);
+						}
+
+						// confirm the digest once the connection has everything, taking it while the
+						// window cannot change
+						if (ack && header.hasFlag(RCMPHeader.CRCFLAG) && connection.window.isComplete()) {
+							confirm = true;
+							digest = connection.window.getDigest();
+						}
+						if (!wasComplete && connection.window.isComplete()) {
+							transfer.completeRange(connection.window.getFileSize());
+						} else if (transfer.journal != null && !transfer.complete) {
+							transfer.journal.checkpoint(transfer.sink, false);
+						}
+					} catch (IOException e) {
+						System.err.println("Error writing " + transfer.part + ": " + e);
+						transfer.failed = true;
+					}
+				}
+
+				// ack the packet if the window wrote or held it and the sender asked for an ACK
+				if (ack) {
+					try {
+						channel.send(ackByteBuffer, sender);
+						if (confirm) {
+							RCMPReceiver.putDigest(ackByteBuffer, header.connectionID, digest);
+							channel.send(ackByteBuffer, sender);
+						}
+					} catch (ClosedChannelException e) {
+						return;
+					} catch (IOException e) {
+						System.err.println("Error sending ACK: " + e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends the delayed ACK of every connection in the list whose ACK is due,
+	 * dropping them from the list along with the connections that no longer
+	 * owe one, and returns when the next one is due, or Long.MAX_VALUE if none
+	 * are left
+	 *
+	 * @param channel the channel to send the ACKs on
+	 * @param ackByteBuffer the buffer to build the ACKs in
+	 * @param delayed the connections owing a delayed ACK
+	 */
+	private long sendDelayedAcks(DatagramChannel channel, ByteBuffer ackByteBuffer, ArrayList<Connection> delayed)
+			throws IOException {
+		long now = System.nanoTime(), next = Long.MAX_VALUE;
+		for (int i = 0; i < delayed.size();) {
+			Connection connection = delayed.get(i);
+			boolean due = false;
+			synchronized (connection.transfer) {
+				if (!connection.evicted && connection.ack.isPending()) {
+					due = connection.ack.takeDue(now);
+					if (!due) {
+						next = Math.min(next, connection.ack.getDeadline());
+						i++;
+						continue;
+					}
+				}
+				if (due) {
+					RCMPReceiver.putSack(ackByteBuffer, connection.connectionID, connection.window);
+				}
+				connection.queued = false;
+			}
+			// the order of the list does not matter, so fill the gap with its last entry
+			delayed.set(i, delayed.get(delayed.size() - 1));
+			delayed.remove(delayed.size() - 1);
+			if (due) {
+				channel.send(ackByteBuffer, connection.ack.getSender());
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Creates the state of a connection on its first packet, opening the file
+	 * of its transfer unless another stream of the transfer already has.
+	 * Returns null if the packet should be dropped
+	 *
+	 * @param header the header of the connection's first packet
+	 */
+	private synchronized Connection openConnection(RCMPHeader header) {
+		Connection connection = connections.get(header.connectionID);
+		if (connection != null) {
+			return connection;
+		}
+		if (connections.size() >= maxConnections) {
+			return null;
+		}
+
+		// a transfer whose sender did not negotiate a payload size uses the default
+		Transfer transfer = transfers.get(header.transferID);
+		if (transfer == null) {
+			if (!header.hasValidRange(RCMPHeader.PACKETSIZE)) {
+				return null;
+			}
+			try {
+				transfer = new Transfer(header.transferID, header.totalSize, RCMPHeader.PACKETSIZE);
+			} catch (IOException e) {
+				System.err.println("Error opening file for transfer " + header.transferID + ": " + e);
+				return null;
+			}
+			transfers.put(header.transferID, transfer);
+		} else if (transfer.totalSize != header.totalSize || transfer.connections == RCMPHeader.MAXSTREAMS
+				|| !header.hasValidRange(transfer.packetSize)) {
+			return null;
+		}
+
+		synchronized (transfer) {
+			connection = new Connection(header.connectionID, transfer, new RCMPReceiveWindow(transfer.sink,
+					header.fileSize, transfer.packetSize, header.rangeOffset / transfer.packetSize, pool,
+					transfer.journal, header.hasFlag(RCMPHeader.COMPRESSEDFLAG)),
+					new RCMPDelayedAck(header.connectionID, ackCount, ackDelay));
+			connection.window.setMetrics(new RCMPMetrics(RCMPMetrics.RECEIVER, header.connectionID));
+			if (reporter != null) {
+				reporter.add(connection.window.getMetrics());
+			}
+			transfer.connections++;
+			connections.put(header.connectionID, connection);
+			// a resumed range may have been complete before it started
+			if (connection.window.isComplete()) {
+				try {
+					transfer.completeRange(connection.window.getFileSize());
+				} catch (IOException e) {
+					System.err.println("Error writing " + transfer.part + ": " + e);
+					transfer.failed = true;
+				}
+			}
+		}
+		return connection;
+	}
+
+	/**
+	 * Opens the file of a transfer whose sender asked for a payload size, or
+	 * finds it if the request was sent again. Returns null if the file cannot
+	 * be opened
+	 *
+	 * @param transferID the id of the transfer
+	 * @param totalSize the size of the file
+	 * @param packetSize the payload size we accept for the transfer
+	 */
+	private synchronized Transfer openSized(int transferID, long totalSize, int packetSize) {
+		Transfer transfer = transfers.get(transferID);
+		if (transfer == null) {
+			if (totalSize < 0 || connections.size() >= maxConnections) {
+				return null;
+			}
+			try {
+				transfer = new Transfer(transferID, totalSize, packetSize);
+			} catch (IOException e) {
+				System.err.println("Error opening file for transfer " + transferID + ": " + e);
+				return null;
+			}
+			transfers.put(transferID, transfer);
+		}
+		transfer.lastActivity = System.nanoTime();
+		return transfer;
+	}
+
+	/**
+	 * Answers a hello with the payload size and window we agree to and every
+	 * feature the sender asked for, since every file we write can take all
+	 * of them, except resuming when a handler takes the files. The file is
+	 * opened for the agreed payload size right away, unless the sender is
+	 * about to ask to resume it, which opens it then. Returns false if there
+	 * should be no reply
+	 *
+	 * @param ackByteBuffer the buffer to build the reply in, ready to send afterwards
+	 * @param transferID the id of the sender's transfer
+	 * @param hello the hello, positioned after its type byte
+	 */
+	private boolean hello(ByteBuffer ackByteBuffer, int transferID, ByteBuffer hello) {
+		hello.get();
+		int features = hello.getInt();
+		int packetSize = RCMPReceiver.acceptPacketSize(hello.getInt(), pool.getBufferSize());
+		int window = Math.min(hello.getInt(), RCMPReceiveWindow.MAXWINDOW);
+		long totalSize = hello.getLong();
+		if (handler != null) {
+			features &= ~RCMPHeader.RESUMEFEATURE;
+		}
+		if ((features & RCMPHeader.RESUMEFEATURE) == 0) {
+			Transfer transfer = openSized(transferID, totalSize, packetSize);
+			if (transfer == null) {
+				return false;
+			}
+			packetSize = transfer.packetSize;
+		}
+		RCMPReceiver.putHello(ackByteBuffer, transferID, features, packetSize, window);
+		return true;
+	}
+
+	/**
+	 * Finds or opens the file a sender wants to resume, taking over a transfer
+	 * of the same file whose sender went away. Returns null if the file
+	 * cannot be opened, or is taken by a handler, which cannot resume it
+	 *
+	 * @param transferID the id of the sender's new transfer
+	 * @param fileID the identity of the file
+	 * @param totalSize the size of the file
+	 * @param packetSize the payload size we accept for the transfer, unless
+	 *        the transfer it joins or the journal it resumes uses another one
+	 */
+	private synchronized Transfer openResumable(int transferID, long fileID, long totalSize, int packetSize) {
+		Transfer transfer = transfers.get(transferID);
+		if (transfer == null && handler != null) {
+			return null;
+		}
+		if (transfer == null) {
+			for (Transfer other : transfers.values()) {
+				if (other.journal != null && other.journal.getFileID() == fileID && other.totalSize == totalSize
+						&& !other.complete) {
+					transfer = other;
+				}
+			}
+			if (transfer == null) {
+				try {
+					transfer = new Transfer(transferID, totalSize, fileID, packetSize);
+				} catch (IOException e) {
+					System.err.println("Error opening file for transfer " + transferID + ": " + e);
+					return null;
+				}
+			}
+			transfers.put(transferID, transfer);
+		}
+		transfer.lastActivity = System.nanoTime();
+		return transfer;
+	}
+
+	/**
+	 * Removes every connection that has not received a packet within the idle
+	 * timeout, or whose transfer failed, closing the file of any transfer left
+	 * without connections, and of any resumable transfer that never got one.
+	 * Finished transfers keep their connections until they go idle, so that
+	 * retransmissions of the last packets are ACKed
+	 *
+	 * @param now the current time, from System.nanoTime()
+	 */
+	private synchronized void evictIdle(long now) {
+		for (Connection connection : connections.values()) {
+			Transfer transfer = connection.transfer;
+			if (now - connection.lastActivity < idleTimeout && !transfer.failed) {
+				continue;
+			}
+			connections.remove(connection.connectionID);
+			synchronized (transfer) {
+				connection.evicted = true;
+				connection.window.release();
+				if (reporter != null) {
+					reporter.remove(connection.window.getMetrics());
+				}
+				if (--transfer.connections == 0) {
+					transfers.values().removeIf(other -> other == transfer);
+					transfer.abandon();
+				}
+			}
+		}
+		for (Transfer transfer : transfers.values()) {
+			if (transfer.connections == 0 && now - transfer.lastActivity >= idleTimeout) {
+				transfers.values().removeIf(other -> other == transfer);
+				synchronized (transfer) {
+					transfer.abandon();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Converts a numeric command line option to an int, exiting with an
+	 * error message when it isn't one
+	 *
+	 * @param value the value given on the command line
+	 * @param name what the value is used for
+	 */
+	private static int parseOption(String value, String name) {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			System.err.println("Cannot convert " + value + " to int to use for " + name);
+			System.exit(0);
+			return -1;
+		}
+	}
+
+	/**
+	 * The receive window of one connection, and the transfer it belongs to
+	 */
+	private static class Connection {
+		private int connectionID;
+		private Transfer transfer;
+		private RCMPReceiveWindow window;
+		private RCMPDelayedAck ack;
+		private volatile long lastActivity = System.nanoTime();
+		private volatile boolean evicted = false;
+
+		// whether the connection is in a receive thread's list of delayed ACKs
+		private boolean queued = false;
+
+		public Connection(int connectionID, Transfer transfer, RCMPReceiveWindow window, RCMPDelayedAck ack) {
+			this.connectionID = connectionID;
+			this.transfer = transfer;
+			this.window = window;
+			this.ack = ack;
+		}
+	}
+
+	/**
+	 * The file one transfer is written to, shared by all of its connections
+	 * and only used while holding its lock
+	 */
+	private class Transfer {
+		private int transferID;
+		private long totalSize;
+		private int packetSize;
+		private long bytesComplete = 0;
+		private int connections = 0;
+		private boolean complete = false;
+		private volatile boolean failed = false;
+		private volatile long lastActivity = System.nanoTime();
+
+		// the journal of a transfer the sender may resume, or null
+		private RCMPJournal journal;
+		private long totalPackets;
+
+		private File part;
+		private File finished;
+		private RandomAccessFile fout;
+		private RCMPSink sink;
+
+		public Transfer(int transferID, long totalSize, int packetSize) throws IOException {
+			this(transferID, totalSize, packetSize, "transfer-" + Integer.toUnsignedString(transferID, 16), null);
+		}
+
+		/**
+		 * Opens a transfer the sender may resume, picking up the part and the
+		 * journal an earlier attempt at the same file left behind
+		 */
+		public Transfer(int transferID, long totalSize, long fileID, int packetSize) throws IOException {
+			this(transferID, totalSize, packetSize, "transfer-" + Long.toUnsignedString(fileID, 16), fileID);
+		}
+
+		private Transfer(int transferID, long totalSize, int packetSize, String name, Long fileID)
+				throws IOException {
+			File journalFile = new File(directory, name + ".journal");
+			if (fileID != null && handler == null) {
+				// the journal counts packets in the payload size of the attempt that saved it, so
+				// a new attempt has to use that one
+				int saved = RCMPJournal.savedPacketSize(journalFile, fileID, totalSize);
+				if (saved >= RCMPHeader.MINPACKETSIZE && saved <= pool.getBufferSize()) {
+					packetSize = saved;
+				}
+			}
+			this.transferID = transferID;
+			this.totalSize = totalSize;
+			this.packetSize = packetSize;
+			totalPackets = Math.max(1, (totalSize + packetSize - 1) / packetSize);
+			part = new File(directory, name + ".part");
+			finished = new File(directory, name);
+			if (handler != null) {
+				sink = openHandled();
+			} else {
+				if (fileID != null) {
+					journal = RCMPJournal.load(journalFile, fileID, totalSize, packetSize);
+				}
+				fout = new RandomAccessFile(part, "rw");
+				if (journal == null || journal.getRangeCount() == 0) {
+					fout.setLength(0);
+				}
+				sink = mapped ? new RCMPMappedSink(fout.getChannel()) : new RCMPFileSink(fout.getChannel());
+			}
+			if (writeQueue > 0) {
+				sink = new RCMPWriteBehindSink(sink, pool, writeQueue, writers);
+			}
+			sink.open(totalSize);
+		}
+
+		/**
+		 * Asks the handler for the sink of the transfer, turning whatever goes
+		 * wrong in it into an IOException so that it cannot stop a receive thread
+		 */
+		private RCMPSink openHandled() throws IOException {
+			RCMPSink handled;
+			try {
+				handled = handler.open(transferID, totalSize);
+			} catch (RuntimeException e) {
+				throw new IOException("The handler failed: " + e, e);
+			}
+			if (handled == null) {
+				throw new IOException("The handler turned the transfer down");
+			}
+			return handled;
+		}
+
+		/**
+		 * Counts one more range as written, and moves the file into place once
+		 * the ranges cover all of it, or tells the handler
+		 *
+		 * @param bytes the size of the range
+		 */
+		public void completeRange(long bytes) throws IOException {
+			bytesComplete += bytes;
+			// the ranges of a resumed transfer may have been counted by an earlier
+			// attempt too, so its journal decides when it is complete
+			boolean written = journal != null ? journal.rangeEnd(0) >= totalPackets : bytesComplete >= totalSize;
+			if (written && !complete) {
+				complete = true;
+				try {
+					sink.close();
+				} finally {
+					if (fout != null) {
+						fout.close();
+					}
+				}
+				if (handler != null) {
+					try {
+						handler.completed(transferID, totalSize);
+					} catch (RuntimeException e) {
+						System.err.println("Error handing over transfer " + transferID + ": " + e);
+					}
+					return;
+				}
+				if (journal != null) {
+					journal.delete();
+				}
+				Files.move(part.toPath(), finished.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				System.out.println("Received " + finished + " (" + totalSize + " bytes)");
+			}
+		}
+
+		/**
+		 * Closes the file once the last connection is gone. A transfer that
+		 * never finished is deleted, unless its sender may resume it, in which
+		 * case the part and its journal are saved for the next attempt. The
+		 * handler of a transfer hears that it was abandoned instead
+		 */
+		public void abandon() {
+			if (complete) {
+				return;
+			}
+			// the file is closed even if the sink failed, so that it is not left open
+			try {
+				try {
+					if (journal != null) {
+						journal.checkpoint(sink, true);
+					}
+					sink.close();
+				} finally {
+					if (fout != null) {
+						fout.close();
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("Error closing " + part + ": " + e);
+			}
+			if (handler != null) {
+				try {
+					handler.abandoned(transferID, totalSize);
+				} catch (RuntimeException e) {
+					System.err.println("Error handing over transfer " + transferID + ": " + e);
+				}
+			} else if (journal != null) {
+				System.out.println("Kept " + part + " with " + journal.getRangeCount() + " ranges for resuming");
+			} else {
+				part.delete();
+				System.out.println("Abandoned " + part + " after " + bytesComplete + " of " + totalSize + " bytes");
+			}
+		}
+	}
+}
@@ -0,0 +1,42 @@
+import java.io.File;
+
+/**
+ * This class holds the options of an RCMP receiver that receives one file,
+ * the way RCMPSenderOptions does for the sender, so that a new option is a
+ * new field rather than another way of calling RCMPReceiver.receiveFile
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPReceiverOptions {
+
+	// the pool to take packet buffers from, whose buffer size is the largest payload size we
+	// accept, or null for a pool of our own with buffers of MAXPACKETSIZE bytes
+	public RCMPBufferPool pool;
+
+	// where to keep the journal that lets a sender resume an interrupted transfer of the same
+	// file, or null to refuse to resume
+	public File journalFile;
+
+	// how many in-order packets of a selective-repeat connection one ACK covers, where 1 ACKs
+	// every packet at once, and the longest such a packet waits for its ACK, in microseconds
+	public int ackCount = RCMPDelayedAck.DEFAULTCOUNT;
+	public int ackDelay = RCMPDelayedAck.DEFAULTDELAY;
+
+	// where to count how many packets each wakeup of the receive loop found waiting
+	public RCMPBatchStats stats = new RCMPBatchStats();
+
+	// where to export the metrics of every connection until the file is received, or null not to
+	public RCMPMetricsReporter reporter;
+
+	/**
+	 * Returns the pool to take packet buffers from, creating one of our own
+	 * if none was given
+	 */
+	public RCMPBufferPool getPool() {
+		if (pool == null) {
+			pool = new RCMPBufferPool(RCMPReceiveWindow.MAXWINDOW / 8, RCMPHeader.MAXPACKETSIZE, false);
+		}
+		return pool;
+	}
+}
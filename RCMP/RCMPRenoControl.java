@@ -0,0 +1,57 @@
+/**
+ * This class implements Reno congestion control: the window doubles every
+ * round trip during slow start, grows by one packet per round trip once it
+ * passes the slow start threshold, is halved when a loss is detected from
+ * later packets being ACKed and drops back to one packet on a timeout
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPRenoControl implements RCMPCongestionControl {
+
+    // the window a connection starts out with, in packets
+    public static final int INITIALWINDOW = 4;
+
+    protected int maxWindow;
+    protected double window = INITIALWINDOW;
+    protected double slowStartThreshold;
+
+    public RCMPRenoControl(int maxWindow) {
+        this.maxWindow = Math.max(1, maxWindow);
+        slowStartThreshold = this.maxWindow;
+    }
+
+    public void onAck(int packetsAcked, long rttNanos) {
+        for (int i = 0; i < packetsAcked; i++) {
+            if (window < slowStartThreshold) {
+                window += 1;
+            } else {
+                window += 1 / window;
+            }
+        }
+        window = Math.min(window, maxWindow);
+    }
+
+    public void onLoss() {
+        slowStartThreshold = Math.max(2, window / 2);
+        window = slowStartThreshold;
+    }
+
+    public void onTimeout() {
+        slowStartThreshold = Math.max(2, window / 2);
+        window = 1;
+    }
+
+    public int getWindow() {
+        return Math.max(1, (int) window);
+    }
+
+    public long getPacingRate(long srttNanos, int packetBytes) {
+        if (srttNanos <= 0) {
+            return 0;
+        }
+        // in slow start the window doubles every round trip, so the rate has to keep up with it
+        double gain = window < slowStartThreshold ? 2 : 1.25;
+        return (long) (gain * getWindow() * packetBytes * 1e9 / srttNanos);
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * This class estimates the round trip time of an RCMP connection and derives
+ * the retransmission timeout from it, following Jacobson's algorithm: the
+ * timeout is the smoothed RTT plus four times the RTT variance, doubled on
+ * every timeout and kept between a floor and a ceiling. Following Karn's
+ * algorithm, callers should only feed in samples from packets that were
+ * never retransmitted
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPRttEstimator {
+
+    // the timeout used before the first sample arrives, in milliseconds
+    public static final int INITIALTIMEOUT = 200;
+    // the default floor and ceiling of the timeout, in milliseconds
+    public static final int DEFAULTMINTIMEOUT = 10;
+    public static final int DEFAULTMAXTIMEOUT = 3000;
+
+    private static final long NANOSPERMILLI = 1000000L;
+
+    private long minTimeout;
+    private long maxTimeout;
+
+    // smoothed RTT, RTT variance and the current timeout, all in nanoseconds
+    private long srtt = -1;
+    private long rttvar;
+    private long timeout;
+
+    public RCMPRttEstimator(int minTimeoutMillis, int maxTimeoutMillis) {
+        if (minTimeoutMillis < 1 || maxTimeoutMillis < minTimeoutMillis) {
+            throw new IllegalArgumentException("Timeout floor must be at least 1 ms and no more than the ceiling");
+        }
+        minTimeout = minTimeoutMillis * NANOSPERMILLI;
+        maxTimeout = maxTimeoutMillis * NANOSPERMILLI;
+        timeout = clamp(INITIALTIMEOUT * NANOSPERMILLI);
+    }
+
+    public RCMPRttEstimator() {
+        this(DEFAULTMINTIMEOUT, DEFAULTMAXTIMEOUT);
+    }
+
+    /**
+     * Folds a new round trip measurement into the estimate and recomputes the
+     * timeout, which also undoes any backoff
+     *
+     * @param rttNanos the time between sending a packet and receiving its ACK
+     */
+    public void sample(long rttNanos) {
+        if (srtt < 0) {
+            srtt = rttNanos;
+            rttvar = rttNanos / 2;
+        } else {
+            // rttvar = 3/4 rttvar + 1/4 |srtt - rtt|, srtt = 7/8 srtt + 1/8 rtt
+            rttvar += (Math.abs(srtt - rttNanos) - rttvar) / 4;
+            srtt += (rttNanos - srtt) / 8;
+        }
+        timeout = clamp(srtt + 4 * rttvar);
+    }
+
+    /**
+     * Doubles the timeout after it has fired, up to the ceiling
+     */
+    public void backoff() {
+        timeout = clamp(timeout * 2);
+    }
+
+    public long getTimeoutNanos() {
+        return timeout;
+    }
+
+    /**
+     * Returns the timeout rounded up to whole milliseconds, as socket timeouts
+     * expect
+     */
+    public int getTimeoutMillis() {
+        return (int) ((timeout + NANOSPERMILLI - 1) / NANOSPERMILLI);
+    }
+
+    /**
+     * Returns the smoothed RTT in nanoseconds, or -1 before the first sample
+     */
+    public long getSmoothedRtt() {
+        return srtt;
+    }
+
+    public long getRttVariance() {
+        return rttvar;
+    }
+
+    private long clamp(long value) {
+        return Math.max(minTimeout, Math.min(maxTimeout, value));
+    }
+}
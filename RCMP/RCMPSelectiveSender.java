@@ -0,0 +1,789 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class implements the selective-repeat mode of the RCMP sender. It keeps
+ * a window of in-flight packets no larger than its congestion control allows,
+ * asks the receiver to ACK every one of them and only retransmits the packets
+ * whose ACKs have not arrived within the timeout kept by an RCMPRttEstimator.
+ * With SACKs turned on, every ACK reports all of the packets the receiver
+ * holds, so one lost ACK no longer causes a packet that already arrived to be
+ * sent again. A packet is fast-retransmitted without waiting for its timer
+ * once DUPTHRESHOLD packets sent after it have been ACKed
+ *
+ * The sender is pipelined: the thread that calls send() only transmits, and a
+ * second thread waits on a Selector for ACKs and processes them, so the link
+ * never sits idle while an ACK is being waited for. The two threads share the
+ * window state under this object's lock, but neither holds the lock while
+ * reading the file or doing socket I/O
+ *
+ * Payloads come from an RCMPSource, and each packet goes out as one gathering
+ * write of its header and its payload, so a source can hand out views of a
+ * memory-mapped file without the payload being copied into a packet buffer
+ *
+ * An RCMPPacer can hold each packet back until its send time, so that the
+ * window goes out spread over the round trip rather than in one burst, at a
+ * fixed rate or at the rate the congestion control allows
+ *
+ * With forward error correction on, an RCMPParityEncoder follows every block
+ * of packets with parity packets, from which the receiver rebuilds lost
+ * packets without waiting for them to be retransmitted
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPSelectiveSender {
+
+    // how many timeouts in a row we allow before giving up
+    public static final int MAXTIMEOUTS = 10;
+    // the window used when SACKs are requested without a window size
+    public static final int DEFAULTWINDOW = 64;
+    // how many later packets have to be ACKed before we consider a packet lost
+    public static final int DUPTHRESHOLD = 3;
+    // how often the ACK thread checks whether the transfer is over, in milliseconds
+    private static final int ACKPOLL = 100;
+    // room for the header of each packet
+    private static final int HEADERCAPACITY = 64;
+    // the most packets sent, or ACKs processed, per turn of the lock
+    public static final int MAXBATCH = 32;
+
+    private DatagramChannel channel;
+    private RCMPSource source;
+    private int connectionID;
+    private long fileSize;
+    private long totalPackets;
+    private boolean longHeader;
+    private boolean compressed;
+
+    // the transfer this sender's range belongs to, where the range starts in the
+    // file and how big the whole file is, when the file is split over several streams
+    private int transferID;
+    private long rangeOffset = 0;
+    private long totalSize = -1;
+
+    // the packets of the file the receiver already has from an earlier attempt
+    private RCMPJournal received;
+
+    // the checksums of the packets and the digest of the connection, when the
+    // receiver is asked to check them, and whether it has confirmed the digest
+    private RCMPDigest digest;
+    private boolean verified = false;
+    private int windowSize;
+    private boolean sack;
+    private RCMPRttEstimator rtt;
+    private RCMPCongestionControl congestion;
+
+    // the pacer the packets wait for, if any, and whether its rate follows the congestion control
+    private RCMPPacer pacer;
+    private boolean followCongestion;
+
+    // the parity of the block being sent, and the header and body of a parity packet
+    private RCMPParityEncoder parity;
+    private ByteBuffer[] parityPacket;
+
+    // the in-flight packets, indexed by packetNum % windowSize, as a header
+    // and a payload buffer each, where the payload starts in its buffer, and
+    // the System.nanoTime() they were last sent at
+    private ByteBuffer[][] slots;
+    private int[] payloadStarts;
+    private long[] sendTimes;
+    private boolean[] acked;
+    private boolean[] retransmitted;
+
+    // packets the ACK thread has found lost, waiting for the transmit thread
+    private long[] retransmitQueue;
+    private boolean[] queued;
+    private int queueHead = 0;
+    private int queueSize = 0;
+
+    // the oldest packet not yet ACKed and the next packet to be sent for the first time
+    private long base = 0;
+    private long nextToSend = 0;
+
+    // the send time of the newest once-sent packet covered by the current ACK,
+    // and how many packets it newly covers
+    private long newestSample;
+    private int newlyAcked;
+
+    // the highest packet ACKed so far, and the packet that has to be ACKed
+    // before another loss is reported to the congestion control
+    private long highestAcked = -1;
+    private long recoveryPoint = 0;
+
+    // how many times the timer has fired since the last ACK
+    private int timeoutCount = 0;
+
+    // set by the transmit thread to stop the ACK thread, and by the ACK thread
+    // when it fails
+    private volatile boolean running;
+    private IOException failure;
+
+    // how many packets the transmit thread sent, and how many ACKs the ACK thread
+    // processed, per turn of the lock
+    private RCMPBatchStats transmitStats = new RCMPBatchStats();
+    private RCMPBatchStats ackStats = new RCMPBatchStats();
+
+    // what the connection has done so far, read by JMX and the metrics log
+    private RCMPMetrics metrics;
+
+    /**
+     * Creates a sender for one file over a DatagramChannel that is already
+     * connected to the receiver. The source must have been created for the
+     * same window size
+     */
+    public RCMPSelectiveSender(DatagramChannel channel, RCMPSource source, int connectionID, int windowSize,
+            boolean sack, RCMPRttEstimator rtt, RCMPCongestionControl congestion) {
+        if (windowSize < 1 || windowSize > RCMPReceiveWindow.MAXWINDOW) {
+            throw new IllegalArgumentException("Window size must be between 1 and " + RCMPReceiveWindow.MAXWINDOW);
+        }
+        this.channel = channel;
+        this.source = source;
+        this.connectionID = connectionID;
+        this.fileSize = source.getSize();
+        this.windowSize = windowSize;
+        this.sack = sack;
+        this.rtt = rtt;
+        this.congestion = congestion;
+
+        // a compressing source only knows how many packets there are once it has read everything
+        totalPackets = source.getPacketCount();
+        longHeader = RCMPSender.needsLongHeader(fileSize);
+
+        slots = new ByteBuffer[windowSize][2];
+        for (int i = 0; i < windowSize; i++) {
+            slots[i][0] = ByteBuffer.allocateDirect(HEADERCAPACITY);
+        }
+        payloadStarts = new int[windowSize];
+        sendTimes = new long[windowSize];
+        acked = new boolean[windowSize];
+        retransmitted = new boolean[windowSize];
+        retransmitQueue = new long[windowSize];
+        queued = new boolean[windowSize];
+        metrics = new RCMPMetrics(RCMPMetrics.SENDER, connectionID);
+    }
+
+    /**
+     * Makes this sender send one range of a larger file, which the receiver
+     * puts back together with the ranges sent by other senders. The range has
+     * to start on a packet boundary
+     *
+     * @param transferID an id shared by every stream of the file
+     * @param rangeOffset where the range starts in the file
+     * @param totalSize the size of the whole file
+     */
+    public void setRange(int transferID, long rangeOffset, long totalSize) {
+        if (rangeOffset % source.getPacketSize() != 0) {
+            throw new IllegalArgumentException("Ranges must start on a packet boundary");
+        }
+        this.transferID = transferID;
+        this.rangeOffset = rangeOffset;
+        this.totalSize = totalSize;
+    }
+
+    /**
+     * Makes this sender skip the packets the receiver already has from an
+     * earlier attempt at the same file. The last packet is always sent, so
+     * the receiver learns that the transfer is complete
+     *
+     * @param received the ranges of packets of the whole file the receiver holds
+     */
+    public void setReceived(RCMPJournal received) {
+        this.received = received;
+    }
+
+    /**
+     * Makes this sender put a CRC32C in every packet, so the receiver drops
+     * corrupted ones, and wait for the receiver to confirm that the digest of
+     * everything it received matches what was sent
+     */
+    public void setChecksums(boolean checksums) {
+        digest = checksums ? new RCMPDigest() : null;
+    }
+
+    /**
+     * Marks every packet as compressed, which the source must then be, so the
+     * receiver decompresses them in order
+     */
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    /**
+     * Makes this sender pace its packets
+     *
+     * @param pacer the pacer to wait for before each packet, or null not to pace
+     * @param followCongestion whether to keep setting the pacer's rate from the congestion window and RTT
+     */
+    public void setPacer(RCMPPacer pacer, boolean followCongestion) {
+        this.pacer = pacer;
+        this.followCongestion = pacer != null && followCongestion;
+    }
+
+    /**
+     * Makes this sender follow every block of packets with parity packets,
+     * each covering every stride-th packet of the block
+     *
+     * @param blockSize how many packets a block holds
+     * @param stride how many parity packets to send per block
+     */
+    public void setParity(int blockSize, int stride) {
+        parity = new RCMPParityEncoder(blockSize, stride, source.getPacketSize());
+        parityPacket = new ByteBuffer[] { ByteBuffer.allocateDirect(HEADERCAPACITY), null };
+    }
+
+    /**
+     * Makes this sender count its batches in the given stats, which may be
+     * shared with other senders
+     *
+     * @param transmitStats where to count the packets sent per batch
+     * @param ackStats where to count the ACKs processed per batch
+     */
+    public void setBatchStats(RCMPBatchStats transmitStats, RCMPBatchStats ackStats) {
+        this.transmitStats = transmitStats;
+        this.ackStats = ackStats;
+    }
+
+    /**
+     * Returns the metrics of this connection
+     */
+    public RCMPMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sends the whole file, returning true when every packet has been ACKed and
+     * false when we gave up after too many timeouts in a row
+     */
+    public boolean send() throws IOException {
+        channel.configureBlocking(false);
+        Selector selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+
+        running = true;
+        Thread ackThread = new Thread(() -> receiveAcks(selector), "RCMP ACK receiver " + connectionID);
+        ackThread.setDaemon(true);
+        ackThread.start();
+
+        // a paced packet is timed when its turn comes, so paced packets go out one at a time
+        long[] batch = new long[pacer != null ? 1 : MAXBATCH];
+        try {
+            while (true) {
+                int count = 0, fresh = 0;
+
+                // pick the next packets to put on the wire, retransmissions first, or wait
+                // until there are some
+                synchronized (this) {
+                    while (count == 0 && fresh == 0) {
+                        if (failure != null) {
+                            throw failure;
+                        }
+                        if (base >= totalPackets && (digest == null || verified)) {
+                            return true;
+                        }
+                        if (timeoutCount >= MAXTIMEOUTS) {
+                            return false;
+                        }
+                        if (base >= totalPackets) {
+                            // everything is ACKed but the digest is not confirmed yet, so send the
+                            // last packet again each time the timer runs out for another final ACK
+                            long wait = sendTimes[(int) ((totalPackets - 1) % windowSize)]
+                                    + rtt.getTimeoutNanos() - System.nanoTime();
+                            if (wait > 0) {
+                                waitNanos(wait);
+                            } else {
+                                rtt.backoff();
+                                timeoutCount++;
+                                metrics.onTimeout();
+                                batch[count++] = totalPackets - 1;
+                            }
+                            continue;
+                        }
+                        long packetNum;
+                        while (count < batch.length && (packetNum = nextRetransmission()) >= 0) {
+                            batch[count++] = packetNum;
+                        }
+                        if (count < batch.length) {
+                            fresh = countNewPackets(batch.length - count);
+                        }
+                        if (count == 0 && fresh == 0 && !checkTimers()) {
+                            waitNanos(timeUntilNextDeadline());
+                        }
+                    }
+                    if (followCongestion) {
+                        pacer.setRate(congestion.getPacingRate(rtt.getSmoothedRtt(),
+                                source.getPacketSize() + RCMPHeader.HEADERSIZE));
+                    }
+                }
+
+                // only this thread fills slots, and the slots from nextToSend on stay free
+                // while the ACK thread slides the window, so the file can be read unlocked. A
+                // compressing source may find that the file ends before the batch does
+                long first = nextToSend;
+                for (int i = 0; i < fresh; i++) {
+                    fillSlot(first + i);
+                    if (first + i + 1 >= source.getPacketCount()) {
+                        fresh = i + 1;
+                    }
+                }
+
+                // hold the packet back until its turn on the link, before it is timed
+                if (pacer != null) {
+                    int slot = (int) ((fresh > 0 ? first : batch[0]) % windowSize);
+                    RCMPPacer.waitUntil(pacer.reserve(slots[slot][0].limit() + slots[slot][1].limit()
+                            - payloadStarts[slot]));
+                }
+
+                // time the whole batch under one lock, since its packets follow each other onto the wire
+                synchronized (this) {
+                    long now = System.nanoTime();
+                    for (int i = 0; i < count; i++) {
+                        sendTimes[(int) (batch[i] % windowSize)] = now;
+                    }
+                    for (int i = 0; i < fresh; i++) {
+                        sendTimes[(int) ((first + i) % windowSize)] = now;
+                    }
+                    nextToSend = first + fresh;
+                    totalPackets = source.getPacketCount();
+                }
+                for (int i = 0; i < count; i++) {
+                    metrics.onSent(transmit(batch[i]), true);
+                }
+                for (long packetNum = first; packetNum < first + fresh; packetNum++) {
+                    metrics.onSent(transmit(packetNum), false);
+                    // a block's parity follows its last packet the first time that is sent
+                    if (parity != null && parity.endsBlock(packetNum, totalPackets)) {
+                        transmitParity();
+                    }
+                }
+                transmitStats.record(count + fresh);
+            }
+        } finally {
+            running = false;
+            selector.wakeup();
+            try {
+                ackThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            selector.close();
+            channel.configureBlocking(true);
+            source.release();
+        }
+    }
+
+    /**
+     * Runs on the ACK thread: waits for ACKs to arrive and processes every ACK
+     * that is waiting each time it wakes up
+     *
+     * @param selector the selector the channel is registered with for reading
+     */
+    private void receiveAcks(Selector selector) {
+        RCMPDatagramBatch batch = new RCMPDatagramBatch(MAXBATCH, RCMPHeader.SACKSIZE, true, ackStats);
+        try {
+            while (running) {
+                // the action form of select leaves the selected-key set alone, which
+                // would otherwise allocate on every wakeup
+                selector.select(key -> {
+                }, ACKPOLL);
+                // apply every ACK waiting under one turn of the lock, waking the transmit thread once
+                while (batch.receive(channel) > 0) {
+                    synchronized (this) {
+                        for (int i = 0; i < batch.size(); i++) {
+                            processAck(batch.get(i));
+                        }
+                        notifyAll();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Applies one ACK or SACK to the window. Must be called holding the lock
+     *
+     * @param ackByteBuffer the buffer holding the ACK, flipped for reading
+     */
+    private void processAck(ByteBuffer ackByteBuffer) {
+        // ignore ACKs for other connections
+        if (ackByteBuffer.remaining() < RCMPHeader.ACKSIZE || ackByteBuffer.getInt() != connectionID) {
+            return;
+        }
+        newestSample = Long.MIN_VALUE;
+        newlyAcked = 0;
+
+        if (ackByteBuffer.remaining() == RCMPHeader.ACKSIZE - 4) {
+            markAcked(ackByteBuffer.getInt() & 0xffffffffL);
+        } else if (ackByteBuffer.remaining() == RCMPHeader.LONGACKSIZE - 4) {
+            markAcked(ackByteBuffer.getLong());
+        } else if (ackByteBuffer.remaining() == RCMPHeader.FINSIZE - 4
+                && ackByteBuffer.get() == RCMPHeader.FINTYPE) {
+            if (digest != null && base >= totalPackets) {
+                if (ackByteBuffer.getLong() == digest.getValue()) {
+                    verified = true;
+                } else if (failure == null) {
+                    failure = new IOException("The receiver's digest does not match what was sent");
+                }
+            }
+            return;
+        } else if (ackByteBuffer.remaining() == RCMPHeader.SACKSIZE - 4
+                && ackByteBuffer.get() == RCMPHeader.SACKTYPE) {
+            // everything before the next expected packet has arrived, plus
+            // whatever the bitmap says is held after it
+            long nextExpected = ackByteBuffer.getLong();
+            for (long packetNum = base; packetNum < Math.min(nextExpected, nextToSend); packetNum++) {
+                markAcked(packetNum);
+            }
+            for (int i = 0; i < RCMPHeader.SACKBYTES; i++) {
+                int bits = ackByteBuffer.get();
+                for (int bit = 0; bits != 0 && bit < 8; bit++) {
+                    if ((bits & (0x80 >>> bit)) != 0) {
+                        markAcked(nextExpected + 1 + i * 8 + bit);
+                    }
+                }
+            }
+        } else {
+            return;
+        }
+        timeoutCount = 0;
+
+        // time the newest packet this ACK covers, if it was only sent once
+        long sample = -1;
+        if (newestSample != Long.MIN_VALUE) {
+            sample = System.nanoTime() - newestSample;
+            rtt.sample(sample);
+            metrics.onRtt(sample);
+        }
+        if (newlyAcked > 0) {
+            congestion.onAck(newlyAcked, sample);
+        }
+
+        // queue fast retransmissions of packets that DUPTHRESHOLD later packets have overtaken,
+        // counting down from the highest ACKed packet, so that one packet reordered by a few places
+        // is not taken for lost. With parity they have to include the ones after the block, so its
+        // parity had a chance to rebuild them
+        long lostThrough = base - 1;
+        int overtaken = 0;
+        for (long packetNum = highestAcked; packetNum >= base; packetNum--) {
+            if (acked[(int) (packetNum % windowSize)] && ++overtaken == DUPTHRESHOLD) {
+                lostThrough = packetNum - 1;
+                break;
+            }
+        }
+        if (parity != null) {
+            lostThrough = parity.lastBlockEnd(lostThrough);
+        }
+        boolean lost = false;
+        for (long packetNum = base; packetNum <= lostThrough; packetNum++) {
+            int slot = (int) (packetNum % windowSize);
+            if (!acked[slot] && !retransmitted[slot]) {
+                queueRetransmission(packetNum);
+                lost = true;
+            }
+        }
+        if (lost && base >= recoveryPoint) {
+            congestion.onLoss();
+            recoveryPoint = nextToSend;
+        }
+
+        // slide the window past every packet that has been ACKed
+        while (base < nextToSend && acked[(int) (base % windowSize)]) {
+            acked[(int) (base % windowSize)] = false;
+            base++;
+        }
+        metrics.setWindow(congestion.getWindow(), nextToSend - base, rtt.getSmoothedRtt());
+    }
+
+    /**
+     * Moves the next packet to send past the packets the receiver already
+     * has, marking them ACKed without sending them. Must be called holding
+     * the lock
+     */
+    private void skipReceived() {
+        long packetOffset = rangeOffset / source.getPacketSize();
+        while (received != null && nextToSend < totalPackets - 1 && received.contains(packetOffset + nextToSend)) {
+            if (base == nextToSend) {
+                // nothing is in flight, so the window can jump to the end of the range
+                base = nextToSend = Math.min(totalPackets - 1, received.rangeEnd(packetOffset + nextToSend)
+                        - packetOffset);
+            } else if (nextToSend < base + windowSize) {
+                int slot = (int) (nextToSend % windowSize);
+                acked[slot] = true;
+                retransmitted[slot] = false;
+                nextToSend++;
+            } else {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Moves past the packets the receiver already has, then returns how many
+     * new packets from nextToSend on, up to the given number, fit in the
+     * window and the file. The run stops short of the next packet the
+     * receiver already has. Must be called holding the lock
+     *
+     * @param most the most new packets to take
+     */
+    private int countNewPackets(int most) {
+        skipReceived();
+        long end = Math.min(totalPackets, base + Math.min(windowSize, congestion.getWindow()));
+        int fresh = (int) Math.max(0, Math.min(most, end - nextToSend));
+        if (received != null) {
+            long packetOffset = rangeOffset / source.getPacketSize();
+            for (int i = 1; i < fresh; i++) {
+                if (nextToSend + i < totalPackets - 1 && received.contains(packetOffset + nextToSend + i)) {
+                    return i;
+                }
+            }
+        }
+        return fresh;
+    }
+
+    /**
+     * Queues every packet whose timer has run out for retransmission, backing
+     * off the timeout once if there were any. Returns true if a packet was
+     * queued. Must be called holding the lock
+     */
+    private boolean checkTimers() {
+        long now = System.nanoTime();
+        long timeout = rtt.getTimeoutNanos();
+        boolean expired = false;
+        for (long packetNum = base; packetNum < nextToSend; packetNum++) {
+            int slot = (int) (packetNum % windowSize);
+            if (!acked[slot] && !queued[slot] && now - sendTimes[slot] >= timeout) {
+                queueRetransmission(packetNum);
+                expired = true;
+            }
+        }
+        if (expired) {
+            rtt.backoff();
+            congestion.onTimeout();
+            recoveryPoint = nextToSend;
+            timeoutCount++;
+            metrics.onTimeout();
+            metrics.setWindow(congestion.getWindow(), nextToSend - base, rtt.getSmoothedRtt());
+        }
+        return expired;
+    }
+
+    /**
+     * Marks a packet as lost and queues it for the transmit thread. Must be
+     * called holding the lock
+     *
+     * @param packetNum the number of the packet to retransmit
+     */
+    private void queueRetransmission(long packetNum) {
+        int slot = (int) (packetNum % windowSize);
+        retransmitted[slot] = true;
+        if (!queued[slot]) {
+            queued[slot] = true;
+            retransmitQueue[(queueHead + queueSize) % windowSize] = packetNum;
+            queueSize++;
+        }
+    }
+
+    /**
+     * Takes the next packet off the retransmission queue that still needs to
+     * be sent, or returns -1 if there is none. Must be called holding the lock
+     */
+    private long nextRetransmission() {
+        while (queueSize > 0) {
+            long packetNum = retransmitQueue[queueHead];
+            queueHead = (queueHead + 1) % windowSize;
+            queueSize--;
+            int slot = (int) (packetNum % windowSize);
+            queued[slot] = false;
+            if (packetNum >= base && !acked[slot]) {
+                return packetNum;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Marks the given packet as ACKed if it is still in flight. Must be called
+     * holding the lock
+     *
+     * @param packetNum the number of the packet the receiver holds
+     */
+    private void markAcked(long packetNum) {
+        if (packetNum >= base && packetNum < nextToSend) {
+            int slot = (int) (packetNum % windowSize);
+            if (acked[slot]) {
+                return;
+            }
+            if (!retransmitted[slot] && sendTimes[slot] > newestSample) {
+                newestSample = sendTimes[slot];
+            }
+            acked[slot] = true;
+            newlyAcked++;
+            metrics.onAcked(slots[slot][1].limit() - payloadStarts[slot]);
+            highestAcked = Math.max(highestAcked, packetNum);
+        }
+    }
+
+    /**
+     * Builds the header of the given packet in the packet's slot of the window
+     * and loads its payload from the source
+     *
+     * @param packetNum the number of the packet to build
+     */
+    private void fillSlot(long packetNum) throws IOException {
+        int slot = (int) (packetNum % windowSize);
+        ByteBuffer header = slots[slot][0];
+        putHeader(header, packetNum, false);
+
+        ByteBuffer payload = source.load(slot, packetNum);
+        int checksum = 0;
+        if (digest != null) {
+            checksum = putChecksum(header, payload);
+            // packets the receiver had before this attempt are not part of its digest
+            if (received == null || !received.contains(rangeOffset / source.getPacketSize() + packetNum)) {
+                digest.add(packetNum, checksum);
+            }
+        }
+        header.flip();
+        if (parity != null) {
+            parity.add(packetNum, payload, checksum);
+        }
+        slots[slot][1] = payload;
+        payloadStarts[slot] = payload.position();
+        acked[slot] = false;
+        retransmitted[slot] = false;
+    }
+
+    /**
+     * Builds the header of a packet, or of a parity packet, up to where its
+     * checksum goes
+     *
+     * @param header the buffer to build the header in
+     * @param packetNum the number of the packet, or the first packet of the parity packet's block
+     * @param isParity whether to build the header of a parity packet
+     */
+    private void putHeader(ByteBuffer header, long packetNum, boolean isParity) {
+        header.clear();
+        header.putInt(connectionID);
+        header.putInt((int) fileSize);
+        header.putInt((int) packetNum);
+        // a parity packet asks for a SACK, since the packet it may rebuild is not the one in its header
+        header.put((byte) (RCMPHeader.ACKFLAG | RCMPHeader.SELECTIVEFLAG | (sack || isParity ? RCMPHeader.SACKFLAG : 0)
+                | (totalSize >= 0 ? RCMPHeader.RANGEFLAG : 0) | (longHeader ? RCMPHeader.LONGFLAG : 0)
+                | (digest != null ? RCMPHeader.CRCFLAG : 0) | (compressed ? RCMPHeader.COMPRESSEDFLAG : 0)
+                | (isParity ? RCMPHeader.CONTROLFLAG : 0)));
+        if (isParity) {
+            header.put(RCMPHeader.PARITY);
+        }
+        if (longHeader) {
+            header.putLong(fileSize);
+            header.putLong(packetNum);
+        }
+        if (totalSize >= 0) {
+            header.putInt(transferID);
+            header.putLong(rangeOffset);
+            header.putLong(totalSize);
+        }
+    }
+
+    /**
+     * Checksums the header built so far and the payload, then puts the
+     * checksum after the header and returns it
+     *
+     * @param header the header, positioned where the checksum goes
+     * @param payload the payload, between its position and limit
+     */
+    private int putChecksum(ByteBuffer header, ByteBuffer payload) {
+        int end = header.position();
+        header.flip();
+        int checksum = digest.checksum(header, payload);
+        header.limit(header.capacity()).position(end);
+        header.putInt(checksum);
+        return checksum;
+    }
+
+    /**
+     * Sends the parity packets of the block the packet just sent ended. They
+     * are sent once, and are neither ACKed nor retransmitted
+     */
+    private void transmitParity() throws IOException {
+        ByteBuffer header = parityPacket[0];
+        for (int index = 0; index < parity.getParityCount(); index++) {
+            ByteBuffer body = parity.getParity(index);
+            putHeader(header, parity.getFirstPacket(), true);
+            if (digest != null) {
+                putChecksum(header, body);
+            }
+            header.flip();
+            parityPacket[1] = body;
+            if (pacer != null) {
+                RCMPPacer.waitUntil(pacer.reserve(header.remaining() + body.remaining()));
+            }
+            int bytes = header.remaining() + body.remaining();
+            while (channel.write(parityPacket) == 0) {
+                LockSupport.parkNanos(10000);
+            }
+            metrics.onSent(bytes, false);
+        }
+    }
+
+    /**
+     * Sends the packet held in the given packet's slot as one datagram, and
+     * returns its size
+     *
+     * @param packetNum the number of the packet to send
+     */
+    private int transmit(long packetNum) throws IOException {
+        int slot = (int) (packetNum % windowSize);
+        slots[slot][0].rewind();
+        slots[slot][1].position(payloadStarts[slot]);
+        // the channel is non-blocking for the ACK thread's sake, so wait out a
+        // full socket send buffer here
+        long written;
+        while ((written = channel.write(slots[slot])) == 0) {
+            LockSupport.parkNanos(10000);
+        }
+        return (int) written;
+    }
+
+    /**
+     * Returns how many nanoseconds are left before the oldest un-ACKed packet
+     * has to be retransmitted. Must be called holding the lock
+     */
+    private long timeUntilNextDeadline() {
+        long timeout = rtt.getTimeoutNanos();
+        long oldest = Long.MAX_VALUE;
+        for (long packetNum = base; packetNum < nextToSend; packetNum++) {
+            int slot = (int) (packetNum % windowSize);
+            if (!acked[slot] && sendTimes[slot] < oldest) {
+                oldest = sendTimes[slot];
+            }
+        }
+        if (oldest == Long.MAX_VALUE) {
+            return timeout;
+        }
+        return Math.max(1, oldest + timeout - System.nanoTime());
+    }
+
+    /**
+     * Waits on this object's lock for at most the given time, or until the ACK
+     * thread signals that the window has changed. Must be called holding the lock
+     *
+     * @param nanos the longest time to wait
+     */
+    private void waitNanos(long nanos) throws IOException {
+        try {
+            wait(nanos / 1000000, (int) (nanos % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for ACKs");
+        }
+    }
+}
@@ -25,17 +25,15 @@ import java.nio.ByteBuffer;
  */
 public class RCMPSender {
 
-    // constants to use for sizes
-    public static final int PACKETSIZE = 1450;
-    public static final int HEADERSIZE = 13;
-    public static final int ACKSIZE = 8;
-
     public static void main(String[] args) {
 
         // make sure the user specifies the correct
         // number of command line arguments
         if (args.length < 3) {
-            System.err.println("Usage: java RCMPSender <hostName> <portNum> <fileName>");
+            System.err.println("Usage: java RCMPSender <hostName> <portNum> <fileName|directory> [-window <packets>]"
+                    + " [-sack] [-streams <count>] [-resume] [-crc] [-compress <level>] [-payload <bytes>] [-pmtu]"
+                    + " [-minrto <ms>] [-maxrto <ms>] [-cc reno|cubic|fixed] [-rate <Mbit/s>] [-pace] [-fec <packets>]"
+                    + " [-parity <packets>] [-direct] [-mmap] [-readers <count>] [-stats] [-metrics <seconds>]");
             System.exit(0);
         }
 
@@ -51,64 +49,244 @@ public class RCMPSender {
             System.exit(0);
         }
 
+        // a window size switches the sender from go-back-N to selective repeat
+        RCMPSenderOptions options = new RCMPSenderOptions();
+        boolean selective = false, resume = false, payload = false, stats = false, metrics = false;
+        int rate = 0, readers = RCMPDirectoryReadable.DEFAULTREADERS, metricsPeriod = 0;
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].equals("-window") && i + 1 < args.length) {
+                options.windowSize = parseOption(args[++i], "window size");
+                selective = true;
+            } else if (args[i].equals("-sack")) {
+                // SACKs only make sense with selective repeat, so they bring a default window along
+                options.sack = true;
+                selective = true;
+            } else if (args[i].equals("-streams") && i + 1 < args.length) {
+                // so do parallel streams, which are selective-repeat connections of their own
+                options.streams = parseOption(args[++i], "number of streams");
+                selective = true;
+            } else if (args[i].equals("-resume")) {
+                // and so does resuming, which skips what the receiver already has
+                resume = true;
+                selective = true;
+            } else if (args[i].equals("-crc")) {
+                // checksums travel in the selective-repeat header
+                options.checksums = true;
+                selective = true;
+            } else if (args[i].equals("-compress") && i + 1 < args.length) {
+                // as do compressed payloads, which only the selective-repeat receiver understands
+                options.compression = parseOption(args[++i], "compression level");
+                selective = true;
+            } else if (args[i].equals("-payload") && i + 1 < args.length) {
+                // and other payload sizes, which have to be agreed on with the receiver first
+                options.packetSize = parseOption(args[++i], "payload size");
+                payload = true;
+                selective = true;
+            } else if (args[i].equals("-pmtu")) {
+                options.probe = true;
+                selective = true;
+            } else if (args[i].equals("-minrto") && i + 1 < args.length) {
+                options.minTimeout = parseOption(args[++i], "minimum timeout");
+            } else if (args[i].equals("-maxrto") && i + 1 < args.length) {
+                options.maxTimeout = parseOption(args[++i], "maximum timeout");
+            } else if (args[i].equals("-direct")) {
+                options.direct = true;
+            } else if (args[i].equals("-mmap")) {
+                options.mapped = true;
+            } else if (args[i].equals("-readers") && i + 1 < args.length) {
+                // how many threads read the small files of a directory ahead of the sender
+                readers = parseOption(args[++i], "number of readers");
+            } else if (args[i].equals("-stats")) {
+                // report how many packets and ACKs the selective-repeat streams handled per batch
+                stats = true;
+            } else if (args[i].equals("-metrics") && i + 1 < args.length) {
+                // export every connection's counters through JMX and log them every so many seconds
+                metricsPeriod = parseOption(args[++i], "metrics period");
+                metrics = true;
+            } else if (args[i].equals("-cc") && i + 1 < args.length) {
+                options.congestion = args[++i];
+            } else if (args[i].equals("-rate") && i + 1 < args.length) {
+                // spread the packets out at a fixed rate, or at the rate the congestion control allows
+                rate = parseOption(args[++i], "pacing rate");
+                options.rate = rate * 125000L;
+            } else if (args[i].equals("-pace")) {
+                options.pace = true;
+            } else if (args[i].equals("-fec") && i + 1 < args.length) {
+                // and so does parity, which the receiver only uses to rebuild packets it can hold
+                options.parityBlock = parseOption(args[++i], "parity block size");
+                selective = true;
+            } else if (args[i].equals("-parity") && i + 1 < args.length) {
+                options.parityCount = parseOption(args[++i], "parity packets per block");
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(0);
+            }
+        }
+
+        if (options.packetSize < RCMPHeader.MINPACKETSIZE || options.packetSize > RCMPHeader.MAXPACKETSIZE) {
+            System.err.println("Payload size must be between " + RCMPHeader.MINPACKETSIZE + " and "
+                    + RCMPHeader.MAXPACKETSIZE);
+            System.exit(0);
+        }
+        // probing looks for the largest payload that gets through unless told where to stop
+        if (options.probe && !payload) {
+            options.packetSize = RCMPHeader.MAXPACKETSIZE;
+        }
+        if (rate < 0 || (rate > 0 && options.pace)) {
+            System.err.println("Pacing rate must be positive and cannot be combined with -pace");
+            System.exit(0);
+        }
+        if (options.parityBlock < 0 || options.parityBlock > RCMPParityDecoder.MAXBLOCK || options.parityCount < 1
+                || options.parityCount > Math.max(1, options.parityBlock)) {
+            System.err.println("Parity blocks must hold at most " + RCMPParityDecoder.MAXBLOCK
+                    + " packets and at least as many packets as parity packets");
+            System.exit(0);
+        }
+        if (options.compression < -1 || options.compression > 9) {
+            System.err.println("Compression level must be between 0 and 9");
+            System.exit(0);
+        }
+        if (metricsPeriod < 0) {
+            System.err.println("Metrics period must be at least 0");
+            System.exit(0);
+        }
+        RCMPMetricsReporter reporter = metrics ? new RCMPMetricsReporter(metricsPeriod, System.out) : null;
+        // compressed packets do not line up with the file, so the receiver's journal cannot name them
+        if (resume && options.compression >= 0) {
+            System.err.println("Compressed transfers cannot be resumed");
+            System.exit(0);
+        }
+
         // create a File object, determine its total size (in bytes), and open a stream
         // for reading
         String fileName = args[2];
         File openFile = new File(fileName);
-        int fileSize = (int) openFile.length();
+        long fileSize = openFile.length();
         RandomAccessFile fin = null; // use a RandomAccessFile to be able to seek back in the file
+
+        // a directory is packed into one stream, which a single selective-repeat connection sends
+        boolean directory = openFile.isDirectory();
+        RCMPDirectoryReadable packed = null;
+        if (directory && (options.streams > 1 || resume || options.mapped)) {
+            System.err.println("A directory is sent over one stream, and cannot be resumed or memory-mapped");
+            System.exit(0);
+        }
+        selective |= directory;
         DatagramSocket socket = null;
+        RCMPRttEstimator rtt = null; // sets how long we wait for an ACK before resending
+        RCMPCongestionControl congestion = null; // sets how many packets we send per ACK
+        RCMPPacer pacer = null; // spreads the packets we send between ACKs out
 
         // try to open the specified file for reading
         // and create a UDP socket for sending packets
         try {
-            fin = new RandomAccessFile(openFile, "rw");
+            if (directory) {
+                packed = new RCMPDirectoryReadable(openFile.toPath(), readers);
+            } else {
+                fin = new RandomAccessFile(openFile, "rw");
+            }
             socket = new DatagramSocket();
-            // set the socket to throw an exception when it doesn't
-            // receive a packet when it expects to within 150ms
-            socket.setSoTimeout(200);
+            rtt = options.createRtt();
+            congestion = RCMPCongestionControl.create(options.congestion,
+                    selective ? options.windowSize : RCMPReceiveWindow.MAXWINDOW);
+            pacer = options.createPacer(RCMPHeader.PACKETSIZE);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(0);
         } catch (SocketException e) {
             System.err.println("Error creating socket with port number " + portNum + ": " + e);
             System.exit(0);
         } catch (FileNotFoundException e) {
             System.err.println("File not found: " + e);
             System.exit(0);
+        } catch (IOException e) {
+            System.err.println("Error reading directory: " + e);
+            System.exit(0);
         }
 
-        // set up variables used for packet creation and sending
-        byte[] buffer = null, ackBuffer = null;
-        DatagramPacket packetToSend = null, ackToReceive = null;
-        ByteBuffer byteBuffer = null, ackByteBuffer = null;
+        // hand the transfer over to the selective-repeat streams if a window was given
+        if (selective) {
+            socket.close();
+            try {
+                RCMPParallelSender sender = new RCMPParallelSender(new InetSocketAddress(hostName, portNum),
+                        directory ? packed : new RCMPFileReadable(fin.getChannel()), options);
+                if (resume) {
+                    sender.setResume(RCMPJournal.identify(openFile));
+                }
+                if (reporter != null) {
+                    sender.setMetrics(reporter);
+                }
+                if (!sender.send()) {
+                    System.out.println("Successful transfer unknown");
+                }
+                if (stats) {
+                    System.out.println("Sent " + sender.getTransmitStats());
+                    System.out.println("ACKed " + sender.getAckStats());
+                }
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(0);
+            } catch (PortUnreachableException e) {
+                System.err.println("Error reaching port: " + e);
+                System.exit(0);
+            } catch (IOException e) {
+                System.err.println("Error sending file: " + e);
+                System.exit(0);
+            }
+            return;
+        }
+
+        // set up variables used for packet creation and sending, allocating the
+        // buffers and packets once so that nothing is allocated per packet
+        byte[] buffer = new byte[RCMPHeader.PACKETSIZE + RCMPHeader.HEADERSIZE + RCMPHeader.LONGSIZE],
+                ackBuffer = new byte[RCMPHeader.LONGACKSIZE];
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer), ackByteBuffer = ByteBuffer.wrap(ackBuffer);
+        DatagramPacket packetToSend = null, ackToReceive = new DatagramPacket(ackBuffer, RCMPHeader.LONGACKSIZE);
+        try {
+            packetToSend = new DatagramPacket(buffer, buffer.length, InetAddress.getByName(hostName), portNum);
+        } catch (UnknownHostException e) {
+            System.err.println("Unknown host: " + hostName);
+            System.exit(0);
+        }
         Random random = new Random();
-        int eof = 1, connectionID = random.nextInt(), packetNum = 0, receivedID = -1, receivedPacketNum = -1,
-                gapCounter = 0, nonAckedPackets = 0, lastAckedPacket = -1, filePosition = -1, timeoutCount = 0;
+        int eof = 1, connectionID = random.nextInt(), receivedID = -1, nonAckedPackets = 0, timeoutCount = 0;
+        long packetNum = 0, receivedPacketNum = -1, lastAckedPacket = -1, filePosition = -1, highestSentPacket = -1,
+                sendTime = 0;
+        // files too big for the 32-bit fields of the header carry their size and
+        // packet numbers in a 64-bit extension instead
+        boolean longHeader = needsLongHeader(fileSize);
+        int headerSize = longHeader ? RCMPHeader.HEADERSIZE + RCMPHeader.LONGSIZE : RCMPHeader.HEADERSIZE;
         byte packetShouldBeAcked = (byte) 1;
         boolean looping = true;
+        RCMPMetrics connectionMetrics = new RCMPMetrics(RCMPMetrics.SENDER, connectionID);
+        if (reporter != null) {
+            reporter.add(connectionMetrics);
+        }
 
         // loop until we send a packet smaller than the defined PACKETSIZE
         while (looping) {
 
             try {
 
-                // set up the buffer used for datagram sending and fill its header
-                buffer = new byte[PACKETSIZE + HEADERSIZE];
-                byteBuffer = ByteBuffer.wrap(buffer);
+                // fill the header of the buffer used for datagram sending
+                byteBuffer.clear();
                 byteBuffer.putInt(connectionID);
-                byteBuffer.putInt(fileSize);
-                byteBuffer.putInt(packetNum);
-
-                // set up buffer and bytebuffer used for receiving acks
-                ackBuffer = new byte[ACKSIZE];
-                ackByteBuffer = ByteBuffer.wrap(ackBuffer);
+                byteBuffer.putInt((int) fileSize);
+                byteBuffer.putInt((int) packetNum);
 
-                // figure out how much data we read in
-                eof = fin.read(buffer, HEADERSIZE, PACKETSIZE);
+                // figure out how much data we read in. At the end of the file the last packet is
+                // an empty one, which still needs its whole header for the receiver to ACK it
+                eof = Math.max(0, fin.read(buffer, headerSize, RCMPHeader.PACKETSIZE));
 
                 // make sure the packet is acked when it's the last one
-                if (eof < PACKETSIZE)
+                if (eof < RCMPHeader.PACKETSIZE)
                     packetShouldBeAcked = (byte) 1;
 
-                byteBuffer.put(packetShouldBeAcked);
+                byteBuffer.put((byte) (packetShouldBeAcked | (longHeader ? RCMPHeader.LONGFLAG : 0)));
+                if (longHeader) {
+                    byteBuffer.putLong(fileSize);
+                    byteBuffer.putLong(packetNum);
+                }
 
             } catch (IOException e) {
                 System.err.println("Error receiving data from file: " + e);
@@ -116,22 +294,60 @@ public class RCMPSender {
             }
 
             try {
-                // create the packet with the data and send it
-                packetToSend = new DatagramPacket(buffer, eof + HEADERSIZE, InetAddress.getByName(hostName), portNum);
+                // wait for the packet's turn on the link, so the window does not go out in one burst
+                if (pacer != null) {
+                    if (options.pace) {
+                        pacer.setRate(congestion.getPacingRate(rtt.getSmoothedRtt(),
+                                RCMPHeader.PACKETSIZE + headerSize));
+                    }
+                    RCMPPacer.waitUntil(pacer.reserve(eof + headerSize));
+                }
+
+                // size the packet to the data and send it
+                packetToSend.setLength(eof + headerSize);
                 socket.send(packetToSend);
+                sendTime = System.nanoTime();
+                connectionMetrics.onSent(packetToSend.getLength(), packetNum <= highestSentPacket);
 
                 // try to receive an ACK packet from the receiver if we marked the packet to be
                 // acked
                 if (packetShouldBeAcked == (byte) 1) {
-                    ackToReceive = new DatagramPacket(ackBuffer, ACKSIZE);
-                    socket.receive(ackToReceive);
-                    receivedID = ackByteBuffer.getInt();
-                    receivedPacketNum = ackByteBuffer.getInt();
+                    // wait for the ACK of this packet, passing over ACKs of earlier packets that
+                    // were delayed or duplicated on the way, all within the current timeout
+                    long deadline = sendTime + rtt.getTimeoutNanos();
+                    do {
+                        long wait = deadline - System.nanoTime();
+                        if (wait <= 0) {
+                            throw new SocketTimeoutException();
+                        }
+                        ackToReceive.setLength(RCMPHeader.LONGACKSIZE);
+                        // set the socket to throw an exception when it doesn't
+                        // receive a packet within the rest of the timeout
+                        socket.setSoTimeout((int) Math.max(1, wait / 1000000));
+                        socket.receive(ackToReceive);
+                        ackByteBuffer.clear();
+                        receivedID = ackByteBuffer.getInt();
+                        receivedPacketNum = ackToReceive.getLength() == RCMPHeader.LONGACKSIZE ? ackByteBuffer.getLong()
+                                : ackByteBuffer.getInt();
+                    } while (receivedID == connectionID && (ackToReceive.getLength() == RCMPHeader.LONGACKSIZE
+                            ? receivedPacketNum != packetNum : (int) receivedPacketNum != (int) packetNum));
+
+                    // only time packets that were sent once, so we know which send the ACK is for
+                    long sample = -1;
+                    if (packetNum > highestSentPacket) {
+                        sample = System.nanoTime() - sendTime;
+                        rtt.sample(sample);
+                        connectionMetrics.onRtt(sample);
+                    }
 
-                    // when we ack a packet, increase the gap counter, reset the number of
-                    // packets that have not been acked, and mark the next packets to not be acked
+                    // when we ack a packet, let the congestion control grow the window by the
+                    // packets the ACK covers, reset the number of packets that have not been
+                    // acked, and mark the next packets to not be acked
                     timeoutCount = 0;
-                    gapCounter++;
+                    congestion.onAck((int) (packetNum - lastAckedPacket), sample);
+                    connectionMetrics.onAcked(Math.min(fileSize, (packetNum + 1) * RCMPHeader.PACKETSIZE)
+                            - Math.min(fileSize, (lastAckedPacket + 1) * RCMPHeader.PACKETSIZE));
+                    connectionMetrics.setWindow(congestion.getWindow(), 0, rtt.getSmoothedRtt());
                     nonAckedPackets = 0;
                     packetShouldBeAcked = (byte) 0;
                     lastAckedPacket = packetNum;
@@ -140,13 +356,9 @@ public class RCMPSender {
                     if (receivedID != connectionID) {
                         System.err.println("ACK not received");
                         System.exit(0);
-                    } else {
-                        System.out.println("Received ID: " + receivedID + ", received packetNum: " + receivedPacketNum);
-
+                    } else if (eof < RCMPHeader.PACKETSIZE) {
                         // if we've sent a packet that isn't 'full', break out of loop
-                        if (eof < PACKETSIZE) {
-                            looping = false;
-                        }
+                        looping = false;
                     }
 
                     // if we don't receive an ACK packet, increment the counter of non-acked packet
@@ -154,33 +366,46 @@ public class RCMPSender {
                     nonAckedPackets++;
                 }
 
-                // mark the next one to be acked only if we have reached the gap counter - 1
-                if (nonAckedPackets == (gapCounter - 1))
+                // mark the next one to be acked only once the rest of the window is in flight
+                if (nonAckedPackets >= congestion.getWindow() - 1)
                     packetShouldBeAcked = (byte) 1;
 
             } catch (PortUnreachableException e) {
                 System.err.println("Error reaching port: " + e);
                 System.exit(0);
 
-                // if the socket has timed out, reset our gap counter info
-                // and where in the file we are reading data from
+                // if the socket has timed out, shrink the congestion window
+                // and reset where in the file we are reading data from
             } catch (SocketTimeoutException e) {
 
                 // count how many timeouts we have received for the same packet
+                // and wait longer before the next one, except for the last packet, whose
+                // ACK may never come once the receiver is done, so it is only retried
                 timeoutCount++;
+                if (eof == RCMPHeader.PACKETSIZE) {
+                    rtt.backoff();
+                }
+                connectionMetrics.onTimeout();
 
                 // if we've gotten 10 of them and we've sent the last packet
                 // break and consider the success of the transfer to be unknown
-                if (eof < PACKETSIZE && timeoutCount == 10) {
+                if (eof < RCMPHeader.PACKETSIZE && timeoutCount == 10) {
                     looping = false;
                     System.out.println("Successful transfer unknown");
+                } else if (timeoutCount == RCMPSelectiveSender.MAXTIMEOUTS) {
+                    // the receiver stopped answering before the end of the file, and without
+                    // an ICMP error we would otherwise wait for it forever
+                    looping = false;
+                    System.err.println("The receiver stopped answering, giving up");
                 }
-                gapCounter = 0;
+                congestion.onTimeout();
+                connectionMetrics.setWindow(congestion.getWindow(), 0, rtt.getSmoothedRtt());
                 nonAckedPackets = 0;
                 packetShouldBeAcked = (byte) 1;
+                highestSentPacket = Math.max(highestSentPacket, packetNum);
                 packetNum = lastAckedPacket;
                 // determine the position in the file to go back to
-                filePosition = (packetNum + 1) * PACKETSIZE;
+                filePosition = (packetNum + 1) * RCMPHeader.PACKETSIZE;
                 try {
                     // move the file position back in the file to the desired location
                     fin.seek(filePosition);
@@ -198,6 +423,38 @@ public class RCMPSender {
 
         }
         // close the socket when we're done receiving the file
+        if (reporter != null) {
+            reporter.remove(connectionMetrics);
+        }
         socket.close();
     }
+
+    /**
+     * Returns true if a file of the given size has more bytes than the 32-bit
+     * size field of the header can hold. Only such files use the 64-bit header
+     * extension, so peers that only know the 13-byte header can still receive
+     * every file they could before
+     *
+     * @param fileSize the number of bytes the connection carries
+     */
+    public static boolean needsLongHeader(long fileSize) {
+        return fileSize > Integer.MAX_VALUE;
+    }
+
+    /**
+     * Converts a numeric command line option to an int, exiting with an
+     * error message when it isn't one
+     *
+     * @param value the value given on the command line
+     * @param name what the value is used for
+     */
+    private static int parseOption(String value, String name) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Cannot convert " + value + " to int to use for " + name);
+            System.exit(0);
+            return -1;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,158 @@
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class holds the command line options of the selective-repeat RCMP
+ * sender and creates the per-connection objects they describe, so that every
+ * stream of a transfer gets its own RTT estimate, congestion control and
+ * payload source
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPSenderOptions implements Cloneable {
+
+    // the largest number of packets in flight per stream, and whether to ask for SACKs
+    public int windowSize = RCMPSelectiveSender.DEFAULTWINDOW;
+    public boolean sack = false;
+
+    // the floor and ceiling of the retransmission timeout, in milliseconds
+    public int minTimeout = RCMPRttEstimator.DEFAULTMINTIMEOUT;
+    public int maxTimeout = RCMPRttEstimator.DEFAULTMAXTIMEOUT;
+
+    // the name of the congestion control algorithm
+    public String congestion = "reno";
+
+    // whether to use direct buffers, and whether to memory-map the file when it is one on the disk
+    public boolean direct = false;
+    public boolean mapped = false;
+
+    // how many streams to split the file over
+    public int streams = 1;
+
+    // whether to checksum every packet and have the receiver confirm the file's digest
+    public boolean checksums = false;
+
+    // the payload size to ask the receiver for, and whether to probe for the largest one that
+    // gets through to it instead
+    public int packetSize = RCMPHeader.PACKETSIZE;
+    public boolean probe = false;
+
+    // the Deflate level to compress the file with, or -1 to send it as it is
+    public int compression = -1;
+
+    // the rate to pace the whole transfer at in bytes per second, or 0 not to, and whether to
+    // pace every stream at the rate its congestion window and RTT allow instead
+    public long rate = 0;
+    public boolean pace = false;
+
+    // how many packets each block of parity covers, or 0 not to send parity, and how many parity
+    // packets to send per block
+    public int parityBlock = 0;
+    public int parityCount = 1;
+
+    // a pool every transfer sent with these options takes its payload buffers from and gives
+    // them back to, or null for a pool of its own per transfer
+    public RCMPBufferPool pool;
+
+    // the pacer a fixed rate is shared through, which every copy of these options holds too, so
+    // that the streams of a transfer and the transfers sent with the same options add up to it
+    private AtomicReference<RCMPPacer> sharedPacer = new AtomicReference<>();
+
+    /**
+     * Returns a copy of these options, which a transfer can narrow down to
+     * what its receiver agreed to without changing them for the next one.
+     * The copy paces a fixed rate through the same pacer as the original
+     */
+    public RCMPSenderOptions copy() {
+        try {
+            return (RCMPSenderOptions) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Returns the features of the protocol these options use, as the hello
+     * asks for them
+     *
+     * @param resume whether the transfer may be resumed
+     */
+    public int getFeatures(boolean resume) {
+        return (checksums ? RCMPHeader.CRCFEATURE : 0) | (compression >= 0 ? RCMPHeader.COMPRESSIONFEATURE : 0)
+                | (parityBlock > 0 ? RCMPHeader.PARITYFEATURE : 0) | (sack ? RCMPHeader.SACKFEATURE : 0)
+                | (streams > 1 ? RCMPHeader.RANGEFEATURE : 0) | (resume ? RCMPHeader.RESUMEFEATURE : 0);
+    }
+
+    /**
+     * Switches off every feature the receiver did not agree to
+     *
+     * @param features the features the receiver agreed to
+     */
+    public void restrictTo(int features) {
+        checksums &= (features & RCMPHeader.CRCFEATURE) != 0;
+        sack &= (features & RCMPHeader.SACKFEATURE) != 0;
+        if ((features & RCMPHeader.COMPRESSIONFEATURE) == 0) {
+            compression = -1;
+        }
+        if ((features & RCMPHeader.PARITYFEATURE) == 0) {
+            parityBlock = 0;
+        }
+        if ((features & RCMPHeader.RANGEFEATURE) == 0) {
+            streams = 1;
+        }
+    }
+
+    public RCMPRttEstimator createRtt() {
+        return new RCMPRttEstimator(minTimeout, maxTimeout);
+    }
+
+    public RCMPCongestionControl createCongestion() {
+        return RCMPCongestionControl.create(congestion, windowSize);
+    }
+
+    /**
+     * Creates the pacer for one stream: the shared one when the transfer has
+     * a fixed rate, one of its own when it follows the stream's congestion
+     * control, and null when the stream is not paced
+     *
+     * @param packetSize the payload size the receiver agreed to
+     */
+    public RCMPPacer createPacer(int packetSize) {
+        int burstBytes = RCMPPacer.BURSTPACKETS * (packetSize + RCMPHeader.HEADERSIZE);
+        if (pace) {
+            return new RCMPPacer(0, burstBytes);
+        }
+        if (rate <= 0) {
+            return null;
+        }
+        if (sharedPacer.get() == null) {
+            sharedPacer.compareAndSet(null, new RCMPPacer(rate, burstBytes));
+        }
+        return sharedPacer.get();
+    }
+
+    /**
+     * Creates the source for one range of the file, either compressing it,
+     * sending payloads straight out of a mapping of the file or copying them
+     * into pooled buffers, from the shared pool if it has large enough ones.
+     * Only a file on the disk can be mapped, and anything else is copied
+     *
+     * @param fin the file to send
+     * @param offset where the range starts in the file
+     * @param length how many bytes the range holds
+     * @param packetSize the payload size the receiver agreed to
+     */
+    public RCMPSource createSource(RCMPReadable fin, long offset, long length, int packetSize) throws IOException {
+        if (compression >= 0) {
+            return new RCMPDeflatingSource(fin, offset, length, packetSize, windowSize,
+                    new RCMPBufferPool(windowSize, packetSize, direct), compression);
+        }
+        if (mapped && fin instanceof RCMPFileReadable) {
+            return new RCMPMappedSource(((RCMPFileReadable) fin).getChannel(), offset, length, packetSize, windowSize);
+        }
+        return new RCMPFileSource(fin, offset, length, packetSize, windowSize,
+                pool != null && pool.getBufferSize() >= packetSize ? pool
+                        : new RCMPBufferPool(windowSize, packetSize, direct));
+    }
+}
@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * This class implements an RCMP receiver that a program can embed, rather
+ * than start as a process of its own for every file. It runs an
+ * RCMPReceiverDaemon on a thread of its own and hands every transfer the
+ * daemon takes to an RCMPTransferHandler, or collects every file in memory
+ * and passes it to a callback once it is complete. Errors are thrown to the
+ * program instead of ending it, and the sockets, threads and buffers of the
+ * daemon are shared by every transfer for as long as the server runs
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPServer implements AutoCloseable {
+
+	private RCMPReceiverDaemon daemon;
+	private Thread thread;
+
+	/**
+	 * Creates a server that hands every transfer to the given handler
+	 *
+	 * @param handler what takes the files
+	 */
+	public RCMPServer(RCMPTransferHandler handler) {
+		daemon = new RCMPReceiverDaemon(null, RCMPReceiverDaemon.DEFAULTIDLETIMEOUT, false,
+				new RCMPBufferPool(RCMPReceiveWindow.MAXWINDOW / 8, RCMPHeader.MAXPACKETSIZE, false));
+		daemon.setHandler(handler);
+	}
+
+	/**
+	 * Creates a server that collects every file of up to the given size in
+	 * memory and passes it to the callback once it is complete, along with
+	 * the id of its transfer. Larger files are turned down
+	 *
+	 * @param maxSize the largest file to take, in bytes
+	 * @param callback what to pass the files to, called on a receive thread
+	 */
+	public RCMPServer(int maxSize, BiConsumer<Integer, ByteBuffer> callback) {
+		this(new RCMPTransferHandler() {
+			// the file of every transfer still being received
+			private ConcurrentHashMap<Integer, RCMPBufferSink> files = new ConcurrentHashMap<>();
+
+			public RCMPSink open(int transferID, long fileSize) {
+				if (fileSize > maxSize) {
+					return null;
+				}
+				RCMPBufferSink sink = new RCMPBufferSink(maxSize);
+				files.put(transferID, sink);
+				return sink;
+			}
+
+			public void completed(int transferID, long fileSize) {
+				callback.accept(transferID, files.remove(transferID).getBuffer());
+			}
+
+			public void abandoned(int transferID, long fileSize) {
+				files.remove(transferID);
+			}
+		});
+	}
+
+	/**
+	 * Returns the daemon, which can be tuned until the server starts
+	 */
+	public RCMPReceiverDaemon getDaemon() {
+		return daemon;
+	}
+
+	/**
+	 * Binds the server to the port and starts receiving in the background
+	 *
+	 * @param portNum the port to receive on, or 0 for any free one
+	 * @param threads how many sockets and receive threads to use
+	 */
+	public void start(int portNum, int threads) throws IOException {
+		if (thread != null) {
+			throw new IllegalStateException("The server has already been started");
+		}
+		daemon.bind(portNum, threads);
+		thread = new Thread(() -> {
+			try {
+				daemon.serve();
+			} catch (IOException e) {
+				System.err.println("Error stopping server: " + e);
+			}
+		}, "RCMP server");
+		thread.start();
+	}
+
+	/**
+	 * Returns the port the server receives on
+	 */
+	public int getPort() throws IOException {
+		return daemon.getPort();
+	}
+
+	/**
+	 * Stops receiving, and returns once every transfer has been handed over
+	 * or abandoned
+	 */
+	public void close() {
+		daemon.stop();
+		if (thread != null) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,240 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class measures how an RCMPReceiverDaemon copes with many senders of
+ * small files at once, the way a server taking uploads from thousands of
+ * devices would. It starts a daemon in-process on loopback and has a number
+ * of client threads send it the same small file over and over, each transfer
+ * over a connection of its own, and prints how many connections the daemon
+ * took per second and how long a transfer took. Every file the daemon wrote
+ * is compared with the one sent, and those that differ are counted. The
+ * daemon keeps the state of every connection until it goes idle, which it is
+ * told not to do while measuring, so dividing the heap grown over the run by
+ * the connections still held gives what one connection costs the daemon. The
+ * number of threads is printed before and after, since a daemon that needed
+ * one per connection could not serve thousands of them
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPServiceBenchmark {
+
+    public static final int DEFAULTTRANSFERS = 5000;
+    public static final int DEFAULTCLIENTS = 64;
+    public static final int DEFAULTSIZE = 4096;
+    // how many transfers are sent before measuring anything
+    public static final int WARMUPTRANSFERS = 1000;
+    // long enough that no connection is evicted before the heap is measured, in milliseconds
+    public static final int IDLETIMEOUT = 600000;
+
+    private static MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private static ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) {
+        int transfers = DEFAULTTRANSFERS, clients = DEFAULTCLIENTS, size = DEFAULTSIZE;
+        int receiveThreads = RCMPReceiverDaemon.DEFAULTTHREADS, writers = RCMPReceiverDaemon.DEFAULTWRITERS;
+        RCMPSenderOptions options = new RCMPSenderOptions();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-transfers") && i + 1 < args.length) {
+                transfers = parseOption(args[++i], "number of transfers");
+            } else if (args[i].equals("-clients") && i + 1 < args.length) {
+                clients = parseOption(args[++i], "number of clients");
+            } else if (args[i].equals("-size") && i + 1 < args.length) {
+                size = parseOption(args[++i], "file size");
+            } else if (args[i].equals("-threads") && i + 1 < args.length) {
+                receiveThreads = parseOption(args[++i], "number of receive threads");
+            } else if (args[i].equals("-writers") && i + 1 < args.length) {
+                writers = parseOption(args[++i], "number of writer threads");
+            } else if (args[i].equals("-sack")) {
+                // the rest configure the senders the way RCMPSender's options of the same names do
+                options.sack = true;
+            } else if (args[i].equals("-crc")) {
+                options.checksums = true;
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(0);
+            }
+        }
+        if (transfers < 1 || clients < 1 || size < 0) {
+            System.err.println("There must be at least 1 transfer and 1 client, and the file size cannot be negative");
+            System.exit(0);
+        }
+
+        PrintStream out = System.out;
+        File directory = null;
+        try {
+            directory = Files.createTempDirectory("rcmp-service").toFile();
+            File source = File.createTempFile("rcmp-source", ".bin");
+            source.deleteOnExit();
+            byte[] data = new byte[size];
+            new Random(1).nextBytes(data);
+            try (FileOutputStream fout = new FileOutputStream(source)) {
+                fout.write(data);
+            }
+
+            RCMPReceiverDaemon daemon = new RCMPReceiverDaemon(directory, IDLETIMEOUT, false,
+                    new RCMPBufferPool(RCMPReceiveWindow.MAXWINDOW / 8, RCMPHeader.PACKETSIZE, false));
+            daemon.setWriters(writers);
+            int port = freePort();
+            int serveThreads = receiveThreads;
+            Thread server = new Thread(() -> {
+                try {
+                    daemon.serve(port, serveThreads);
+                } catch (IOException e) {
+                    System.err.println("Error running daemon: " + e);
+                }
+            }, "RCMP benchmark daemon");
+            server.start();
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+
+            // the daemon and the senders report every file, which would only measure the console
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+            // warm up the JIT, and wait for the daemon to be ready, before measuring anything
+            send(address, source, WARMUPTRANSFERS, clients, options);
+            long heapBefore = usedHeap();
+            int connectionsBefore = daemon.getConnectionCount();
+            int threadsBefore = threads.getThreadCount();
+
+            long start = System.nanoTime();
+            long[] times = send(address, source, transfers, clients, options);
+            long elapsed = System.nanoTime() - start;
+
+            long heapAfter = usedHeap();
+            int held = daemon.getConnectionCount() - connectionsBefore;
+            int threadsAfter = threads.getThreadCount();
+            int failed = 0;
+            for (long time : times) {
+                if (time < 0) {
+                    failed++;
+                }
+            }
+            File[] received = directory.listFiles((dir, name) -> !name.endsWith(".part"));
+            int damaged = 0;
+            for (File file : received) {
+                if (Files.mismatch(source.toPath(), file.toPath()) != -1) {
+                    damaged++;
+                }
+            }
+
+            daemon.stop();
+            server.join();
+            System.setOut(out);
+
+            Arrays.sort(times);
+            System.out.printf("%10s %8s %8s %12s %10s %10s %8s %10s %8s%n", "transfers", "clients", "size B",
+                    "conn/s", "p50 ms", "p99 ms", "failed", "received", "damaged");
+            System.out.printf("%10d %8d %8d %12.0f %10.2f %10.2f %8d %10d %8d%n", transfers, clients, size,
+                    transfers / (elapsed / 1e9), times[failed + (transfers - failed) / 2] / 1e6,
+                    times[Math.min(transfers - 1, failed + (int) ((transfers - failed) * 0.99))] / 1e6, failed,
+                    received.length - WARMUPTRANSFERS, damaged);
+            System.out.printf("%d connections held, %d bytes of heap per connection, %d threads before and %d"
+                    + " after%n", held, held == 0 ? 0 : (heapAfter - heapBefore) / held, threadsBefore,
+                    threadsAfter);
+        } catch (IOException e) {
+            System.setOut(out);
+            System.err.println("Error running benchmark: " + e);
+        } catch (InterruptedException e) {
+            System.setOut(out);
+            Thread.currentThread().interrupt();
+        } finally {
+            if (directory != null) {
+                for (File file : directory.listFiles()) {
+                    file.delete();
+                }
+                directory.delete();
+            }
+        }
+    }
+
+    /**
+     * Sends the file the given number of times from the given number of
+     * client threads, each transfer over a new connection, and returns how
+     * long each transfer took in nanoseconds, or -1 for those that failed
+     *
+     * @param address where the daemon receives
+     * @param source the file to send
+     * @param transfers how many times to send it
+     * @param clients how many threads send at once
+     * @param options how to send it
+     */
+    private static long[] send(InetSocketAddress address, File source, int transfers, int clients,
+            RCMPSenderOptions options) throws InterruptedException {
+        long[] times = new long[transfers];
+        AtomicInteger next = new AtomicInteger();
+        Thread[] senders = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            senders[i] = new Thread(() -> {
+                for (int transfer = next.getAndIncrement(); transfer < transfers; transfer = next.getAndIncrement()) {
+                    long start = System.nanoTime();
+                    try (RandomAccessFile fin = new RandomAccessFile(source, "r")) {
+                        boolean acked = new RCMPParallelSender(address, new RCMPFileReadable(fin.getChannel()),
+                                options).send();
+                        times[transfer] = acked ? System.nanoTime() - start : -1;
+                    } catch (IOException e) {
+                        times[transfer] = -1;
+                    }
+                }
+            }, "RCMP benchmark client " + i);
+            senders[i].start();
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        return times;
+    }
+
+    /**
+     * Returns the heap in use once the garbage is collected, giving the
+     * cleaners of the senders' sockets time to run between collections
+     */
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Returns a UDP port on loopback that nothing is bound to right now
+     */
+    private static int freePort() throws IOException {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        }
+    }
+
+    /**
+     * Converts a numeric command line option to an int, exiting with an
+     * error message when it isn't one
+     *
+     * @param value the value given on the command line
+     * @param name what the value is used for
+     */
+    private static int parseOption(String value, String name) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Cannot convert " + value + " to int to use for " + name);
+            System.exit(0);
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * This interface is implemented by the places an RCMP receiver can write the
+ * payloads it receives to. Sinks that can write a packet at its own offset
+ * accept packets in any order, and the receive window hands every other sink
+ * its packets in order
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public interface RCMPSink {
+
+	/**
+	 * Called with the size of the file once the first packet has told us
+	 *
+	 * @param fileSize the size of the file being received
+	 */
+	void open(long fileSize) throws IOException;
+
+	/**
+	 * Returns true if packets may be written as soon as they arrive, in any order
+	 */
+	boolean acceptsOutOfOrder();
+
+	/**
+	 * Writes the payload of a packet at its offset in the file, which is its
+	 * packet number times the payload size of the transfer
+	 *
+	 * @param position the offset of the payload in the file
+	 * @param payload the payload, between its position and limit
+	 */
+	void write(long position, ByteBuffer payload) throws IOException;
+
+	/**
+	 * Writes the payloads of several packets that follow each other in the
+	 * file. Sinks that can write them with one call should
+	 *
+	 * @param position the offset of the first payload in the file
+	 * @param payloads the payloads, each between its position and limit
+	 * @param offset the index of the first payload in the array
+	 * @param length how many payloads to write
+	 */
+	default void write(long position, ByteBuffer[] payloads, int offset, int length) throws IOException {
+		for (int i = offset; i < offset + length; i++) {
+			int size = payloads[i].remaining();
+			write(position, payloads[i]);
+			position += size;
+		}
+	}
+
+	/**
+	 * Makes sure every packet written so far has reached the disk
+	 */
+	void force() throws IOException;
+
+	/**
+	 * Called once every packet has been written
+	 */
+	void close() throws IOException;
+}
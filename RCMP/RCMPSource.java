@@ -0,0 +1,45 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * This interface is implemented by the places an RCMP sender can take packet
+ * payloads from. The sender keeps a window of slots, and a source hands back
+ * the payload of a packet in a buffer that stays valid until the same slot is
+ * loaded again, so that retransmissions can send it as it is
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public interface RCMPSource {
+
+    /**
+     * Returns the number of bytes the source holds
+     */
+    long getSize();
+
+    /**
+     * Returns the number of packets the source takes to send, or
+     * Long.MAX_VALUE while that is not known yet
+     */
+    long getPacketCount();
+
+    /**
+     * Returns the payload size of every packet but the last
+     */
+    int getPacketSize();
+
+    /**
+     * Loads the payload of a packet for the given window slot. The payload is
+     * between the returned buffer's position and limit, and starts at byte
+     * packetNum * getPacketSize() of the source
+     *
+     * @param slot the window slot the packet is sent from
+     * @param packetNum the number of the packet to load
+     */
+    ByteBuffer load(int slot, long packetNum) throws IOException;
+
+    /**
+     * Gives back any buffers the source took for its slots
+     */
+    void release();
+}
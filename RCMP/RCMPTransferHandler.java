@@ -0,0 +1,43 @@
+import java.io.IOException;
+
+/**
+ * This interface is implemented by whatever takes the files an
+ * RCMPReceiverDaemon receives when they should not simply be written to a
+ * directory. The daemon asks it for a sink when a transfer starts, writes
+ * the file to that sink, and tells it how the transfer ended once the sink
+ * is closed. Every call is made on one of the daemon's receive threads while
+ * it holds the transfer, so a handler that has more to do than hand the file
+ * on should do it on a thread of its own
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public interface RCMPTransferHandler {
+
+	/**
+	 * Called when a sender starts a transfer. Returns the sink to write the
+	 * file to, which the daemon opens with the size of the file, or null to
+	 * turn the transfer down
+	 *
+	 * @param transferID the id of the transfer
+	 * @param fileSize the size of the file
+	 */
+	RCMPSink open(int transferID, long fileSize) throws IOException;
+
+	/**
+	 * Called once every byte of the file is written and the sink is closed
+	 *
+	 * @param transferID the id of the transfer
+	 * @param fileSize the size of the file
+	 */
+	void completed(int transferID, long fileSize);
+
+	/**
+	 * Called once a transfer that never finished has gone idle and its sink
+	 * is closed
+	 *
+	 * @param transferID the id of the transfer
+	 * @param fileSize the size of the file
+	 */
+	void abandoned(int transferID, long fileSize);
+}
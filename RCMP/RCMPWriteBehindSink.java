@@ -0,0 +1,285 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+/**
+ * This class implements an RCMP sink that keeps the receive loop from ever
+ * waiting on the disk. Every payload is copied into a buffer taken from an
+ * RCMPBufferPool and put on a queue, and a writer thread of its own takes
+ * the payloads off the queue in batches and hands them to the sink it wraps,
+ * with one gathering write for each run of payloads that follow each other in
+ * the file. A disk that stalls for a moment then only fills the queue instead
+ * of the socket's receive buffer. The queue is bounded, so a disk that cannot
+ * keep up at all slows the receiver down rather than using up its memory
+ *
+ * A receiver serving many transfers at once can share a few writer threads
+ * between all of their sinks instead, by handing each an Executor. The
+ * writer of such a sink is then a task that writes one batch and hands the
+ * thread back, queueing itself again while payloads are left, so no transfer
+ * holds a thread while it waits for packets and a busy one cannot keep the
+ * others waiting. The queue only grows as large as the file needs
+ *
+ * Forcing the sink first waits for the queue to drain, so everything written
+ * before a journal checkpoint is still on the disk when the journal is saved.
+ * An error the writer runs into is thrown by the next call to the sink
+ *
+ * @author: Quentin Barnes
+ * @author: Ty Vredeveld
+ */
+public class RCMPWriteBehindSink implements RCMPSink {
+
+	// how many payloads may wait for the writer by default, and the most it writes in one batch
+	public static final int DEFAULTQUEUE = 2048;
+	public static final int MAXBATCH = 64;
+
+	private RCMPSink sink;
+	private RCMPBufferPool pool;
+	private int capacity;
+
+	// the threads shared with other sinks to write on, or null to start a writer thread of our own
+	private Executor writers;
+
+	// the payloads waiting to be written and their offsets, as a ring
+	private ByteBuffer[] buffers;
+	private long[] positions;
+	private int head = 0;
+	private int size = 0;
+
+	// the batch the writer took off the queue, which only one writer at a time uses
+	private ByteBuffer[] batch = new ByteBuffer[MAXBATCH];
+	private long[] batchPositions = new long[MAXBATCH];
+
+	// whether the writer is busy with a batch it took off the queue, the error it ran into, and
+	// whether it should stop once the queue is empty
+	private boolean writing = false;
+	private volatile IOException failure;
+	private boolean closed = false;
+	private boolean started = false;
+
+	/**
+	 * Creates a sink that writes to another one from a thread of its own
+	 *
+	 * @param sink the sink to write the payloads to
+	 * @param pool the pool to take buffers for the queued payloads from
+	 * @param capacity how many payloads may wait to be written
+	 */
+	public RCMPWriteBehindSink(RCMPSink sink, RCMPBufferPool pool, int capacity) {
+		this(sink, pool, capacity, null);
+	}
+
+	/**
+	 * Creates a sink that writes to another one from threads it shares
+	 *
+	 * @param sink the sink to write the payloads to
+	 * @param pool the pool to take buffers for the queued payloads from
+	 * @param capacity how many payloads may wait to be written
+	 * @param writers the threads to write on, or null to start a writer thread of its own
+	 */
+	public RCMPWriteBehindSink(RCMPSink sink, RCMPBufferPool pool, int capacity, Executor writers) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("The write queue must hold at least 1 packet");
+		}
+		this.sink = sink;
+		this.pool = pool;
+		this.capacity = capacity;
+		this.writers = writers;
+	}
+
+	/**
+	 * Opens the sink, making the queue large enough for the payloads of the
+	 * whole file, up to its capacity
+	 */
+	public void open(long fileSize) throws IOException {
+		sink.open(fileSize);
+		int size = (int) Math.min(capacity, fileSize / pool.getBufferSize() + 1);
+		synchronized (this) {
+			buffers = new ByteBuffer[size];
+			positions = new long[size];
+		}
+	}
+
+	public boolean acceptsOutOfOrder() {
+		return sink.acceptsOutOfOrder();
+	}
+
+	/**
+	 * Copies the payload onto the queue, split over several buffers if it is
+	 * larger than the pool's, waiting only if the queue is full
+	 */
+	public void write(long position, ByteBuffer payload) throws IOException {
+		int limit = payload.limit();
+		while (payload.hasRemaining()) {
+			ByteBuffer buffer = pool.acquire();
+			int length = Math.min(payload.remaining(), buffer.capacity());
+			payload.limit(payload.position() + length);
+			buffer.put(payload).flip();
+			payload.limit(limit);
+			enqueue(position, buffer);
+			position += length;
+		}
+	}
+
+	/**
+	 * Waits for the queue to drain, then forces the sink
+	 */
+	public void force() throws IOException {
+		drain();
+		sink.force();
+	}
+
+	/**
+	 * Waits for the queue to drain, closes the sink and stops the writer. The
+	 * sink is closed even if the writer failed, so its file is not left open
+	 */
+	public void close() throws IOException {
+		try {
+			drain();
+		} finally {
+			try {
+				sink.close();
+			} finally {
+				synchronized (this) {
+					closed = true;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Puts a payload on the queue, starting the writer on the first one
+	 */
+	private synchronized void enqueue(long position, ByteBuffer buffer) throws IOException {
+		while (size == buffers.length && failure == null) {
+			waitForWriter();
+		}
+		if (failure != null) {
+			pool.release(buffer);
+			throw failure;
+		}
+		int slot = (head + size) % buffers.length;
+		buffers[slot] = buffer;
+		positions[slot] = position;
+		size++;
+		notifyAll();
+		if (!started) {
+			started = true;
+			if (writers != null) {
+				writers.execute(this::writeLoop);
+			} else {
+				Thread writer = new Thread(this::writeLoop, "RCMP writer");
+				writer.setDaemon(true);
+				writer.start();
+			}
+		}
+	}
+
+	/**
+	 * Waits until everything on the queue has been written
+	 */
+	private synchronized void drain() throws IOException {
+		while ((size > 0 || writing) && failure == null) {
+			waitForWriter();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private void waitForWriter() throws IOException {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the writer");
+		}
+	}
+
+	/**
+	 * Runs on the writer thread: takes batches of payloads off the queue and
+	 * writes them until the sink is closed, or on a shared thread until the
+	 * queue is empty or one batch is written, whichever comes first. After an
+	 * error the payloads are dropped, since the transfer has failed anyway
+	 */
+	private void writeLoop() {
+		while (true) {
+			int count;
+			synchronized (this) {
+				while (size == 0 && !closed && writers == null) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						started = false;
+						return;
+					}
+				}
+				if (size == 0) {
+					started = false;
+					return;
+				}
+				count = Math.min(size, MAXBATCH);
+				for (int i = 0; i < count; i++) {
+					batch[i] = buffers[head];
+					batchPositions[i] = positions[head];
+					buffers[head] = null;
+					head = (head + 1) % buffers.length;
+				}
+				size -= count;
+				writing = true;
+				notifyAll();
+			}
+
+			IOException error = null;
+			if (failure == null) {
+				try {
+					writeBatch(batch, batchPositions, count);
+				} catch (IOException e) {
+					error = e;
+				} catch (RuntimeException e) {
+					// the receive thread has to hear of it, or it would wait for the writer forever
+					error = new IOException("The writer failed: " + e, e);
+				}
+			}
+			for (int i = 0; i < count; i++) {
+				pool.release(batch[i]);
+				batch[i] = null;
+			}
+			synchronized (this) {
+				writing = false;
+				if (error != null && failure == null) {
+					failure = error;
+				}
+				notifyAll();
+				// a shared thread goes back to the other sinks, and we wait our turn for the rest
+				if (writers != null) {
+					if (size > 0) {
+						writers.execute(this::writeLoop);
+					} else {
+						started = false;
+					}
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a batch of payloads with one call to the sink for every run of
+	 * them that follow each other in the file
+	 */
+	private void writeBatch(ByteBuffer[] batch, long[] batchPositions, int count) throws IOException {
+		int start = 0;
+		long end = batchPositions[0] + batch[0].remaining();
+		for (int i = 1; i <= count; i++) {
+			if (i < count && batchPositions[i] == end) {
+				end += batch[i].remaining();
+				continue;
+			}
+			sink.write(batchPositions[start], batch, start, i - start);
+			if (i < count) {
+				start = i;
+				end = batchPositions[i] + batch[i].remaining();
+			}
+		}
+	}
+}